@@ -18,6 +18,11 @@ public abstract class AbstractDownloader<T extends DownloaderState>
     private final Collection<DownloaderListener<T>> m_listeners;
     private final long m_startTime;
     
+    /**
+     * The future we complete with the first final state we fire.
+     */
+    private final DownloadFuture<T> m_future;
+    
     /**
      * Initializes this abstract base class.
      */
@@ -25,6 +30,7 @@ public abstract class AbstractDownloader<T extends DownloaderState>
         {
         m_listeners = new LinkedList<DownloaderListener<T>> ();
         m_startTime = new Date().getTime();
+        m_future = new DownloadFuture<T> (this);
         }
     
     /**
@@ -41,6 +47,21 @@ public abstract class AbstractDownloader<T extends DownloaderState>
                 listener.stateChanged (state);
                 }
             }
+        if (state.getType () != DownloaderStateType.RUNNING)
+            {
+            m_future.complete (state);
+            }
+        }
+    
+    /**
+     * Accessor for the future that completes with the final state of this
+     * downloader.
+     * 
+     * @return The future.
+     */
+    protected final DownloadFuture<T> getFuture ()
+        {
+        return m_future;
         }
     
     public final void addListener (final DownloaderListener<T> listener)
@@ -0,0 +1,23 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+
+/**
+ * Resolver that also knows which parts of the file each source has, such 
+ * as when some of the sources are peers still downloading the file 
+ * themselves.
+ */
+public interface AvailabilityUriResolver extends UriResolver
+    {
+
+    /**
+     * Accesses what part of the file a source resolved by this resolver 
+     * has.
+     * 
+     * @param source The source.
+     * @return What the source has.  This is 
+     * {@link SourceAvailability#COMPLETE} if the source has the whole file
+     * or we don't know.
+     */
+    SourceAvailability getAvailability(URI source);
+    }
@@ -0,0 +1,264 @@
+package org.lastbamboo.common.download;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token bucket that caps how fast we read.  Limiters form a hierarchy, 
+ * with a single limiter for the whole process at the top and a limiter for
+ * each download below it, so reading through a download's limiter also 
+ * counts against the process limit.  Each source host can have its own 
+ * limiter as well, shared by every download using the host.  Limits can 
+ * change at any time.  Unlimited limiters cost a single volatile read, so
+ * it's cheap to check every buffer we read.
+ */
+public final class BandwidthLimiter
+    {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    private static final BandwidthLimiter PROCESS = new BandwidthLimiter(null);
+    
+    private static final ConcurrentMap<String, BandwidthLimiter> HOSTS =
+        new ConcurrentHashMap<String, BandwidthLimiter>();
+    
+    private final BandwidthLimiter m_parent;
+    
+    /**
+     * The limit we enforce in bytes per second, or -1 for no limit.  This
+     * is the lower of the configured limit and our fair share.
+     */
+    private volatile long m_bytesPerSecond = -1L;
+    
+    /**
+     * The configured limit in bytes per second, or -1 for no limit.
+     */
+    private long m_limit = -1L;
+    
+    /**
+     * Our share of our parent's bandwidth in bytes per second, or -1 if 
+     * we're not sharing it out.
+     */
+    private long m_share = -1L;
+    
+    /**
+     * The bytes we can read without waiting.  This goes negative when 
+     * readers owe us for bytes they've already read.
+     */
+    private long m_tokens;
+    
+    private long m_lastRefill;
+    
+    /**
+     * The total bytes read through this limiter, whether or not it has a
+     * limit.
+     */
+    private final AtomicLong m_bytesRead = new AtomicLong(0L);
+    
+    /**
+     * Creates a new limiter with no limit.
+     * 
+     * @param parent The limiter that everything read through this limiter
+     * also counts against, or <code>null</code> for none.
+     */
+    public BandwidthLimiter(final BandwidthLimiter parent)
+        {
+        m_parent = parent;
+        }
+    
+    /**
+     * Accessor for the limiter for the whole process.
+     * 
+     * @return The process limiter.
+     */
+    public static BandwidthLimiter getProcessLimiter()
+        {
+        return PROCESS;
+        }
+    
+    /**
+     * Accessor for the limiter for the given host, creating it if it 
+     * doesn't exist yet.  Use this to set a limit for a host.
+     * 
+     * @param host The host.
+     * @return The limiter for the host.
+     */
+    public static BandwidthLimiter getHostLimiter(final String host)
+        {
+        final BandwidthLimiter limiter = new BandwidthLimiter(null);
+        final BandwidthLimiter existing = 
+            HOSTS.putIfAbsent(host.toLowerCase(), limiter);
+        return existing == null ? limiter : existing;
+        }
+    
+    /**
+     * Accessor for the limiter for the given host if anyone has set one up.
+     * 
+     * @param host The host.
+     * @return The limiter for the host, or <code>null</code> if there is 
+     * none.
+     */
+    public static BandwidthLimiter findHostLimiter(final String host)
+        {
+        if (host == null || HOSTS.isEmpty())
+            {
+            return null;
+            }
+        return HOSTS.get(host.toLowerCase());
+        }
+    
+    /**
+     * Sets the limit.  This takes effect for the next bytes read.
+     * 
+     * @param bytesPerSecond The limit in bytes per second, or zero or less
+     * for no limit.
+     */
+    public synchronized void setBytesPerSecond(final long bytesPerSecond)
+        {
+        m_limit = bytesPerSecond > 0 ? bytesPerSecond : -1L;
+        updateRate();
+        }
+    
+    /**
+     * Accessor for the configured limit.
+     * 
+     * @return The limit in bytes per second, or -1 if there is no limit.
+     */
+    public synchronized long getBytesPerSecond()
+        {
+        return m_limit;
+        }
+    
+    /**
+     * Accessor for the total bytes read through this limiter.  For the 
+     * process limiter this is everything every download has read.
+     * 
+     * @return The total bytes read.
+     */
+    public long getBytesRead()
+        {
+        return m_bytesRead.get();
+        }
+    
+    /**
+     * Sets our share of our parent's bandwidth.  We enforce whichever is
+     * lower of this and the configured limit.
+     * 
+     * @param bytesPerSecond The share in bytes per second, or zero or less
+     * if we're not sharing out the parent's bandwidth.
+     */
+    synchronized void setShare(final long bytesPerSecond)
+        {
+        m_share = bytesPerSecond > 0 ? bytesPerSecond : -1L;
+        updateRate();
+        }
+    
+    /**
+     * Accessor for our share of our parent's bandwidth.
+     * 
+     * @return The share in bytes per second, or -1 if we're not sharing out
+     * the parent's bandwidth.
+     */
+    synchronized long getShare()
+        {
+        return m_share;
+        }
+    
+    private void updateRate()
+        {
+        final long rate;
+        if (m_limit == -1L)
+            {
+            rate = m_share;
+            }
+        else if (m_share == -1L)
+            {
+            rate = m_limit;
+            }
+        else
+            {
+            rate = Math.min(m_limit, m_share);
+            }
+        if (m_bytesPerSecond == -1L)
+            {
+            m_tokens = Math.max(0L, rate);
+            m_lastRefill = System.nanoTime();
+            }
+        else
+            {
+            // Don't hand out a fresh burst every time our share moves.
+            m_tokens = Math.min(m_tokens, Math.max(0L, rate));
+            }
+        m_bytesPerSecond = rate;
+        }
+    
+    /**
+     * Counts bytes we've just read against this limiter and its parents,
+     * waiting as long as it takes to bring us back under all the limits.
+     * 
+     * @param bytes The number of bytes read.
+     * @return The number of milliseconds we waited.
+     * @throws InterruptedIOException If we're interrupted while waiting.
+     */
+    public long acquire(final int bytes) throws InterruptedIOException
+        {
+        final long waitNanos = reserve(bytes, System.nanoTime());
+        if (waitNanos <= 0L)
+            {
+            return 0L;
+            }
+        try
+            {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            }
+        catch (final InterruptedException e)
+            {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+            }
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos);
+        }
+    
+    /**
+     * Takes tokens for the given bytes from this limiter and its parents.
+     * 
+     * @param bytes The number of bytes.
+     * @param now The current time in nanoseconds.
+     * @return How long to wait before reading more, in nanoseconds.
+     */
+    private long reserve(final int bytes, final long now)
+        {
+        long waitNanos = 0L;
+        m_bytesRead.addAndGet(bytes);
+        if (m_bytesPerSecond != -1L)
+            {
+            synchronized (this)
+                {
+                final long rate = m_bytesPerSecond;
+                if (rate != -1L)
+                    {
+                    // We never store more than a second's worth, so there's 
+                    // no point in refilling for longer than that.
+                    final long elapsed = 
+                        Math.min(now - m_lastRefill, NANOS_PER_SECOND);
+                    m_lastRefill = now;
+                    m_tokens = Math.min(rate, 
+                        m_tokens + elapsed * rate / NANOS_PER_SECOND);
+                    m_tokens -= bytes;
+                    if (m_tokens < 0L)
+                        {
+                        waitNanos = -m_tokens * NANOS_PER_SECOND / rate;
+                        }
+                    }
+                }
+            }
+        if (m_parent != null)
+            {
+            waitNanos = Math.max(waitNanos, m_parent.reserve(bytes, now));
+            }
+        return waitNanos;
+        }
+    }
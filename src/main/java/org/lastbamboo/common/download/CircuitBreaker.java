@@ -0,0 +1,202 @@
+package org.lastbamboo.common.download;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before retrying a source after a failure and
+ * when to give up on it.  Each failure doubles the wait, with some jitter
+ * so the connections to a host don't all come back at once.  Successes
+ * work off past failures, but enough failures without them open the
+ * breaker.  Once it's open, we wait a good while and then let a single
+ * request through to see if the source is back.  If that request works,
+ * the breaker closes again.  If it fails, we open the breaker again, and
+ * after a few tries like that we give up on the source.
+ */
+public class CircuitBreaker
+    {
+
+    /**
+     * The wait after the first failure, in milliseconds.
+     */
+    private static final long BASE_DELAY = 1000;
+
+    /**
+     * How long we leave the breaker open before letting a request through,
+     * in milliseconds.
+     */
+    private static final long COOLDOWN = 60 * 1000;
+
+    /**
+     * The number of failures that open the breaker.
+     */
+    private static final int MAX_FAILURES = 4;
+
+    /**
+     * The number of times we open the breaker without a success in between
+     * before we give up on the source.
+     */
+    private static final int MAX_OPENS = 2;
+
+    private final Random m_random;
+
+    private int m_failures;
+
+    private int m_retries;
+
+    private int m_opens;
+
+    /**
+     * When the breaker lets a request through again, or -1 if it's closed.
+     */
+    private long m_openUntil = -1L;
+
+    private boolean m_tripped;
+
+    /**
+     * Creates a new breaker.
+     */
+    public CircuitBreaker()
+        {
+        this(new Random());
+        }
+
+    /**
+     * Creates a new breaker that jitters waits with the given generator.
+     * This is for testing.
+     *
+     * @param random The generator.
+     */
+    CircuitBreaker(final Random random)
+        {
+        m_random = random;
+        }
+
+    /**
+     * Records a failure.
+     *
+     * @return The number of milliseconds to wait before retrying, or -1 if
+     * we should give up on the source.
+     */
+    public long onFailure()
+        {
+        return onFailure(System.currentTimeMillis());
+        }
+
+    /**
+     * Records a failure at the given time.
+     *
+     * @param now The current time.
+     * @return The number of milliseconds to wait before retrying, or -1 if
+     * we should give up on the source.
+     */
+    synchronized long onFailure(final long now)
+        {
+        if (m_tripped)
+            {
+            return -1L;
+            }
+        if (m_openUntil != -1L)
+            {
+            if (now < m_openUntil)
+                {
+                // Another request is already waiting to try the source.
+                return -1L;
+                }
+
+            // The request we let through failed too.
+            return open(now);
+            }
+        m_failures++;
+        if (m_failures >= MAX_FAILURES)
+            {
+            return open(now);
+            }
+        m_retries++;
+        return jitter(BASE_DELAY << (m_failures - 1));
+        }
+
+    private long open(final long now)
+        {
+        m_opens++;
+        if (m_opens > MAX_OPENS)
+            {
+            m_tripped = true;
+            m_openUntil = -1L;
+            return -1L;
+            }
+        m_retries++;
+        final long delay = jitter(COOLDOWN);
+        m_openUntil = now + delay;
+        return delay;
+        }
+
+    /**
+     * Waits somewhere between half the delay and the whole delay.
+     */
+    private long jitter(final long delay)
+        {
+        final long half = delay / 2;
+        return half + (long) (m_random.nextDouble() * (delay - half));
+        }
+
+    /**
+     * Records a success.
+     */
+    public synchronized void onSuccess()
+        {
+        if (m_openUntil != -1L)
+            {
+            // The source is back.
+            m_openUntil = -1L;
+            m_opens = 0;
+            m_failures = 0;
+            }
+        else if (m_failures > 0)
+            {
+            m_failures--;
+            }
+        }
+
+    /**
+     * Returns whether or not the breaker is open, so we're waiting to see
+     * if the source comes back.
+     *
+     * @return <code>true</code> if the breaker is open, otherwise
+     * <code>false</code>.
+     */
+    public synchronized boolean isOpen()
+        {
+        return m_openUntil != -1L;
+        }
+
+    /**
+     * Returns whether or not we've given up on the source.
+     *
+     * @return <code>true</code> if we've given up, otherwise
+     * <code>false</code>.
+     */
+    public synchronized boolean isTripped()
+        {
+        return m_tripped;
+        }
+
+    /**
+     * Accessor for the number of retries we've scheduled.
+     *
+     * @return The number of retries.
+     */
+    public synchronized int getNumRetries()
+        {
+        return m_retries;
+        }
+
+    /**
+     * Accessor for the number of failures not yet worked off by successes.
+     *
+     * @return The number of failures.
+     */
+    public synchronized int getNumFailures()
+        {
+        return m_failures;
+        }
+    }
@@ -0,0 +1,182 @@
+package org.lastbamboo.common.download;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.apache.commons.lang.math.LongRange;
+
+/**
+ * The set of ranges of a file that have completed downloading, shared by
+ * everyone streaming the file.  Adjacent and overlapping ranges always merge,
+ * so we only ever keep one entry for each gap-free run of bytes, however
+ * large the file.  Readers register to hear when the byte they need
+ * arrives instead of being woken for every range.
+ */
+public final class CompletedRanges
+    {
+
+    /**
+     * The first byte of each run mapped to the byte after its last byte.
+     */
+    private final NavigableMap<Long, Long> m_runs = new TreeMap<Long, Long>();
+
+    /**
+     * The callbacks waiting on each byte.
+     */
+    private final NavigableMap<Long, List<Runnable>> m_waiters =
+        new TreeMap<Long, List<Runnable>>();
+
+    /**
+     * Creates a new empty set of completed ranges.
+     */
+    public CompletedRanges()
+        {
+        }
+
+    /**
+     * Creates a new set of completed ranges holding the given ranges.
+     *
+     * @param ranges The ranges.
+     */
+    public CompletedRanges(final Collection<LongRange> ranges)
+        {
+        for (final LongRange range : ranges)
+            {
+            add(range);
+            }
+        }
+
+    /**
+     * Adds a completed range, merging it with any runs it touches, and
+     * notifies anyone waiting on the bytes it covers.
+     *
+     * @param range The completed range.
+     */
+    public void add(final LongRange range)
+        {
+        final Collection<Runnable> toNotify = new LinkedList<Runnable>();
+        synchronized (this)
+            {
+            long start = range.getMinimumLong();
+            long end = range.getMaximumLong() + 1;
+            final Map.Entry<Long, Long> before = m_runs.floorEntry(start);
+            if (before != null && before.getValue().longValue() >= start)
+                {
+                if (before.getValue().longValue() >= end)
+                    {
+                    // We already have all of it.
+                    return;
+                    }
+                start = before.getKey().longValue();
+                }
+
+            // Swallow every run that starts inside or right after the range.
+            final Iterator<Map.Entry<Long, Long>> after =
+                m_runs.subMap(start, true, end, true).entrySet().iterator();
+            while (after.hasNext())
+                {
+                end = Math.max(end, after.next().getValue().longValue());
+                after.remove();
+                }
+            m_runs.put(start, end);
+
+            final Iterator<List<Runnable>> waiting = m_waiters.subMap(
+                range.getMinimumLong(), true, end, false).values().iterator();
+            while (waiting.hasNext())
+                {
+                toNotify.addAll(waiting.next());
+                waiting.remove();
+                }
+            }
+        for (final Runnable waiter : toNotify)
+            {
+            waiter.run();
+            }
+        }
+
+    /**
+     * Accessor for the end of the run of completed bytes starting at the
+     * given position.
+     *
+     * @param position The position in the file.
+     * @return The position of the first missing byte at or after the given
+     * position.  This is the position itself if we don't have that byte.
+     */
+    public synchronized long getContiguousEnd(final long position)
+        {
+        final Map.Entry<Long, Long> run = m_runs.floorEntry(position);
+        if (run == null || run.getValue().longValue() <= position)
+            {
+            return position;
+            }
+        return run.getValue().longValue();
+        }
+
+    /**
+     * Runs the given callback once the byte at the given position has
+     * completed.  The callback runs right away on the calling thread if we
+     * already have the byte, or otherwise on the thread that adds it, so it
+     * should never block.
+     *
+     * @param position The position in the file.
+     * @param callback The callback.
+     */
+    public void notifyWhenAvailable(final long position,
+        final Runnable callback)
+        {
+        synchronized (this)
+            {
+            if (getContiguousEnd(position) == position)
+                {
+                List<Runnable> waiters = m_waiters.get(position);
+                if (waiters == null)
+                    {
+                    waiters = new LinkedList<Runnable>();
+                    m_waiters.put(position, waiters);
+                    }
+                waiters.add(callback);
+                return;
+                }
+            }
+        callback.run();
+        }
+
+    /**
+     * Stops waiting with the given callback.
+     *
+     * @param position The position the callback was waiting on.
+     * @param callback The callback.
+     */
+    public synchronized void cancelNotify(final long position,
+        final Runnable callback)
+        {
+        final List<Runnable> waiters = m_waiters.get(position);
+        if (waiters != null && waiters.remove(callback) && waiters.isEmpty())
+            {
+            m_waiters.remove(position);
+            }
+        }
+
+    /**
+     * Accessor for the completed runs of bytes, in order.
+     *
+     * @return The completed runs.
+     */
+    public synchronized Collection<LongRange> getRanges()
+        {
+        final Collection<LongRange> ranges =
+            new ArrayList<LongRange>(m_runs.size());
+        for (final Map.Entry<Long, Long> run : m_runs.entrySet())
+            {
+            ranges.add(new LongRange(run.getKey().longValue(),
+                run.getValue().longValue() - 1));
+            }
+        return ranges;
+        }
+    }
@@ -0,0 +1,125 @@
+package org.lastbamboo.common.download;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.LongRange;
+
+/**
+ * Utilities for parsing HTTP Content-Range header values, as in 
+ * "bytes 0-499/1234".  See RFC 2616 section 14.16.
+ */
+public final class ContentRangeUtils
+    {
+
+    private ContentRangeUtils()
+        {
+        // Should not be constructed.
+        }
+    
+    /**
+     * Parses the byte range from a Content-Range header value.
+     * 
+     * @param value The header value.
+     * @return The range, or <code>null</code> if the value does not specify
+     * a satisfied byte range.
+     */
+    public static LongRange parseRange(final String value)
+        {
+        final String spec = getSpec(value);
+        if (spec == null)
+            {
+            return null;
+            }
+        final String rangeString = StringUtils.substringBefore(spec, "/");
+        final int dash = rangeString.indexOf('-');
+        if (dash < 1)
+            {
+            // This is also the case for unsatisfied ranges, as in "*/1234".
+            return null;
+            }
+        try
+            {
+            final long min = 
+                Long.parseLong(rangeString.substring(0, dash).trim());
+            final long max = 
+                Long.parseLong(rangeString.substring(dash + 1).trim());
+            if (max < min)
+                {
+                return null;
+                }
+            return new LongRange(min, max);
+            }
+        catch (final NumberFormatException e)
+            {
+            return null;
+            }
+        }
+
+    /**
+     * Parses the complete length of the resource from a Content-Range header
+     * value.
+     * 
+     * @param value The header value.
+     * @return The complete length of the resource, or -1 if it's unknown.
+     */
+    public static long parseInstanceLength(final String value)
+        {
+        final String spec = getSpec(value);
+        if (spec == null || spec.indexOf('/') == -1)
+            {
+            return -1L;
+            }
+        final String length = StringUtils.substringAfter(spec, "/").trim();
+        if ("*".equals(length))
+            {
+            return -1L;
+            }
+        try
+            {
+            return Long.parseLong(length);
+            }
+        catch (final NumberFormatException e)
+            {
+            return -1L;
+            }
+        }
+    
+    /**
+     * Creates the value for a Range request header for the specified ranges.
+     * See RFC 2616 section 14.35.1 - "Byte Ranges".
+     * 
+     * @param ranges The ranges to request.
+     * @return The Range header value.
+     */
+    public static String toRangesSpecifier(final Iterable<LongRange> ranges)
+        {
+        final StringBuilder sb = new StringBuilder("bytes=");
+        boolean first = true;
+        for (final LongRange range : ranges)
+            {
+            if (!first)
+                {
+                sb.append(",");
+                }
+            sb.append(range.getMinimumLong());
+            sb.append("-");
+            sb.append(range.getMaximumLong());
+            first = false;
+            }
+        return sb.toString();
+        }
+
+    private static String getSpec(final String value)
+        {
+        if (StringUtils.isBlank(value))
+            {
+            return null;
+            }
+        final String trimmed = value.trim();
+        if (!trimmed.toLowerCase().startsWith("bytes"))
+            {
+            return null;
+            }
+        // Some servers use "bytes=" instead of "bytes ".
+        return trimmed.substring("bytes".length()).replace('=', ' ').trim();
+        }
+    }
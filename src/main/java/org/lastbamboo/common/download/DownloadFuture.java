@@ -0,0 +1,145 @@
+package org.lastbamboo.common.download;
+
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a download started with {@link Downloader#startAsync()}.
+ * This completes with the final state of the downloader, whether the 
+ * download succeeded or failed.  Callers can either wait for the result or
+ * register a listener to hear about it without tying up a thread.
+ * 
+ * @param <StateT> The downloader state type.
+ */
+public final class DownloadFuture<StateT> implements Future<StateT>
+    {
+
+    private final Downloader<StateT> m_downloader;
+    
+    private final CountDownLatch m_doneLatch = new CountDownLatch(1);
+    
+    private final Collection<DownloaderListener<StateT>> m_listeners =
+        new LinkedList<DownloaderListener<StateT>>();
+    
+    private volatile StateT m_state;
+    
+    private volatile boolean m_cancelled = false;
+    
+    /**
+     * Creates a new future for the given downloader.
+     * 
+     * @param downloader The downloader.  We stop the downloader if the 
+     * future is cancelled.
+     */
+    DownloadFuture(final Downloader<StateT> downloader)
+        {
+        m_downloader = downloader;
+        }
+    
+    /**
+     * Completes the future with the final state of the download.  Only the
+     * first call has any effect.
+     * 
+     * @param state The final state.
+     */
+    void complete(final StateT state)
+        {
+        final Collection<DownloaderListener<StateT>> listeners;
+        synchronized (this)
+            {
+            if (isDone())
+                {
+                return;
+                }
+            m_state = state;
+            m_doneLatch.countDown();
+            listeners = new LinkedList<DownloaderListener<StateT>>(m_listeners);
+            m_listeners.clear();
+            }
+        for (final DownloaderListener<StateT> listener : listeners)
+            {
+            listener.stateChanged(state);
+            }
+        }
+    
+    /**
+     * Adds a listener to notify once with the final state of the download.
+     * If the download is already done, the listener is notified right away
+     * on the calling thread.  Otherwise it's notified on the thread that
+     * finished the download, so it should not block.
+     * 
+     * @param listener The listener.
+     */
+    public void addCompletionListener(final DownloaderListener<StateT> listener)
+        {
+        synchronized (this)
+            {
+            if (!isDone())
+                {
+                m_listeners.add(listener);
+                return;
+                }
+            }
+        listener.stateChanged(m_state);
+        }
+
+    public boolean cancel(final boolean mayInterruptIfRunning)
+        {
+        synchronized (this)
+            {
+            if (isDone() || m_cancelled)
+                {
+                return false;
+                }
+            m_cancelled = true;
+            }
+        m_downloader.stop(false);
+        
+        // Stopping doesn't always fire a final state, or fires it later on
+        // another thread, so we finish here either way.  This does nothing
+        // if stopping already finished us.
+        complete(m_downloader.getState());
+        return true;
+        }
+
+    public boolean isCancelled()
+        {
+        return m_cancelled;
+        }
+
+    public boolean isDone()
+        {
+        return m_doneLatch.getCount() == 0;
+        }
+
+    public StateT get() throws InterruptedException
+        {
+        m_doneLatch.await();
+        return result();
+        }
+
+    public StateT get(final long timeout, final TimeUnit unit) 
+        throws InterruptedException, TimeoutException
+        {
+        if (!m_doneLatch.await(timeout, unit))
+            {
+            throw new TimeoutException("Download not done after " + timeout +
+                " " + unit);
+            }
+        return result();
+        }
+
+    private StateT result()
+        {
+        if (m_cancelled)
+            {
+            throw new CancellationException("Download cancelled");
+            }
+        return m_state;
+        }
+    }
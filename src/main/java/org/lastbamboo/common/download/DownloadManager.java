@@ -0,0 +1,588 @@
+package org.lastbamboo.common.download;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Queues downloads and only starts them as fast as the link can take them.
+ * We always run at least a few downloads, and then add downloads one at a
+ * time as long as each one added makes the total throughput go up.  Once
+ * adding a download stops helping, we go back to the number of downloads 
+ * we had and hold there until a download finishes.  If the throughput 
+ * falls while we hold, we run one download fewer.  We never go over the 
+ * configured number of downloads, and we don't start any while the heap 
+ * is nearly full.  Downloads that finish or stop reading bytes for a while
+ * immediately make room for the next one in the queue.
+ */
+public final class DownloadManager
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The most downloads we run at once unless told otherwise.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 8;
+
+    /**
+     * The number of downloads we always run if we have them, before we
+     * start measuring whether more help.
+     */
+    public static final int DEFAULT_MIN_CONCURRENT = 2;
+
+    /**
+     * How often we measure throughput and look for stalls, in milliseconds.
+     */
+    private static final long CHECK_INTERVAL = 1000;
+
+    /**
+     * How long a download gets to ramp up before we judge whether it helped
+     * the total throughput, in milliseconds.
+     */
+    private static final long SETTLE_TIME = 5 * 1000;
+
+    /**
+     * How much the total throughput has to go up for us to count a new
+     * download as helping.
+     */
+    private static final double MIN_GAIN = 0.1;
+
+    /**
+     * How long a download can go without reading any bytes before it 
+     * counts as stalled, in milliseconds.
+     */
+    private static final long STALL_TIMEOUT = 60 * 1000;
+
+    /**
+     * The weight of the latest sample in the smoothed throughput.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    /**
+     * The limiter whose byte count we measure total throughput with.
+     */
+    private final BandwidthLimiter m_meter;
+
+    private final LinkedList<Entry> m_queue = new LinkedList<Entry>();
+
+    private final Collection<Entry> m_running = new LinkedList<Entry>();
+
+    private int m_maxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+    private int m_minConcurrent = DEFAULT_MIN_CONCURRENT;
+
+    private double m_maxHeapFraction = 0.9;
+
+    /**
+     * The number of downloads we currently think the link can take.
+     */
+    private int m_target = DEFAULT_MIN_CONCURRENT;
+
+    /**
+     * When we last started a download.  Downloads need time to ramp up
+     * before the throughput tells us anything.
+     */
+    private long m_lastAdmission = 0L;
+
+    /**
+     * The throughput we judge changes to the target against, or -1 if we
+     * haven't measured it since the running downloads last changed.
+     */
+    private long m_baselineRate = -1L;
+    
+    /**
+     * When we last changed the target.
+     */
+    private long m_lastTargetChange = 0L;
+    
+    /**
+     * Whether we've raised the target and haven't judged yet whether it 
+     * helped.
+     */
+    private boolean m_stepPending = false;
+    
+    /**
+     * Whether we've found that another download doesn't help, so we stop
+     * trying more until a download finishes.
+     */
+    private boolean m_holding = false;
+
+    private long m_lastBytesRead;
+
+    private long m_lastMeasured;
+
+    /**
+     * The smoothed total throughput, or -1 if we haven't measured it yet.
+     */
+    private long m_bytesPerSecond = -1L;
+
+    private long m_totalWaitTime = 0L;
+
+    private int m_numAdmitted = 0;
+
+    private ScheduledFuture<?> m_checks;
+
+    private final Runnable m_checkTask = new Runnable()
+        {
+        public void run()
+            {
+            check(System.currentTimeMillis());
+            }
+        };
+    
+    private final long m_checkInterval;
+
+    /**
+     * Creates a new manager that measures the throughput of everything
+     * read through the process bandwidth limiter.
+     */
+    public DownloadManager()
+        {
+        this(BandwidthLimiter.getProcessLimiter());
+        }
+
+    /**
+     * Creates a new manager.
+     *
+     * @param meter The limiter whose byte count we measure total throughput
+     * with.
+     */
+    public DownloadManager(final BandwidthLimiter meter)
+        {
+        this(meter, CHECK_INTERVAL);
+        }
+    
+    /**
+     * Creates a new manager that checks on its downloads at the given 
+     * interval.  This is for testing.
+     *
+     * @param meter The limiter whose byte count we measure total throughput
+     * with.
+     * @param checkInterval How often to check, in milliseconds.
+     */
+    DownloadManager(final BandwidthLimiter meter, final long checkInterval)
+        {
+        m_meter = meter;
+        m_checkInterval = checkInterval;
+        }
+
+    /**
+     * Adds a download to the end of the queue.  We start it ourselves once
+     * there's room, so callers should not start it.  Listen to the
+     * downloader to hear how it goes.
+     *
+     * @param downloader The download.
+     */
+    public void enqueue(final Downloader<?> downloader)
+        {
+        synchronized (this)
+            {
+            m_queue.add(new Entry(downloader, System.currentTimeMillis()));
+            if (m_checks == null)
+                {
+                m_lastBytesRead = m_meter.getBytesRead();
+                m_lastMeasured = System.currentTimeMillis();
+                m_checks = DownloadTimer.scheduleAtFixedRate(m_checkTask,
+                    m_checkInterval, TimeUnit.MILLISECONDS);
+                }
+            }
+        admit(System.currentTimeMillis());
+        }
+
+    /**
+     * Removes a download from the queue if it hasn't started yet.
+     *
+     * @param downloader The download.
+     * @return <code>true</code> if we removed the download, or
+     * <code>false</code> if it wasn't queued.
+     */
+    public synchronized boolean remove(final Downloader<?> downloader)
+        {
+        final Iterator<Entry> iter = m_queue.iterator();
+        while (iter.hasNext())
+            {
+            if (iter.next().m_downloader == downloader)
+                {
+                iter.remove();
+                return true;
+                }
+            }
+        return false;
+        }
+
+    /**
+     * Sets the most downloads we run at once, not counting stalled
+     * downloads.
+     *
+     * @param maxConcurrent The most downloads to run at once.
+     */
+    public void setMaxConcurrent(final int maxConcurrent)
+        {
+        synchronized (this)
+            {
+            m_maxConcurrent = Math.max(1, maxConcurrent);
+            }
+        admit(System.currentTimeMillis());
+        }
+
+    /**
+     * Sets the number of downloads we run without checking whether they
+     * help the total throughput.
+     *
+     * @param minConcurrent The number of downloads.
+     */
+    public void setMinConcurrent(final int minConcurrent)
+        {
+        synchronized (this)
+            {
+            m_minConcurrent = Math.max(1, minConcurrent);
+            m_target = Math.max(m_target, m_minConcurrent);
+            }
+        admit(System.currentTimeMillis());
+        }
+
+    /**
+     * Sets how full the heap can be before we stop starting downloads.
+     *
+     * @param maxHeapFraction The fraction of the maximum heap size.
+     */
+    public synchronized void setMaxHeapFraction(final double maxHeapFraction)
+        {
+        m_maxHeapFraction = maxHeapFraction;
+        }
+
+    /**
+     * Accessor for the number of downloads waiting to start.
+     *
+     * @return The queue depth.
+     */
+    public synchronized int getQueueDepth()
+        {
+        return m_queue.size();
+        }
+
+    /**
+     * Accessor for the number of downloads we've started that haven't
+     * finished, including stalled downloads.
+     *
+     * @return The number of running downloads.
+     */
+    public synchronized int getNumRunning()
+        {
+        return m_running.size();
+        }
+
+    /**
+     * Accessor for the number of running downloads that have stalled.
+     *
+     * @return The number of stalled downloads.
+     */
+    public synchronized int getNumStalled()
+        {
+        return m_running.size() - getNumActive();
+        }
+
+    /**
+     * Accessor for how long the download at the front of the queue has
+     * been waiting.
+     *
+     * @return The wait in milliseconds, or 0 if the queue is empty.
+     */
+    public synchronized long getLongestWaitTime()
+        {
+        if (m_queue.isEmpty())
+            {
+            return 0L;
+            }
+        return System.currentTimeMillis() - m_queue.getFirst().m_enqueueTime;
+        }
+
+    /**
+     * Accessor for the average time downloads have waited in the queue
+     * before starting.
+     *
+     * @return The average wait in milliseconds, or 0 if we haven't started
+     * any downloads.
+     */
+    public synchronized long getAverageWaitTime()
+        {
+        if (m_numAdmitted == 0)
+            {
+            return 0L;
+            }
+        return m_totalWaitTime / m_numAdmitted;
+        }
+
+    /**
+     * Accessor for the number of downloads we currently think the link can
+     * take.
+     *
+     * @return The number of downloads.
+     */
+    public synchronized int getTargetConcurrent()
+        {
+        return m_target;
+        }
+
+    /**
+     * Accessor for the total throughput we last measured.
+     *
+     * @return The throughput in bytes per second, or -1 if we haven't
+     * measured it yet.
+     */
+    public synchronized long getBytesPerSecond()
+        {
+        return m_bytesPerSecond;
+        }
+
+    /**
+     * Starts every queued download we have room for.  We start them outside
+     * the lock, as their listeners can call back into us.
+     */
+    private void admit(final long now)
+        {
+        for (final Entry entry : takeAdmitted(now))
+            {
+            m_log.debug("Starting download: {}", entry.m_downloader);
+            start(entry, entry.m_downloader);
+            }
+        }
+
+    private synchronized List<Entry> takeAdmitted(final long now)
+        {
+        final List<Entry> admitted = new LinkedList<Entry>();
+        int active = getNumActive();
+        while (!m_queue.isEmpty() && canAdmit(active))
+            {
+            final Entry entry = m_queue.removeFirst();
+            entry.m_lastProgress = now;
+            entry.m_lastBytesRead = entry.m_downloader.getBytesRead();
+            m_running.add(entry);
+            m_totalWaitTime += now - entry.m_enqueueTime;
+            m_numAdmitted++;
+            m_lastAdmission = now;
+            admitted.add(entry);
+            active++;
+            }
+        return admitted;
+        }
+
+    private boolean canAdmit(final int active)
+        {
+        if (active == 0)
+            {
+            // We always make progress on the queue.
+            return true;
+            }
+        if (active >= Math.min(m_target, m_maxConcurrent))
+            {
+            return false;
+            }
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > runtime.maxMemory() * m_maxHeapFraction)
+            {
+            m_log.debug("Heap too full to start another download");
+            return false;
+            }
+        return true;
+        }
+
+    private <T> void start(final Entry entry, final Downloader<T> downloader)
+        {
+        final DownloadFuture<T> future;
+        try
+            {
+            future = downloader.startAsync();
+            }
+        catch (final RuntimeException e)
+            {
+            m_log.warn("Could not start download: " + downloader, e);
+            onFinished(entry);
+            return;
+            }
+        future.addCompletionListener(new DownloaderListener<T>()
+            {
+            public void stateChanged(final T state)
+                {
+                onFinished(entry);
+                }
+            });
+        }
+
+    private void onFinished(final Entry entry)
+        {
+        synchronized (this)
+            {
+            if (m_running.remove(entry))
+                {
+                // The downloads we judged the target with have changed.
+                m_holding = false;
+                m_stepPending = false;
+                m_baselineRate = -1L;
+                }
+            }
+        admit(System.currentTimeMillis());
+        }
+
+    /**
+     * Measures throughput, finds stalled downloads and adjusts the number
+     * of downloads we run.
+     *
+     * @param now The current time.
+     */
+    void check(final long now)
+        {
+        synchronized (this)
+            {
+            measure(now);
+            findStalls(now);
+            probe(now);
+            if (m_queue.isEmpty() && m_running.isEmpty() && m_checks != null)
+                {
+                m_checks.cancel(false);
+                m_checks = null;
+                }
+            }
+        admit(now);
+        }
+
+    private void measure(final long now)
+        {
+        final long bytesRead = m_meter.getBytesRead();
+        final long elapsed = now - m_lastMeasured;
+        if (elapsed <= 0)
+            {
+            return;
+            }
+        final long rate = (bytesRead - m_lastBytesRead) * 1000 / elapsed;
+        m_bytesPerSecond = m_bytesPerSecond == -1L ? rate :
+            (long) (SMOOTHING * rate + (1 - SMOOTHING) * m_bytesPerSecond);
+        m_lastBytesRead = bytesRead;
+        m_lastMeasured = now;
+        }
+
+    /**
+     * Finds downloads that haven't read anything for a while.  Downloads 
+     * don't change state while they're simply reading, so we go by their
+     * byte counts.
+     */
+    private void findStalls(final long now)
+        {
+        for (final Entry entry : m_running)
+            {
+            final long bytesRead = entry.m_downloader.getBytesRead();
+            if (bytesRead != entry.m_lastBytesRead)
+                {
+                entry.m_lastBytesRead = bytesRead;
+                entry.m_lastProgress = now;
+                if (entry.m_stalled)
+                    {
+                    m_log.debug("Download resumed: {}", entry.m_downloader);
+                    entry.m_stalled = false;
+                    }
+                }
+            else if (!entry.m_stalled && 
+                now - entry.m_lastProgress > STALL_TIMEOUT)
+                {
+                m_log.debug("Download stalled: {}", entry.m_downloader);
+                entry.m_stalled = true;
+                }
+            }
+        }
+
+    /**
+     * Judges the last change to the target once the downloads have had 
+     * time to settle, and tries one more download if the last one we 
+     * added helped.
+     */
+    private void probe(final long now)
+        {
+        if (m_bytesPerSecond == -1L ||
+            now - Math.max(m_lastAdmission, m_lastTargetChange) < SETTLE_TIME)
+            {
+            return;
+            }
+        if (m_stepPending)
+            {
+            m_stepPending = false;
+            if (m_bytesPerSecond < m_baselineRate * (1 + MIN_GAIN))
+                {
+                // The last download we added didn't help, so we go back to
+                // what we had and stop trying until something changes.
+                setTarget(Math.max(m_minConcurrent, m_target - 1), now);
+                m_holding = true;
+                m_baselineRate = m_bytesPerSecond;
+                m_log.debug("Throughput flat.  Holding at {} downloads",
+                    m_target);
+                return;
+                }
+            m_log.debug("Throughput still rising with {} downloads",
+                m_target);
+            }
+        else if (m_baselineRate != -1L && m_target > m_minConcurrent &&
+            m_bytesPerSecond < m_baselineRate * (1 - MIN_GAIN))
+            {
+            // The same downloads are getting less done, so we're likely 
+            // running more than the link can take.
+            setTarget(m_target - 1, now);
+            m_baselineRate = m_bytesPerSecond;
+            m_log.debug("Throughput falling.  Running {} downloads",
+                m_target);
+            return;
+            }
+        if (m_baselineRate == -1L)
+            {
+            m_baselineRate = m_bytesPerSecond;
+            }
+        if (m_holding || m_queue.isEmpty() || m_target >= m_maxConcurrent ||
+            getNumActive() < m_target)
+            {
+            return;
+            }
+        m_baselineRate = m_bytesPerSecond;
+        m_stepPending = true;
+        setTarget(m_target + 1, now);
+        }
+
+    private void setTarget(final int target, final long now)
+        {
+        m_target = target;
+        m_lastTargetChange = now;
+        }
+
+    private int getNumActive()
+        {
+        int active = 0;
+        for (final Entry entry : m_running)
+            {
+            if (!entry.m_stalled)
+                {
+                active++;
+                }
+            }
+        return active;
+        }
+
+    private static final class Entry
+        {
+        private final Downloader<?> m_downloader;
+        private final long m_enqueueTime;
+        private long m_lastProgress;
+        private long m_lastBytesRead;
+        private boolean m_stalled = false;
+
+        private Entry(final Downloader<?> downloader, final long enqueueTime)
+            {
+            m_downloader = downloader;
+            m_enqueueTime = enqueueTime;
+            }
+        }
+    }
@@ -0,0 +1,436 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of running downloads so that requests for a file we're
+ * already downloading share the download instead of starting another one.
+ * We know two requests are for the same file when they have the same SHA-1
+ * URN or the same URI.  Downloads whose SHA-1 we only learn once they've
+ * resolved their sources start out under their URI, and we add the SHA-1
+ * as soon as the download tells us it's moved on.  If another download
+ * already has that SHA-1, we move the handles over to it and stop the 
+ * newer one, unless they've started reading its file.  Each request gets
+ * its own handle, and reads the file through the download's 
+ * {@link LaunchFileDispatcher} along with every other request.  The download only stops once every handle has
+ * cancelled.
+ */
+public final class DownloadRegistry
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The running downloads, under every key we know them by.
+     */
+    private final Map<String, Entry<?>> m_downloads =
+        new HashMap<String, Entry<?>>();
+
+    /**
+     * The manager to queue new downloads with, or <code>null</code> to
+     * start them right away.
+     */
+    private final DownloadManager m_manager;
+
+    /**
+     * Creates a new registry that starts new downloads right away.
+     */
+    public DownloadRegistry()
+        {
+        this(null);
+        }
+
+    /**
+     * Creates a new registry that queues new downloads with the given
+     * manager.
+     *
+     * @param manager The manager, or <code>null</code> to start new
+     * downloads right away.
+     */
+    public DownloadRegistry(final DownloadManager manager)
+        {
+        m_manager = manager;
+        }
+
+    /**
+     * Gets a handle on the download of the file with the given URI, 
+     * starting a new download only if there isn't one running already.  
+     * The resolver only knows the SHA-1 once the download has resolved its 
+     * sources, so we find the download by its URI until then.
+     *
+     * @param <T> The downloader state type.
+     * @param uri The URI of the file.
+     * @param resolver The resolver the download resolves its sources with.
+     * @param factory The factory for creating the download if we need to.
+     * @return The handle on the download.
+     */
+    public <T extends DownloaderState> SharedDownload<T> acquire(
+        final URI uri, final UriResolver resolver,
+        final DownloaderFactory<T> factory)
+        {
+        return acquire(uri, null, resolver, factory);
+        }
+
+    /**
+     * Gets a handle on the download of the file with the given URI and
+     * SHA-1, starting a new download only if there isn't one running
+     * already.
+     *
+     * @param <T> The downloader state type.
+     * @param uri The URI of the file.
+     * @param sha1 The SHA-1 URN of the file, or <code>null</code> if we
+     * don't know it.
+     * @param factory The factory for creating the download if we need to.
+     * @return The handle on the download.
+     */
+    public <T extends DownloaderState> SharedDownload<T> acquire(
+        final URI uri, final URI sha1, final DownloaderFactory<T> factory)
+        {
+        return acquire(uri, sha1, null, factory);
+        }
+
+    private <T extends DownloaderState> SharedDownload<T> acquire(
+        final URI uri, final URI sha1, final UriResolver resolver,
+        final DownloaderFactory<T> factory)
+        {
+        final List<String> keys = new LinkedList<String>();
+        if (sha1 != null)
+            {
+            keys.add(sha1.toString());
+            }
+        keys.add(canonicalize(uri));
+
+        synchronized (this)
+            {
+            final Entry<?> existing = lookup(keys);
+            if (existing != null)
+                {
+                m_log.debug("Sharing running download of: {}", uri);
+                return join(DownloadRegistry.<T>cast(existing), keys);
+                }
+            }
+        
+        // Creating the download can take a while, so we do it outside the
+        // lock and check again before we register it.
+        final Entry<T> created = 
+            new Entry<T>(factory.createDownloader(), resolver);
+        final Entry<T> entry;
+        final SharedDownload<T> handle;
+        synchronized (this)
+            {
+            final Entry<?> existing = lookup(keys);
+            entry = existing == null ? 
+                created : DownloadRegistry.<T>cast(existing);
+            handle = join(entry, keys);
+            }
+        if (entry == created)
+            {
+            start(entry);
+            }
+        else
+            {
+            // Someone else started the same download while we were 
+            // creating ours.  Ours never started, and it may share files 
+            // with theirs, so we stop it without removing anything.
+            m_log.debug("Lost race to start download of: {}", uri);
+            created.m_downloader.stop(false);
+            }
+        return handle;
+        }
+    
+    private <T extends DownloaderState> SharedDownload<T> join(
+        final Entry<T> entry, final Collection<String> keys)
+        {
+        // Later requests can find the download under any key we've
+        // learned for it.
+        for (final String key : keys)
+            {
+            addKey(entry, key);
+            }
+        final SharedDownload<T> handle = 
+            new SharedDownload<T>(this, entry.m_downloader);
+        entry.m_handles.add(handle);
+        return handle;
+        }
+    
+    private void addKey(final Entry<?> entry, final String key)
+        {
+        if (!m_downloads.containsKey(key))
+            {
+            m_downloads.put(key, entry);
+            entry.m_keys.add(key);
+            }
+        }
+    
+    private Entry<?> lookup(final Collection<String> keys)
+        {
+        for (final String key : keys)
+            {
+            final Entry<?> existing = m_downloads.get(key);
+            if (existing != null)
+                {
+                return existing;
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Accessor for the number of different downloads running.
+     *
+     * @return The number of downloads.
+     */
+    public synchronized int getNumDownloads()
+        {
+        return new HashSet<Entry<?>>(m_downloads.values()).size();
+        }
+
+    /**
+     * Gives up the given handle's use of its download, stopping the
+     * download if no other handles are using it.
+     *
+     * @param handle The handle.
+     */
+    void release(final SharedDownload<?> handle)
+        {
+        final Downloader<?> downloader;
+        synchronized (this)
+            {
+            final Entry<?> entry = findEntry(handle);
+            if (entry == null)
+                {
+                // The download's already done.
+                return;
+                }
+            entry.m_handles.remove(handle);
+            if (!entry.m_handles.isEmpty())
+                {
+                return;
+                }
+            removeKeys(entry);
+            downloader = entry.m_downloader;
+            }
+        m_log.debug("No more requests for download: {}", downloader);
+        if (m_manager != null)
+            {
+            m_manager.remove(downloader);
+            }
+        
+        // This also cleans up downloads that never left the queue.
+        downloader.stop(true);
+        }
+
+    private <T extends DownloaderState> void start(final Entry<T> entry)
+        {
+        entry.m_downloader.addListener(entry);
+        if (m_manager == null)
+            {
+            entry.m_downloader.startAsync();
+            }
+        else
+            {
+            m_manager.enqueue(entry.m_downloader);
+            }
+        }
+
+    /**
+     * Adds the SHA-1 key for a download once its resolver knows it.  If 
+     * another download already has the key, we move the handles that 
+     * haven't started reading over to it.
+     * 
+     * @return <code>true</code> if every handle moved, so the download 
+     * should stop, otherwise <code>false</code>.
+     */
+    private synchronized <T extends DownloaderState> boolean onSha1(
+        final Entry<T> entry, final URI sha1)
+        {
+        if (entry.m_done || entry.m_handles.isEmpty())
+            {
+            return false;
+            }
+        final Entry<?> found = m_downloads.get(sha1.toString());
+        if (found == null || found == entry)
+            {
+            addKey(entry, sha1.toString());
+            return false;
+            }
+        final Entry<T> existing = DownloadRegistry.<T>cast(found);
+        final Iterator<SharedDownload<T>> handles = 
+            entry.m_handles.iterator();
+        while (handles.hasNext())
+            {
+            final SharedDownload<T> handle = handles.next();
+            if (handle.moveTo(existing.m_downloader))
+                {
+                handles.remove();
+                existing.m_handles.add(handle);
+                }
+            }
+        if (!entry.m_handles.isEmpty())
+            {
+            // Requests are already reading this download's file, so both
+            // keep running.
+            m_log.debug("Already downloading {} under another URI", sha1);
+            return false;
+            }
+        
+        // Later requests for this download's URI share the other one too.
+        m_log.debug("Merging duplicate download of: {}", sha1);
+        for (final String key : entry.m_keys)
+            {
+            m_downloads.put(key, existing);
+            existing.m_keys.add(key);
+            }
+        entry.m_keys.clear();
+        entry.m_done = true;
+        return true;
+        }
+    
+    private void stopDuplicate(final Downloader<?> downloader)
+        {
+        if (m_manager != null)
+            {
+            m_manager.remove(downloader);
+            }
+        
+        // The other download may be using the same files.
+        downloader.stop(false);
+        }
+
+    private <T extends DownloaderState> void onDone(final Entry<T> entry,
+        final T state)
+        {
+        final Collection<SharedDownload<T>> handles;
+        synchronized (this)
+            {
+            if (entry.m_done)
+                {
+                return;
+                }
+            entry.m_done = true;
+            removeKeys(entry);
+            handles = new LinkedList<SharedDownload<T>>(entry.m_handles);
+            entry.m_handles.clear();
+            }
+        for (final SharedDownload<T> handle : handles)
+            {
+            handle.onComplete(state);
+            }
+        }
+
+    private Entry<?> findEntry(final SharedDownload<?> handle)
+        {
+        for (final Entry<?> entry : m_downloads.values())
+            {
+            if (entry.m_handles.contains(handle))
+                {
+                return entry;
+                }
+            }
+        return null;
+        }
+
+    private void removeKeys(final Entry<?> entry)
+        {
+        for (final String key : entry.m_keys)
+            {
+            m_downloads.remove(key);
+            }
+        entry.m_keys.clear();
+        }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends DownloaderState> Entry<T> cast(
+        final Entry<?> entry)
+        {
+        // Downloads with the same SHA-1 or URI are of the same type.
+        return (Entry<T>) entry;
+        }
+
+    /**
+     * Puts the URI in a standard form, so trivially different URIs for the
+     * same file match.
+     */
+    private static String canonicalize(final URI uri)
+        {
+        final URI normalized = uri.normalize();
+        if (normalized.isOpaque() || normalized.getScheme() == null ||
+            normalized.getHost() == null)
+            {
+            return normalized.toString();
+            }
+        try
+            {
+            return new URI(normalized.getScheme().toLowerCase(),
+                normalized.getUserInfo(), normalized.getHost().toLowerCase(),
+                normalized.getPort(), normalized.getPath(),
+                normalized.getQuery(), normalized.getFragment()).toString();
+            }
+        catch (final URISyntaxException e)
+            {
+            return normalized.toString();
+            }
+        }
+
+    /**
+     * A running download and the handles on it.
+     */
+    private final class Entry<T extends DownloaderState>
+        implements DownloaderListener<T>
+        {
+        private final Downloader<T> m_downloader;
+        
+        /**
+         * The resolver to learn the SHA-1 from, or <code>null</code> if we 
+         * don't need to.
+         */
+        private volatile UriResolver m_resolver;
+        private final Collection<String> m_keys = new LinkedList<String>();
+        private final Collection<SharedDownload<T>> m_handles =
+            new LinkedList<SharedDownload<T>>();
+        private boolean m_done = false;
+
+        private Entry(final Downloader<T> downloader, 
+            final UriResolver resolver)
+            {
+            m_downloader = downloader;
+            m_resolver = resolver;
+            }
+
+        public void stateChanged(final T state)
+            {
+            // The download only reports progress once it's resolved its 
+            // sources, so the resolver knows the SHA-1 by now if it ever 
+            // will.
+            final UriResolver resolver = m_resolver;
+            if (resolver != null)
+                {
+                final URI sha1 = resolver.getSha1();
+                if (sha1 != null)
+                    {
+                    m_resolver = null;
+                    if (onSha1(this, sha1))
+                        {
+                        stopDuplicate(m_downloader);
+                        return;
+                        }
+                    }
+                }
+            if (state.getType() != DownloaderStateType.RUNNING)
+                {
+                onDone(this, state);
+                }
+            }
+        }
+    }
@@ -0,0 +1,88 @@
+package org.lastbamboo.common.download;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.littleshoot.util.DaemonThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single thread that makes the assignment decisions for downloads.  Every
+ * decision for a download runs serially on its scheduler, so the decisions
+ * never need to lock against each other, and nothing ever waits on a source
+ * or a range.  We react to events instead, so one scheduler can coordinate 
+ * many downloads at once.  Tasks should be short and should never block.
+ */
+public final class DownloadScheduler
+    {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(DownloadScheduler.class);
+    
+    private static final DownloadScheduler SHARED = 
+        new DownloadScheduler("Download-Scheduler-Thread");
+    
+    private final ExecutorService m_executor;
+    
+    /**
+     * Creates a new scheduler with its own thread.
+     * 
+     * @param threadName The name of the scheduler thread.
+     */
+    public DownloadScheduler(final String threadName)
+        {
+        m_executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable runnable)
+                {
+                return new DaemonThread(runnable, threadName);
+                }
+            });
+        }
+    
+    /**
+     * Accessor for the scheduler shared by all downloads that don't have
+     * their own.
+     * 
+     * @return The shared scheduler.
+     */
+    public static DownloadScheduler getShared()
+        {
+        return SHARED;
+        }
+    
+    /**
+     * Runs the given task on the scheduler thread after any tasks already
+     * queued.
+     * 
+     * @param task The task to run.
+     */
+    public void execute(final Runnable task)
+        {
+        m_executor.execute(new Runnable()
+            {
+            public void run()
+                {
+                try
+                    {
+                    task.run();
+                    }
+                catch (final Throwable t)
+                    {
+                    LOG.error("Error running scheduler task: " + task, t);
+                    }
+                }
+            });
+        }
+    
+    /**
+     * Stops the scheduler thread once the tasks already queued have run.
+     * The shared scheduler should never be shut down.
+     */
+    public void shutdown()
+        {
+        m_executor.shutdown();
+        }
+    }
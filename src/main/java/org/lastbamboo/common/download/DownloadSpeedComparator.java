@@ -9,7 +9,8 @@ import org.littleshoot.util.Some;
 
 /**
  * Comparator that compares downloaders based on their speed.  Faster 
- * downloaders are preferred over slower ones.
+ * downloaders are preferred over slower ones.  Until we know their speeds,
+ * downloaders with lower round trip times are preferred.
  */
 public class DownloadSpeedComparator implements Comparator<RangeDownloader>
     {
@@ -61,8 +62,29 @@ public class DownloadSpeedComparator implements Comparator<RangeDownloader>
             return -1;
             }
         else
+            {
+            return compareRtt (dl0.getRtt (), dl1.getRtt ());
+            }
+        }
+    
+    private static int compareRtt (final long rtt0, final long rtt1)
+        {
+        // Unknown round trip times go last.
+        if (rtt0 == rtt1)
             {
             return 0;
             }
+        else if (rtt0 == -1)
+            {
+            return 1;
+            }
+        else if (rtt1 == -1)
+            {
+            return -1;
+            }
+        else
+            {
+            return rtt0 < rtt1 ? -1 : 1;
+            }
         }
     }
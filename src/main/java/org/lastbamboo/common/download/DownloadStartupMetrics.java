@@ -0,0 +1,131 @@
+package org.lastbamboo.common.download;
+
+/**
+ * Tracks how quickly a download gets going: the time until the first byte
+ * arrives from any source and the time until the download reaches full 
+ * speed.  We consider the download to have reached full speed the first time
+ * its rate came within {@link #FULL_SPEED_FRACTION} of the highest rate seen
+ * so far, so this settles as the download goes on.
+ */
+public class DownloadStartupMetrics
+    {
+    
+    /**
+     * The fraction of the peak rate at which we consider the download to be
+     * running at full speed.
+     */
+    public static final double FULL_SPEED_FRACTION = 0.9;
+    
+    /**
+     * We don't sample the rate more often than this, as calculating the rate
+     * isn't free and we get called for every buffer read.
+     */
+    private static final long SAMPLE_INTERVAL = 250L;
+
+    private volatile long m_startTime = -1L;
+    
+    private volatile long m_firstByteTime = -1L;
+    
+    private volatile long m_fullSpeedTime = -1L;
+    
+    private double m_peakRate = 0.0;
+    
+    private double m_rateAtFullSpeed = 0.0;
+    
+    private long m_lastSampleTime = -1L;
+
+    /**
+     * Called when the download starts contacting sources.
+     */
+    public void onStart()
+        {
+        this.m_startTime = System.currentTimeMillis();
+        }
+    
+    /**
+     * Returns whether or not it's time to take another rate sample.  
+     * 
+     * @return <code>true</code> if the caller should call 
+     * {@link #onRate(double)}, otherwise <code>false</code>.
+     */
+    public synchronized boolean shouldSample()
+        {
+        final long now = System.currentTimeMillis();
+        if (this.m_firstByteTime == -1L)
+            {
+            this.m_firstByteTime = now;
+            }
+        if (now - this.m_lastSampleTime < SAMPLE_INTERVAL)
+            {
+            return false;
+            }
+        this.m_lastSampleTime = now;
+        return true;
+        }
+
+    /**
+     * Records a sample of the current download rate.
+     * 
+     * @param rate The current rate.
+     */
+    public synchronized void onRate(final double rate)
+        {
+        if (rate > this.m_peakRate)
+            {
+            this.m_peakRate = rate;
+            if (this.m_fullSpeedTime != -1L && 
+                this.m_rateAtFullSpeed < rate * FULL_SPEED_FRACTION)
+                {
+                // We've sped up well past what we thought was full speed.
+                this.m_fullSpeedTime = -1L;
+                }
+            }
+        if (this.m_fullSpeedTime == -1L && 
+            rate >= this.m_peakRate * FULL_SPEED_FRACTION && rate > 0.0)
+            {
+            this.m_fullSpeedTime = System.currentTimeMillis();
+            this.m_rateAtFullSpeed = rate;
+            }
+        }
+
+    /**
+     * Accessor for the time between the start of the download and the first
+     * byte arriving from any source.
+     * 
+     * @return The time to first byte in milliseconds, or -1 if no bytes have
+     * arrived.
+     */
+    public long getTimeToFirstByte()
+        {
+        return elapsed(this.m_firstByteTime);
+        }
+    
+    /**
+     * Accessor for the time between the start of the download and the 
+     * download reaching full speed.
+     * 
+     * @return The time to full speed in milliseconds, or -1 if we don't know
+     * yet.
+     */
+    public long getTimeToFullSpeed()
+        {
+        return elapsed(this.m_fullSpeedTime);
+        }
+
+    private long elapsed(final long time)
+        {
+        if (time == -1L || this.m_startTime == -1L)
+            {
+            return -1L;
+            }
+        return time - this.m_startTime;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " time to first byte: " + 
+            getTimeToFirstByte() + "ms time to full speed: " + 
+            getTimeToFullSpeed() + "ms";
+        }
+    }
@@ -0,0 +1,295 @@
+package org.lastbamboo.common.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang.math.LongRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Streams a downloading file to a single subscriber as the subscriber asks
+ * for it, instead of blocking a thread in a write like
+ * {@link DownloadingFileLauncher}.  We send whatever's contiguous from the
+ * start of the file each time the subscriber asks for more or a range
+ * completes, on whichever thread that happens.  Only one thread ever sends
+ * at a time.
+ */
+final class DownloadStreamPublisher implements LaunchFileReader,
+    DownloadStreamSubscription
+    {
+
+    /**
+     * The most we send in a single buffer.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final File m_incompleteFile;
+
+    private final File m_completeFile;
+
+    private final CompletedRanges m_completedRanges;
+
+    private final DownloadStreamSubscriber m_subscriber;
+
+    private final LaunchFileDispatcher m_dispatcher;
+
+    /**
+     * The position of the next byte to send.  This is only touched while
+     * sending.
+     */
+    private long m_position = 0L;
+
+    private volatile boolean m_completeFlag;
+
+    private volatile IOException m_failure;
+
+    private volatile boolean m_cancelled = false;
+
+    /**
+     * Whether we've sent the subscriber its last call.  This is only
+     * touched while sending.
+     */
+    private boolean m_terminated = false;
+
+    /**
+     * Our own handle on the file, so we never contend with the downloader
+     * for the file pointer and never care when the downloader closes its
+     * handle.
+     */
+    private RandomAccessFile m_file;
+
+    private final AtomicLong m_demand = new AtomicLong(0L);
+
+    /**
+     * The number of times we've been asked to send since sending started.
+     * Whoever takes this from zero sends until it's back to zero.
+     */
+    private final AtomicInteger m_sendRequests = new AtomicInteger(0);
+    
+    private final Runnable m_sendTask = new Runnable()
+        {
+        public void run()
+            {
+            send();
+            }
+        };
+    
+    /**
+     * The position we've asked to hear about, or -1 if we're not waiting.
+     * This is only touched while sending.
+     */
+    private long m_waitingAt = -1L;
+
+    /**
+     * Creates a new publisher.
+     *
+     * @param incompleteFile The file we're downloading to.
+     * @param completeFile Where the file ends up once it's complete, or 
+     * <code>null</code> if it never moves.
+     * @param completedRanges The ranges that have completed, shared with 
+     * the rest of the download.
+     * @param complete Whether the whole file has already downloaded.
+     * @param subscriber The subscriber to send the file to.
+     * @param dispatcher The dispatcher to remove ourselves from when we're
+     * done.
+     */
+    DownloadStreamPublisher(final File incompleteFile,
+        final File completeFile, final CompletedRanges completedRanges, final boolean complete,
+        final DownloadStreamSubscriber subscriber,
+        final LaunchFileDispatcher dispatcher)
+        {
+        m_incompleteFile = incompleteFile;
+        m_completeFile = completeFile;
+        m_completedRanges = completedRanges;
+        m_completeFlag = complete;
+        m_subscriber = subscriber;
+        m_dispatcher = dispatcher;
+        }
+
+    /**
+     * Opens the file and hands the subscriber its subscription.
+     */
+    void start()
+        {
+        try
+            {
+            m_file = 
+                LaunchFileDispatcher.openFile(m_incompleteFile, m_completeFile);
+            }
+        catch (final IOException e)
+            {
+            m_log.warn("Could not open file for streaming: " +
+                m_incompleteFile, e);
+            m_failure = e;
+            }
+        m_subscriber.onSubscribe(this);
+        send();
+        }
+
+    public void request(final long n)
+        {
+        if (n <= 0)
+            {
+            m_failure = new IOException("Bad request for " + n + " buffers");
+            }
+        else
+            {
+            while (true)
+                {
+                final long demand = m_demand.get();
+                final long sum = demand + n;
+                final long newDemand = sum < 0 ? Long.MAX_VALUE : sum;
+                if (m_demand.compareAndSet(demand, newDemand))
+                    {
+                    break;
+                    }
+                }
+            }
+        send();
+        }
+
+    public void cancel()
+        {
+        m_cancelled = true;
+        send();
+        }
+
+    public void onRangeComplete(final LongRange range)
+        {
+        // This sends if it's the range we're waiting for.
+        m_completedRanges.add(range);
+        }
+
+    public void onFileComplete()
+        {
+        m_completeFlag = true;
+        send();
+        }
+
+    public void onFailure()
+        {
+        m_failure = new IOException("Download failed: " +
+            m_incompleteFile.getName());
+        send();
+        }
+
+    public void onDownloadStopped()
+        {
+        m_failure = new IOException("Download stopped: " +
+            m_incompleteFile.getName());
+        send();
+        }
+
+    /**
+     * Sends whatever the subscriber has asked for and we have, unless
+     * another thread already is, in which case that thread sends it for us.
+     */
+    private void send()
+        {
+        if (m_sendRequests.getAndIncrement() != 0)
+            {
+            return;
+            }
+        int requests = 1;
+        do
+            {
+            sendAvailable();
+            requests = m_sendRequests.addAndGet(-requests);
+            }
+        while (requests != 0);
+        }
+
+    private void sendAvailable()
+        {
+        while (!m_terminated)
+            {
+            if (m_cancelled)
+                {
+                terminate();
+                return;
+                }
+            final IOException failure = m_failure;
+            if (failure != null)
+                {
+                terminate();
+                m_subscriber.onError(failure);
+                return;
+                }
+            // Check the complete flag first, as all the ranges are in by 
+            // the time it's set.
+            final boolean complete = m_completeFlag;
+            final long available = 
+                m_completedRanges.getContiguousEnd(m_position) - m_position;
+            if (available == 0)
+                {
+                if (complete)
+                    {
+                    terminate();
+                    m_subscriber.onComplete();
+                    }
+                else if (m_waitingAt != m_position)
+                    {
+                    // Only wake up for the byte we need next.
+                    m_waitingAt = m_position;
+                    m_completedRanges.notifyWhenAvailable(m_position, 
+                        m_sendTask);
+                    }
+                return;
+                }
+            if (m_demand.get() == 0)
+                {
+                return;
+                }
+
+            final byte[] bytes =
+                new byte[(int) Math.min(available, BUFFER_SIZE)];
+            try
+                {
+                m_file.seek(m_position);
+                m_file.readFully(bytes);
+                }
+            catch (final IOException e)
+                {
+                m_log.debug("Could not read file: " +
+                    m_incompleteFile.getName(), e);
+                terminate();
+                m_subscriber.onError(e);
+                return;
+                }
+            m_position += bytes.length;
+            if (m_demand.get() != Long.MAX_VALUE)
+                {
+                m_demand.decrementAndGet();
+                }
+            m_subscriber.onNext(ByteBuffer.wrap(bytes));
+            }
+        }
+
+    private void terminate()
+        {
+        m_terminated = true;
+        m_dispatcher.removeReader(this);
+        if (m_waitingAt != -1L)
+            {
+            m_completedRanges.cancelNotify(m_waitingAt, m_sendTask);
+            }
+        if (m_file != null)
+            {
+            try
+                {
+                m_file.close();
+                }
+            catch (final IOException e)
+                {
+                m_log.debug("Error closing file", e);
+                }
+            }
+        }
+    }
@@ -0,0 +1,44 @@
+package org.lastbamboo.common.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the bytes of a file in order as they download, only ever as many
+ * buffers as it has asked for.  This lets non-blocking servers stream
+ * downloads in progress to many clients without tying up a thread for each.
+ * Calls to a subscriber are never concurrent, but they can come from any 
+ * thread, including the threads downloading the file, so they should never 
+ * block.
+ */
+public interface DownloadStreamSubscriber
+    {
+
+    /**
+     * Called first with the subscription for requesting bytes.  Nothing is
+     * sent until the subscriber requests it.
+     * 
+     * @param subscription The subscription.
+     */
+    void onSubscribe(DownloadStreamSubscription subscription);
+
+    /**
+     * Called with the next buffer of the file.
+     * 
+     * @param buffer The buffer.
+     */
+    void onNext(ByteBuffer buffer);
+
+    /**
+     * Called if the download fails or is stopped, or if we can't read the 
+     * file.  No more calls follow this one.
+     * 
+     * @param t The cause.
+     */
+    void onError(Throwable t);
+
+    /**
+     * Called once the whole file has been sent.  No more calls follow this
+     * one.
+     */
+    void onComplete();
+    }
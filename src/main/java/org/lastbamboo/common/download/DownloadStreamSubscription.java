@@ -0,0 +1,22 @@
+package org.lastbamboo.common.download;
+
+/**
+ * A subscriber's link to the file it's streaming.
+ */
+public interface DownloadStreamSubscription
+    {
+
+    /**
+     * Requests the specified number of further buffers.  Requests add up,
+     * and a request for {@link Long#MAX_VALUE} buffers asks for everything.
+     * 
+     * @param n The number of buffers.  This must be positive.
+     */
+    void request(long n);
+
+    /**
+     * Stops sending buffers and lets go of the file.  This does not stop 
+     * the download itself.
+     */
+    void cancel();
+    }
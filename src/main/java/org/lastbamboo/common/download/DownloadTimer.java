@@ -0,0 +1,92 @@
+package org.lastbamboo.common.download;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.littleshoot.util.DaemonThread;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Single timer thread shared by all downloads for periodic checks and 
+ * delayed work.  This keeps us from creating a new thread every time we 
+ * need to wait on something.  Tasks should be short and should never block.
+ */
+public final class DownloadTimer
+    {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(DownloadTimer.class);
+    
+    private static final ScheduledExecutorService TIMER = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+            public Thread newThread(final Runnable runnable)
+                {
+                return new DaemonThread(runnable, "Download-Timer-Thread");
+                }
+            });
+    
+    private DownloadTimer()
+        {
+        // Should not be constructed.
+        }
+    
+    /**
+     * Runs the given task once after the specified delay.
+     * 
+     * @param task The task to run.
+     * @param delay The delay before running the task.
+     * @param unit The unit of the delay.
+     * @return The future for cancelling the task.
+     */
+    public static ScheduledFuture<?> schedule(final Runnable task, 
+        final long delay, final TimeUnit unit)
+        {
+        return TIMER.schedule(new SafeRunnable(task), delay, unit);
+        }
+    
+    /**
+     * Runs the given task repeatedly with the given period.
+     * 
+     * @param task The task to run.
+     * @param period The period between runs.
+     * @param unit The unit of the period.
+     * @return The future for cancelling the task.
+     */
+    public static ScheduledFuture<?> scheduleAtFixedRate(final Runnable task,
+        final long period, final TimeUnit unit)
+        {
+        return TIMER.scheduleAtFixedRate(new SafeRunnable(task), period, 
+            period, unit);
+        }
+    
+    /**
+     * Wrapper that keeps a failing task from silently killing its schedule.
+     */
+    private static final class SafeRunnable implements Runnable
+        {
+        
+        private final Runnable m_task;
+
+        private SafeRunnable(final Runnable task)
+            {
+            m_task = task;
+            }
+
+        public void run()
+            {
+            try
+                {
+                m_task.run();
+                }
+            catch (final Throwable t)
+                {
+                LOG.error("Error running timer task: " + m_task, t);
+                }
+            }
+        }
+    }
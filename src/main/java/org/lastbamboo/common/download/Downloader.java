@@ -15,6 +15,16 @@ public interface Downloader<StateT>
      */
     void start ();
     
+    /**
+     * Starts downloading the resource without waiting for the download to
+     * finish.  This returns right away, even before we've looked up the 
+     * sources for the resource.
+     * 
+     * @return The future that completes with the final state of this 
+     * downloader, whether the download succeeded or failed.
+     */
+    DownloadFuture<StateT> startAsync ();
+    
     /**
      * Returns the current state of this downloader.
      * 
@@ -55,6 +65,17 @@ public interface Downloader<StateT>
      */
     void write (OutputStream os, boolean cancelOnStreamClose);
     
+    /**
+     * Streams the resource that this downloader downloads to the given 
+     * subscriber as the subscriber asks for it.  Unlike 
+     * {@link #write(OutputStream, boolean)}, this never blocks, so servers
+     * can stream a download in progress to many clients without a thread
+     * for each.  The download does not have to be complete.
+     * 
+     * @param subscriber The subscriber to stream the resource to.
+     */
+    void subscribe (DownloadStreamSubscriber subscriber);
+    
     /**
      * Adds a listener to be notified of events of this downloader.
      * @param listener The listener to be notified.
@@ -108,4 +129,13 @@ public interface Downloader<StateT>
      */
     long getStartTime();
     
+    /**
+     * Accessor for the total bytes the download has read so far.  This 
+     * keeps going up while the download makes progress, even when its 
+     * state doesn't change.
+     * 
+     * @return The total bytes read.
+     */
+    long getBytesRead();
+    
     }
@@ -0,0 +1,18 @@
+package org.lastbamboo.common.download;
+
+/**
+ * Factory for creating downloaders on demand, such as when there's no 
+ * download of the same file already running to share.
+ * 
+ * @param <StateT> The downloader state type.
+ */
+public interface DownloaderFactory<StateT extends DownloaderState>
+    {
+
+    /**
+     * Creates a new downloader.  The downloader should not be started.
+     * 
+     * @return The new downloader.
+     */
+    Downloader<StateT> createDownloader();
+    }
@@ -26,7 +26,24 @@ public class DownloadingFileLauncher implements LaunchFileTracker
 
     private final Logger m_log = LoggerFactory.getLogger(getClass()); 
     
-    private final PriorityBlockingQueue<LongRange> m_completedRanges;
+    private final CompletedRanges m_completedRanges;
+    
+    /**
+     * Lock the writer waits on for the next byte it needs or for the 
+     * download to end.
+     */
+    private final Object m_lock = new Object();
+    
+    private final Runnable m_wakeUp = new Runnable()
+        {
+        public void run()
+            {
+            synchronized (m_lock)
+                {
+                m_lock.notifyAll();
+                }
+            }
+        };
     private final RandomAccessFile m_randomAccessFile;
     
     private volatile long m_rangeIndex = 0L;
@@ -37,10 +54,17 @@ public class DownloadingFileLauncher implements LaunchFileTracker
 
     private DigestOutputStream m_digestOutputStream;
 
+    /**
+     * Our own handle on the file, if we know the file.
+     */
+    private RandomAccessFile m_file;
+
     private volatile boolean m_writtenAll = false;
 
     private final File m_incompleteFile;
 
+    private final File m_completeFile;
+
     /**
      * Flag for whether or not the stream we're writing to is closed.
      */
@@ -67,6 +91,43 @@ public class DownloadingFileLauncher implements LaunchFileTracker
         final PriorityBlockingQueue<LongRange> completedRanges, 
         final URI expectedSha1, final File incompleteFile)
         {
+        this(raf, new CompletedRanges(completedRanges), expectedSha1, 
+            incompleteFile);
+        }
+    
+    /**
+     * Creates a new tracker for streaming the file to the browser that 
+     * shares the set of completed ranges with the rest of the download.
+     * 
+     * @param raf The random access file to copy the downloaded data from.
+     * @param completedRanges The ranges that have completed downloading so
+     * far, which grows as the download goes.
+     * @param expectedSha1 The expected SHA-1 for the file.
+     * @param incompleteFile The incomplete file on disk.
+     */
+    public DownloadingFileLauncher(final RandomAccessFile raf, 
+        final CompletedRanges completedRanges, final URI expectedSha1, 
+        final File incompleteFile)
+        {
+        this(raf, completedRanges, expectedSha1, incompleteFile, null);
+        }
+    
+    /**
+     * Creates a new tracker for streaming the file to the browser that can
+     * still find the file if it moves to its final location before we 
+     * open it.
+     * 
+     * @param raf The random access file to copy the downloaded data from.
+     * @param completedRanges The ranges that have completed downloading so
+     * far, which grows as the download goes.
+     * @param expectedSha1 The expected SHA-1 for the file.
+     * @param incompleteFile The incomplete file on disk.
+     * @param completeFile Where the file ends up once it's complete.
+     */
+    public DownloadingFileLauncher(final RandomAccessFile raf, 
+        final CompletedRanges completedRanges, final URI expectedSha1, 
+        final File incompleteFile, final File completeFile)
+        {
         if (raf == null)
             {
             throw new NullPointerException("Null RAF");
@@ -79,24 +140,13 @@ public class DownloadingFileLauncher implements LaunchFileTracker
         this.m_completedRanges = completedRanges;
         this.m_expectedSha1 = expectedSha1;
         this.m_incompleteFile = incompleteFile;
+        this.m_completeFile = completeFile;
         }
     
     public void onRangeComplete(final LongRange range)
         {
-        synchronized (this.m_completedRanges)
-            {   
-            //m_log.debug("Adding completed range: "+range);
-            this.m_completedRanges.add(range);
-        
-            // Notify the completed ranges if the range we just got is the
-            // one we're waiting for.
-            if (range.getMinimumLong() == this.m_rangeIndex)
-                {
-                //m_log.debug("Found range we need -- notifying: {}",
-                //   this.m_rangeIndex);
-                this.m_completedRanges.notifyAll();
-                }
-            }
+        // This wakes us up if it's the range we're waiting for.
+        this.m_completedRanges.add(range);
         }
     
     public void onFailure()
@@ -104,10 +154,9 @@ public class DownloadingFileLauncher implements LaunchFileTracker
         this.m_failed = true;
         IOUtils.closeQuietly(this.m_digestOutputStream);
         this.m_streamClosed = true;
-        synchronized (this.m_completedRanges)
+        synchronized (this.m_lock)
             {
-            //m_log.debug("Got lock with remaining ranges: {}",m_completedRanges);
-            this.m_completedRanges.notifyAll();
+            this.m_lock.notifyAll();
             }
         }
     
@@ -116,10 +165,22 @@ public class DownloadingFileLauncher implements LaunchFileTracker
         {
         // Our SHA-1 implementation is much faster than Sun's.
         this.m_digestOutputStream = new DigestOutputStream(os, new Sha1());
+        boolean leaveOpen = false;
         try
             {
+            openFile();
             writeAllRanges(this.m_digestOutputStream);
             m_log.debug("Wrote all ranges...");
+            if (this.m_writtenAll)
+                {
+                // We check before closing the stream, so a mismatch leaves
+                // the response unfinished for the caller to abort instead 
+                // of ending it cleanly.
+                leaveOpen = true;
+                verifySha1();
+                leaveOpen = false;
+                this.m_digestOutputStream.close();
+                }
             }
         catch (final IOException e)
             {
@@ -128,109 +189,111 @@ public class DownloadingFileLauncher implements LaunchFileTracker
             this.m_streamClosed = true;
             throw e;
             }
-        catch (final Throwable t)
+        catch (final RuntimeException e)
             {
-            m_log.warn("Throwable streaming file: " + 
-                this.m_incompleteFile.getName(), t);
+            m_log.warn("Error streaming file: " + 
+                this.m_incompleteFile.getName(), e);
+            this.m_failed = true;
+            this.m_streamClosed = true;
+            throw new IOException("Error streaming file", e);
             }
         finally
             {
-            IOUtils.closeQuietly(this.m_digestOutputStream);
+            if (!leaveOpen)
+                {
+                IOUtils.closeQuietly(this.m_digestOutputStream);
+                }
+            closeFile();
             }
         }
 
-    private void writeAllRanges(final OutputStream os) throws IOException
+    /**
+     * Opens our own handle on the file, so we can keep streaming after the
+     * download closes its handle and moves on.
+     * 
+     * @throws IOException If we can't open the file.
+     */
+    private void openFile() throws IOException
         {
-        if (m_log.isDebugEnabled())
+        if (this.m_incompleteFile != null)
             {
-            m_log.debug("Writing "+this.m_completedRanges.size()+
-                " completed ranges...");
+            this.m_file = LaunchFileDispatcher.openFile(
+                this.m_incompleteFile, this.m_completeFile);
             }
-        while (true)
+        }
+
+    private void closeFile()
+        {
+        if (this.m_file != null)
             {
-            // First, determine how much we can write now.
-            final long startIndex;
-            synchronized (this.m_completedRanges)
+            try
                 {
-                startIndex = this.m_rangeIndex;
-                while (!this.m_completedRanges.isEmpty())
-                    {
-                    //LOG.debug("Incrementing index for range...");
-                    final LongRange nextRange = this.m_completedRanges.peek();
-                    if (nextRange.getMinimumLong() == this.m_rangeIndex)
-                        {
-                        this.m_rangeIndex = nextRange.getMaximumLong() + 1;
-                        this.m_completedRanges.remove();
-                        }
-                    else
-                        {
-                        break;
-                        }
-                    }
+                this.m_file.close();
                 }
-                
+            catch (final IOException e)
+                {
+                m_log.debug("Error closing file", e);
+                }
+            }
+        }
 
-            // This will throw an IOException if the user closes the browser 
-            // window, for example.
-            // This just writes all the ranges we already have.
-            writeRange(startIndex, this.m_rangeIndex, os);
+    private void writeAllRanges(final OutputStream os) throws IOException
+        {
+        while (true)
+            {
+            // First, write everything we already have.  This will throw an
+            // IOException if the user closes the browser window, for 
+            // example.
+            final long endIndex = 
+                this.m_completedRanges.getContiguousEnd(this.m_rangeIndex);
+            if (endIndex > this.m_rangeIndex)
+                {
+                writeRange(this.m_rangeIndex, endIndex, os);
+                this.m_rangeIndex = endIndex;
+                continue;
+                }
             
-            synchronized (this.m_completedRanges)
+            synchronized (this.m_lock)
                 {
-                //m_log.debug("Locked completed range...");
                 if (done())
                     {
-                    m_log.debug("We're done.  Flushing and notifying for: {}", 
-                        m_incompleteFile.getName());
+                    m_log.debug("We're done.  Flushing for: {}", 
+                        m_incompleteFile);
                     os.flush();
-                    os.close();
                     this.m_writtenAll = true;
-                    this.m_completedRanges.notifyAll();
                     return;
                     }
-                final LongRange range = this.m_completedRanges.peek();
-                //m_log.debug("Got range...");
+                if (this.m_failed || this.m_stopped)
+                    {
+                    m_log.debug("Download failed...");
+                    os.flush();
+                    os.close();
+                    return;
+                    }
                 
-                // If there is no new range or it's not the next range we
-                // need, wait until we get it.  
-                if (range == null || 
-                    range.getMinimumLong() != this.m_rangeIndex)
+                // Wait until we get the next byte we need, and only that.
+                final long needed = this.m_rangeIndex;
+                this.m_completedRanges.notifyWhenAvailable(needed, 
+                    this.m_wakeUp);
+                try
                     {
-                    try
+                    if (this.m_completedRanges.getContiguousEnd(needed) == 
+                        needed && !this.m_completeFlag && !this.m_failed &&
+                        !this.m_stopped)
                         {
-                        //m_log.debug("Waiting on completed range. Complete: {}",
-                          //  this.m_complete);
-                        //m_log.debug("Waiting on next range min: {}", 
-                        //    this.m_rangeIndex);
-                        //m_log.debug("Ranges: {}", this.m_completedRanges);
                         timedWait();
-                        
-                        if (this.m_failed || this.m_stopped)
-                            {
-                            m_log.debug("Download failed...");
-                            os.flush();
-                            os.close();
-                            this.m_completedRanges.notifyAll();
-                            return;
-                            }
-                        
-                        //m_log.debug("Finished waiting...");
-                        if (done())
-                            {
-                            m_log.debug("We're done.  Writing any remaining...");
-                            os.flush();
-                            os.close();
-                            this.m_writtenAll = true;
-                            this.m_completedRanges.notifyAll();
-                            return;
-                            }
-                        }
-                    catch (final InterruptedException e)
-                        {
-                        m_log.warn("Interrupted!!", e);
-                        break;
                         }
                     }
+                catch (final InterruptedException e)
+                    {
+                    m_log.warn("Interrupted!!", e);
+                    break;
+                    }
+                finally
+                    {
+                    this.m_completedRanges.cancelNotify(needed, 
+                        this.m_wakeUp);
+                    }
                 }
             }
         }
@@ -243,7 +306,7 @@ public class DownloadingFileLauncher implements LaunchFileTracker
     private void timedWait() throws InterruptedException
         {
         final long waitStart = System.currentTimeMillis();
-        this.m_completedRanges.wait(DateUtils.MILLIS_PER_DAY);
+        this.m_lock.wait(DateUtils.MILLIS_PER_DAY);
         final long waitTime = System.currentTimeMillis() - waitStart;
         if (waitTime > DateUtils.MILLIS_PER_HOUR)
             {
@@ -265,7 +328,8 @@ public class DownloadingFileLauncher implements LaunchFileTracker
      */
     private boolean done()
         {
-        return this.m_completedRanges.isEmpty() && this.m_completeFlag;
+        return this.m_completeFlag && this.m_completedRanges.getContiguousEnd(
+            this.m_rangeIndex) == this.m_rangeIndex;
         }
 
     private void writeRange(final long startIndex, 
@@ -292,10 +356,18 @@ public class DownloadingFileLauncher implements LaunchFileTracker
             final long baseIndex = startIndex + index;
             
             final int numBytesRead;
-            synchronized (this.m_randomAccessFile)
+            if (this.m_file != null)
                 {
-                this.m_randomAccessFile.seek(baseIndex);
-                numBytesRead = this.m_randomAccessFile.read(bytesToCopy);
+                this.m_file.seek(baseIndex);
+                numBytesRead = this.m_file.read(bytesToCopy);
+                }
+            else
+                {
+                synchronized (this.m_randomAccessFile)
+                    {
+                    this.m_randomAccessFile.seek(baseIndex);
+                    numBytesRead = this.m_randomAccessFile.read(bytesToCopy);
+                    }
                 }
             
             // The bytes read should equal the expected length because the
@@ -317,63 +389,26 @@ public class DownloadingFileLauncher implements LaunchFileTracker
         {
         m_log.debug("Received notification file is complete");
         
-        synchronized (this.m_completedRanges)
+        synchronized (this.m_lock)
             {
             this.m_completeFlag = true;
-            //m_log.debug("Got lock with remaining ranges: {}",m_completedRanges);
-            this.m_completedRanges.notifyAll();
             
-            if (this.m_streamClosed)
-                {
-                m_log.debug("Stream is closed...returning");
-                return;
-                }
-            // Wait until everything is copied to the output stream.  This
-            // should not take too long because we're just copying bytes
-            // we already have.  Could see it causing issues in the future
-            // though.
-            while (!this.m_completedRanges.isEmpty())
-                {
-                m_log.debug("Waiting to write remaining bytes...next range: {}", 
-                    this.m_rangeIndex);
-                
-                try
-                    {
-                    timedWait();
-                    }
-                catch (final InterruptedException e)
-                    {
-                    m_log.error("Interrupted while writing...");
-                    }
-                }
+            // We don't wait for the writer to drain what's left.  It reads 
+            // through its own handle on the file and checks the SHA-1 of 
+            // what it wrote when it's done.
+            this.m_lock.notifyAll();
             }
-        
-        verifySha1();
-        m_log.debug("Returning from file complete notification...");
         }
 
-    private void verifySha1()
+    /**
+     * Checks the SHA-1 of everything we wrote.  This is called on the 
+     * writing thread once we've written the whole file.
+     * 
+     * @throws IOException If what we wrote doesn't match the expected 
+     * SHA-1.
+     */
+    private void verifySha1() throws IOException
         {
-        synchronized (m_completedRanges)
-            {
-            while (!m_writtenAll && !m_stopped)
-                {
-                try
-                    {
-                    timedWait();
-                    }
-                catch (final InterruptedException e)
-                    {
-                    m_log.error("Interrupted?", e);
-                    }
-                }
-            }
-        
-        if (m_stopped)
-            {
-            m_log.debug("Download stopped!");
-            return;
-            }
         final byte[] sha1Bytes = 
             this.m_digestOutputStream.getMessageDigest().digest();
 
@@ -393,7 +428,9 @@ public class DownloadingFileLauncher implements LaunchFileTracker
                 {
                 m_log.error("Did not get expected SHA-1!!!  Expected "+
                     this.m_expectedSha1+" but was "+sha1);
-                throw new IllegalStateException("SHA-1 mismatch!!");
+                this.m_failed = true;
+                throw new IOException("SHA-1 mismatch streaming file: " +
+                    this.m_expectedSha1 + " but was " + sha1);
                 }
             else
                 {
@@ -426,12 +463,12 @@ public class DownloadingFileLauncher implements LaunchFileTracker
             return;
             }
         this.m_streamClosed = true;
-        synchronized (this.m_completedRanges)
+        this.m_stopped = true;
+        synchronized (this.m_lock)
             {
-            this.m_completedRanges.notifyAll();
+            this.m_lock.notifyAll();
             }
         
-        this.m_stopped = true;
         if (this.m_digestOutputStream != null)
             {
             IOUtils.closeQuietly(this.m_digestOutputStream);
@@ -77,6 +77,11 @@ public final class DummySha1Downloader<DsT extends DownloaderState>
         return m_delegate.getSize ();
         }
     
+    public long getBytesRead ()
+        {
+        return m_delegate.getBytesRead ();
+        }
+    
     public Sha1DState<DsT> getState ()
         {
         return m_state;
@@ -86,6 +91,14 @@ public final class DummySha1Downloader<DsT extends DownloaderState>
         {
         m_delegate.start ();
         }
+
+    public DownloadFuture<Sha1DState<DsT>> startAsync ()
+        {
+        // We complete our own future once we've checked the delegate's
+        // download, which happens on the delegate's completion thread.
+        m_delegate.startAsync ();
+        return getFuture ();
+        }
  
     public void stop(final boolean removeFiles)
         {
@@ -112,6 +125,11 @@ public final class DummySha1Downloader<DsT extends DownloaderState>
         m_delegate.write (os, cancelOnStreamClose);
         }
 
+    public void subscribe (final DownloadStreamSubscriber subscriber)
+        {
+        m_delegate.subscribe (subscriber);
+        }
+
     public String getFinalName()
         {
         return m_delegate.getFinalName();
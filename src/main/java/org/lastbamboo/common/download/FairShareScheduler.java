@@ -0,0 +1,312 @@
+package org.lastbamboo.common.download;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shares the process bandwidth limit and a budget of connections among 
+ * concurrent downloads in proportion to their weights.  Bandwidth shares
+ * are weighted max-min fair:  a download that can't use its whole share 
+ * gets what it's using plus some room to grow, and the rest goes to the 
+ * downloads that can use it.  We recompute the shares every second and 
+ * whenever downloads come, go or change weight.
+ */
+public final class FairShareScheduler
+    {
+
+    private static final FairShareScheduler SHARED = new FairShareScheduler();
+    
+    /**
+     * How often we recompute the shares, in milliseconds.
+     */
+    private static final long REBALANCE_INTERVAL = 1000;
+    
+    /**
+     * The share below which we consider a download to be using less than 
+     * it's given, as a fraction of its share.
+     */
+    private static final double UNDERUSE_FRACTION = 0.9;
+    
+    /**
+     * The least bandwidth we ever give a download, in bytes per second, so
+     * a download that's been idle can always get going again.
+     */
+    private static final long MIN_SHARE = 16 * 1024;
+    
+    private final Map<WeightedDownload, Usage> m_downloads =
+        new HashMap<WeightedDownload, Usage>();
+    
+    /**
+     * The number of connections to share among downloads, or -1 for no 
+     * limit.
+     */
+    private int m_totalConnections = -1;
+    
+    private ScheduledFuture<?> m_rebalancing;
+    
+    private final Runnable m_rebalanceTask = new Runnable()
+        {
+        public void run()
+            {
+            rebalance();
+            }
+        };
+    
+    /**
+     * Creates a new scheduler with nothing to share yet.
+     */
+    public FairShareScheduler()
+        {
+        }
+    
+    /**
+     * Accessor for the scheduler shared by all downloads.
+     * 
+     * @return The shared scheduler.
+     */
+    public static FairShareScheduler getShared()
+        {
+        return SHARED;
+        }
+    
+    /**
+     * Starts sharing bandwidth and connections with the given download.
+     * 
+     * @param download The download.
+     */
+    public synchronized void register(final WeightedDownload download)
+        {
+        if (m_downloads.containsKey(download))
+            {
+            return;
+            }
+        m_downloads.put(download, new Usage(download.getBytesRead()));
+        if (m_rebalancing == null)
+            {
+            m_rebalancing = DownloadTimer.scheduleAtFixedRate(
+                m_rebalanceTask, REBALANCE_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        rebalance();
+        }
+    
+    /**
+     * Stops sharing with the given download.  This hands its share to the
+     * remaining downloads.
+     * 
+     * @param download The download.
+     */
+    public synchronized void unregister(final WeightedDownload download)
+        {
+        if (m_downloads.remove(download) == null)
+            {
+            return;
+            }
+        download.getBandwidthLimiter().setShare(-1L);
+        download.setConnectionLimit(-1);
+        if (m_downloads.isEmpty())
+            {
+            m_rebalancing.cancel(false);
+            m_rebalancing = null;
+            }
+        else
+            {
+            rebalance();
+            }
+        }
+    
+    /**
+     * Sets the number of connections to share among all downloads.  Every
+     * download always gets at least one.
+     * 
+     * @param totalConnections The number of connections, or zero or less
+     * for no limit.
+     */
+    public synchronized void setTotalConnections(final int totalConnections)
+        {
+        m_totalConnections = totalConnections > 0 ? totalConnections : -1;
+        rebalance();
+        }
+    
+    /**
+     * Recomputes the shares of every download.  Downloads should call this
+     * when their weights change.
+     */
+    public synchronized void rebalance()
+        {
+        if (m_downloads.isEmpty())
+            {
+            return;
+            }
+        final long now = System.currentTimeMillis();
+        final Map<WeightedDownload, Integer> weights = 
+            new HashMap<WeightedDownload, Integer>();
+        long totalWeight = 0;
+        for (final WeightedDownload download : m_downloads.keySet())
+            {
+            final int weight = Math.max(1, download.getEffectiveWeight());
+            weights.put(download, weight);
+            totalWeight += weight;
+            }
+        shareConnections(weights, totalWeight);
+        shareBandwidth(weights, now);
+        }
+
+    private void shareConnections(final Map<WeightedDownload, Integer> weights,
+        final long totalWeight)
+        {
+        for (final Map.Entry<WeightedDownload, Integer> entry : 
+            weights.entrySet())
+            {
+            if (m_totalConnections == -1)
+                {
+                entry.getKey().setConnectionLimit(-1);
+                }
+            else
+                {
+                final long share = 
+                    m_totalConnections * entry.getValue() / totalWeight;
+                entry.getKey().setConnectionLimit((int) Math.max(1, share));
+                }
+            }
+        }
+    
+    private void shareBandwidth(final Map<WeightedDownload, Integer> weights,
+        final long now)
+        {
+        final long total = 
+            BandwidthLimiter.getProcessLimiter().getBytesPerSecond();
+        final List<WeightedDownload> unsatisfied = 
+            new LinkedList<WeightedDownload>();
+        for (final Map.Entry<WeightedDownload, Usage> entry : 
+            m_downloads.entrySet())
+            {
+            entry.getValue().measure(entry.getKey().getBytesRead(), now);
+            if (total == -1L)
+                {
+                entry.getKey().getBandwidthLimiter().setShare(-1L);
+                entry.getValue().m_share = -1L;
+                }
+            else
+                {
+                unsatisfied.add(entry.getKey());
+                }
+            }
+        if (unsatisfied.isEmpty())
+            {
+            return;
+            }
+        
+        // Give downloads that want less than their weighted share what they
+        // want, and split what's left among the rest, until everyone left
+        // wants at least their share.
+        long remaining = total;
+        boolean satisfiedAny = true;
+        while (satisfiedAny && !unsatisfied.isEmpty())
+            {
+            satisfiedAny = false;
+            long weightLeft = 0;
+            for (final WeightedDownload download : unsatisfied)
+                {
+                weightLeft += weights.get(download).intValue();
+                }
+            final long perWeight = remaining / weightLeft;
+            final Iterator<WeightedDownload> iter = unsatisfied.iterator();
+            while (iter.hasNext())
+                {
+                final WeightedDownload download = iter.next();
+                final long fair = perWeight * weights.get(download).intValue();
+                final long demand = getDemand(download);
+                if (demand < fair)
+                    {
+                    setShare(download, demand);
+                    remaining -= demand;
+                    iter.remove();
+                    satisfiedAny = true;
+                    }
+                }
+            }
+        if (unsatisfied.isEmpty())
+            {
+            return;
+            }
+        long weightLeft = 0;
+        for (final WeightedDownload download : unsatisfied)
+            {
+            weightLeft += weights.get(download).intValue();
+            }
+        for (final WeightedDownload download : unsatisfied)
+            {
+            setShare(download, 
+                Math.max(MIN_SHARE, remaining * weights.get(download) / 
+                    weightLeft));
+            }
+        }
+    
+    /**
+     * Estimates how much bandwidth a download could use.  If it used most
+     * of its last share we assume it could use anything.
+     */
+    private long getDemand(final WeightedDownload download)
+        {
+        final Usage usage = m_downloads.get(download);
+        long demand = Long.MAX_VALUE;
+        if (usage.m_share != -1L && usage.m_bytesPerSecond != -1L &&
+            usage.m_bytesPerSecond < usage.m_share * UNDERUSE_FRACTION)
+            {
+            demand = Math.max(MIN_SHARE, 
+                usage.m_bytesPerSecond + usage.m_bytesPerSecond / 4);
+            }
+        final long limit = download.getBandwidthLimiter().getBytesPerSecond();
+        if (limit != -1L)
+            {
+            demand = Math.min(demand, limit);
+            }
+        return demand;
+        }
+    
+    private void setShare(final WeightedDownload download, final long share)
+        {
+        download.getBandwidthLimiter().setShare(share);
+        m_downloads.get(download).m_share = share;
+        }
+    
+    /**
+     * How fast a download has been reading and what we last gave it.
+     */
+    private static final class Usage
+        {
+        private long m_lastBytesRead;
+        private long m_lastMeasured;
+        
+        /**
+         * The rate over the last interval, or -1 if we haven't measured a 
+         * whole interval yet.
+         */
+        private long m_bytesPerSecond = -1L;
+        private long m_share = -1L;
+        
+        private Usage(final long bytesRead)
+            {
+            m_lastBytesRead = bytesRead;
+            m_lastMeasured = System.currentTimeMillis();
+            }
+        
+        private void measure(final long bytesRead, final long now)
+            {
+            final long elapsed = now - m_lastMeasured;
+            if (elapsed < REBALANCE_INTERVAL / 2)
+                {
+                // Too soon to tell, such as when a weight just changed.
+                return;
+                }
+            m_bytesPerSecond = (bytesRead - m_lastBytesRead) * 1000 / elapsed;
+            m_lastBytesRead = bytesRead;
+            m_lastMeasured = now;
+            }
+        }
+    }
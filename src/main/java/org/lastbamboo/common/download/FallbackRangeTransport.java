@@ -0,0 +1,63 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+
+/**
+ * Range transport that uses a preferred transport for sources that support
+ * it and falls back to another transport for everything else.  This is 
+ * typically used to run requests over a multiplexed connection when the
+ * source negotiates it and over plain HTTP otherwise.
+ */
+public class FallbackRangeTransport implements RangeTransport
+    {
+
+    private final RangeTransport m_preferred;
+    
+    private final RangeTransport m_fallback;
+
+    /**
+     * Creates a new transport.
+     * 
+     * @param preferred The transport to use whenever the source supports it.
+     * @param fallback The transport to use otherwise.
+     */
+    public FallbackRangeTransport(final RangeTransport preferred, 
+        final RangeTransport fallback)
+        {
+        if (preferred == null)
+            {
+            throw new NullPointerException("Null preferred transport");
+            }
+        if (fallback == null)
+            {
+            throw new NullPointerException("Null fallback transport");
+            }
+        this.m_preferred = preferred;
+        this.m_fallback = fallback;
+        }
+    
+    public boolean supports(final URI source)
+        {
+        return this.m_preferred.supports(source) || 
+            this.m_fallback.supports(source);
+        }
+    
+    public boolean isMultiplexed(final URI source)
+        {
+        return select(source).isMultiplexed(source);
+        }
+
+    public RangeExchange newExchange(final RangeRequest request)
+        {
+        return select(request.getUri()).newExchange(request);
+        }
+
+    private RangeTransport select(final URI source)
+        {
+        if (this.m_preferred.supports(source))
+            {
+            return this.m_preferred;
+            }
+        return this.m_fallback;
+        }
+    }
@@ -0,0 +1,275 @@
+package org.lastbamboo.common.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+
+import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpException;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.URIException;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.params.HttpMethodParams;
+import org.apache.commons.lang.math.LongRange;
+import org.lastbamboo.common.http.client.CommonsHttpClient;
+import org.lastbamboo.common.http.client.HttpClientRunner;
+import org.lastbamboo.common.http.client.HttpListener;
+import org.lastbamboo.common.http.client.RuntimeHttpException;
+import org.littleshoot.util.InputStreamHandler;
+import org.littleshoot.util.RuntimeIoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Range transport that executes each request as a separate HTTP/1.1 request
+ * using the commons HTTP client.  Concurrent requests to the same host use
+ * separate connections from the client's connection manager.  This is the
+ * only place the commons HTTP client shows through the transport.
+ */
+public class HttpClientRangeTransport implements RangeTransport
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final CommonsHttpClient m_httpClient;
+
+    /**
+     * Creates a new transport.
+     * 
+     * @param httpClient The HTTP client to execute requests with.
+     */
+    public HttpClientRangeTransport(final CommonsHttpClient httpClient)
+        {
+        if (httpClient == null)
+            {
+            throw new NullPointerException("Null HTTP client");
+            }
+        this.m_httpClient = httpClient;
+        }
+    
+    public boolean supports(final URI source)
+        {
+        // We can carry requests to any source.
+        return true;
+        }
+    
+    public boolean isMultiplexed(final URI source)
+        {
+        return false;
+        }
+
+    public RangeExchange newExchange(final RangeRequest request)
+        {
+        final HttpMethod method;
+        if (RangeRequest.HEAD.equals(request.getMethod()))
+            {
+            method = new HeadMethod(request.getUri().toString());
+            }
+        else if (RangeRequest.GET.equals(request.getMethod()))
+            {
+            method = new GetMethod(request.getUri().toString());
+            
+            // See SingleSourceDownloader.copy -- we want to know about 
+            // sources that send more than they should.
+            method.getParams().setBooleanParameter(
+                HttpMethodParams.WARN_EXTRA_INPUT, true);
+            }
+        else
+            {
+            throw new IllegalArgumentException(
+                "Unsupported method: " + request.getMethod());
+            }
+        if (!request.getUri().toString().startsWith("http://"))
+            {
+            // Only straight HTTP servers get quiet retries from the client.
+            // Everything else we retry ourselves, when we choose to.
+            method.getParams().setParameter(HttpMethodParams.RETRY_HANDLER,
+                new DefaultHttpMethodRetryHandler(0, false));
+            }
+        for (final Map.Entry<String, String> header : 
+            request.getHeaders().entrySet())
+            {
+            method.addRequestHeader(header.getKey(), header.getValue());
+            }
+        return new HttpClientExchange(method);
+        }
+    
+    /**
+     * Exchange backed by a commons HTTP client method.
+     */
+    private final class HttpClientExchange implements RangeExchange
+        {
+        
+        private final HttpMethod m_method;
+
+        private HttpClientExchange(final HttpMethod method)
+            {
+            this.m_method = method;
+            }
+
+        public void execute(final RangeResponseListener listener)
+            {
+            final ListenerAdapter adapter = new ListenerAdapter(listener);
+            final Runnable runner = new HttpClientRunner(adapter, 
+                m_httpClient, this.m_method, adapter);
+
+            // Tempting to get rid of this extra thread here.
+            final Thread httpThread = new Thread(runner, 
+                "HTTP-Download-Thread-"+listener.hashCode());
+            httpThread.setDaemon(true);
+            httpThread.start();
+            }
+
+        public void executeAndWait() throws IOException
+            {
+            try
+                {
+                m_httpClient.executeMethod(this.m_method);
+                }
+            catch (final RuntimeHttpException e)
+                {
+                throw new IOException("HTTP error", e);
+                }
+            catch (final RuntimeIoException e)
+                {
+                throw new IOException("IO error", e);
+                }
+            finally
+                {
+                this.m_method.releaseConnection();
+                }
+            }
+
+        public int getStatusCode()
+            {
+            return this.m_method.getStatusCode();
+            }
+
+        public String getResponseHeader(final String name)
+            {
+            final Header header = this.m_method.getResponseHeader(name);
+            if (header == null)
+                {
+                return null;
+                }
+            return header.getValue();
+            }
+
+        public URI getResponseUri()
+            {
+            try
+                {
+                return new URI(this.m_method.getURI().toString());
+                }
+            catch (final URIException e)
+                {
+                m_log.warn("Could not get URI", e);
+                }
+            catch (final URISyntaxException e)
+                {
+                m_log.warn("Could not get URI", e);
+                }
+            return null;
+            }
+
+        public boolean isMultiplexed()
+            {
+            return false;
+            }
+
+        public void abort()
+            {
+            this.m_method.abort();
+            }
+        }
+    
+    /**
+     * Passes events from the commons HTTP client on to a 
+     * {@link RangeResponseListener}.
+     */
+    private static final class ListenerAdapter 
+        implements HttpListener, InputStreamHandler
+        {
+        
+        private final RangeResponseListener m_listener;
+
+        private ListenerAdapter(final RangeResponseListener listener)
+            {
+            this.m_listener = listener;
+            }
+
+        public void handleInputStream(final InputStream is) throws IOException
+            {
+            this.m_listener.handleInputStream(is);
+            }
+
+        public void onBadHeader(final String header)
+            {
+            this.m_listener.onBadHeader(header);
+            }
+
+        public void onBytesRead(final int bytesRead)
+            {
+            this.m_listener.onBytesRead(bytesRead);
+            }
+
+        public void onConnect(final long ms)
+            {
+            this.m_listener.onConnect(ms);
+            }
+
+        public void onContentLength(final long contentLength)
+            {
+            this.m_listener.onContentLength(contentLength);
+            }
+
+        public void onContentRange(final LongRange range) throws IOException
+            {
+            this.m_listener.onContentRange(range);
+            }
+
+        public void onCouldNotConnect()
+            {
+            this.m_listener.onCouldNotConnect();
+            }
+
+        public void onDownloadStarted()
+            {
+            this.m_listener.onDownloadStarted();
+            }
+
+        public void onFailure()
+            {
+            this.m_listener.onFailure();
+            }
+
+        public void onHttpException(final HttpException httpException)
+            {
+            this.m_listener.onProtocolError(httpException);
+            }
+
+        public void onMessageBodyRead()
+            {
+            this.m_listener.onMessageBodyRead();
+            }
+
+        public void onNoTwoHundredOk(final int responseCode)
+            {
+            this.m_listener.onNoTwoHundredOk(responseCode);
+            }
+
+        public void onPermanentFailure()
+            {
+            this.m_listener.onPermanentFailure();
+            }
+
+        public void onStatusEvent(final String status)
+            {
+            this.m_listener.onStatusEvent(status);
+            }
+        }
+    }
@@ -1,17 +1,15 @@
 package org.lastbamboo.common.download;
 
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.channels.Channels;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.math.LongRange;
@@ -29,16 +27,32 @@ public class LaunchFileDispatcher implements LaunchFileTracker
     private final Logger m_log = 
         LoggerFactory.getLogger(LaunchFileDispatcher.class);
     
+    /**
+     * Trackers that hear about every completed range.
+     */
     private final Collection<LaunchFileTracker> m_trackers = 
-        Collections.synchronizedList(new LinkedList<LaunchFileTracker>());
+        new CopyOnWriteArrayList<LaunchFileTracker>();
+    
+    /**
+     * Everyone streaming the file.  These share our completed ranges, so 
+     * we only tell them when the download ends.  Readers can remove
+     * themselves while we're notifying them, so this is copy on write.
+     */
+    private final Collection<LaunchFileReader> m_readers = 
+        new CopyOnWriteArrayList<LaunchFileReader>();
+    
     private final RandomAccessFile m_randomAccessFile;
-    private final PriorityBlockingQueue<LongRange> m_completedRanges;
-    private final int m_initialQueueSize;
-
-    private volatile long m_rangeIndex = 0L;
+    
+    private final CompletedRanges m_completedRanges = new CompletedRanges();
     
     private final File m_incompleteFile;
 
+    /**
+     * Where the file ends up once it's complete, or <code>null</code> if we
+     * don't know.
+     */
+    private final File m_completeFile;
+
     private boolean m_complete = false;
     
     private volatile int m_activeWriteCalls = 0;
@@ -52,14 +66,32 @@ public class LaunchFileDispatcher implements LaunchFileTracker
      * 
      * @param incompleteFile The file on disk.
      * @param raf The random access file to copy the downloaded data from.
-     * @param initialQueueSize The initial size of the queue, loosely based
-     * on number of chunks we're downloading.
+     * @param initialQueueSize The number of chunks we're downloading.  We no
+     * longer need this, as completed ranges always merge.
      * @param expectedSha1 The expected SHA-1 for the file.
      */
     public LaunchFileDispatcher(final File incompleteFile, 
         final RandomAccessFile raf, final int initialQueueSize, 
         final URI expectedSha1)
         {
+        this(incompleteFile, null, raf, initialQueueSize, expectedSha1);
+        }
+    
+    /**
+     * Creates a new tracker for streaming the file to the browser that can
+     * keep serving the file after it moves to its final location.
+     * 
+     * @param incompleteFile The file on disk.
+     * @param completeFile Where the file ends up once it's complete.
+     * @param raf The random access file to copy the downloaded data from.
+     * @param initialQueueSize The number of chunks we're downloading.  We no
+     * longer need this, as completed ranges always merge.
+     * @param expectedSha1 The expected SHA-1 for the file.
+     */
+    public LaunchFileDispatcher(final File incompleteFile, 
+        final File completeFile, final RandomAccessFile raf, 
+        final int initialQueueSize, final URI expectedSha1)
+        {
         if (incompleteFile == null)
             {
             throw new NullPointerException("Null RAF");
@@ -69,34 +101,9 @@ public class LaunchFileDispatcher implements LaunchFileTracker
             throw new NullPointerException("Null ranges");
             }
         this.m_incompleteFile = incompleteFile;
+        this.m_completeFile = completeFile;
         this.m_randomAccessFile = raf;
-        if (initialQueueSize > 0)
-            {
-            // Cap the queue size to avoid using too much memory.
-            if (initialQueueSize > 1000)
-                {
-                this.m_initialQueueSize = 1000;
-                }
-            else
-                {
-                this.m_initialQueueSize = initialQueueSize;
-                }
-            }
-        else
-            {
-            this.m_initialQueueSize = 1;
-            }
         this.m_expectedSha1 = expectedSha1;
-        this.m_completedRanges = createQueue();
-            //new TreeSet<LongRange>(new IncreasingLongRangeComparator());
-        }
-    
-    private PriorityBlockingQueue<LongRange> createQueue()
-        {
-        final Comparator<LongRange> increasingRangeComparator = 
-            new IncreasingLongRangeComparator();
-        return new PriorityBlockingQueue<LongRange>(this.m_initialQueueSize, 
-            increasingRangeComparator);
         }
 
     public void waitForLaunchersToComplete ()
@@ -175,138 +182,122 @@ public class LaunchFileDispatcher implements LaunchFileTracker
 
     private void writeCompleteFile(final OutputStream os) throws IOException
         {
+        InputStream is = null;
         try
             {
-            final InputStream is = new FileInputStream(this.m_incompleteFile);
+            is = openCompleteFile();
             IOUtils.copy(is, os);
             }
         finally
             {
+            IOUtils.closeQuietly(is);
             os.close();
             }
         }
-    
 
-    private void writeDownloadingFile(final OutputStream os, 
-        final boolean cancelOnStreamClose) throws IOException
+    private InputStream openCompleteFile() throws IOException
         {
-        final PriorityBlockingQueue<LongRange> completedRanges = createQueue();
-        final LaunchFileTracker tracker;
-        synchronized (this.m_trackers)
-            {
-            synchronized (this.m_completedRanges)
-                {
-                completedRanges.addAll(this.m_completedRanges);
-                tracker = new DownloadingFileLauncher(this.m_randomAccessFile, 
-                    completedRanges, this.m_expectedSha1, this.m_incompleteFile);
-                this.m_trackers.add(tracker);
-                }
-            }
-        
-        tracker.write(os, cancelOnStreamClose);
+        final RandomAccessFile file = 
+            openFile(this.m_incompleteFile, this.m_completeFile);
+        return Channels.newInputStream(file.getChannel());
         }
 
-    public void onRangeComplete(final LongRange range)
-        {
-        //onRangeCompleteVanilla(range);
-        onRangeCompleteOptimized(range);
-        }
-    
-    private void onRangeCompleteVanilla(final LongRange range)
+    /**
+     * Opens the downloaded file for reading.  Listeners move the file to 
+     * its final location once it's complete, so we look there if it's 
+     * already gone.  Once we have the file open, moving it doesn't matter.
+     * Every reader opens the file this way.
+     * 
+     * @param incompleteFile The file we're downloading to.
+     * @param completeFile Where the file ends up once it's complete, or 
+     * <code>null</code> if it never moves.
+     * @return Our own handle on the file for reading.
+     * @throws FileNotFoundException If we can't find the file in either 
+     * place.
+     */
+    static RandomAccessFile openFile(final File incompleteFile, 
+        final File completeFile) throws FileNotFoundException
         {
-        synchronized (this.m_trackers)
+        try
             {
-            for (final LaunchFileTracker tracker : this.m_trackers)
+            return new RandomAccessFile(incompleteFile, "r");
+            }
+        catch (final FileNotFoundException e)
+            {
+            if (completeFile == null)
                 {
-                //m_log.debug("Notifying all trackers of completed range...");
-                     
-                     // We need to add a range to the global dispatcher range queue
-                     // because new writers might come along and need to know 
-                     // what has already been written.  Note this is just the ranges
-                     // and doesn't take much memory.
-                     synchronized (m_completedRanges)
-                         {
-                         this.m_completedRanges.add(range);
-                         }
-                tracker.onRangeComplete(range);
-                //m_log.debug("Finished range notify...");
+                throw e;
                 }
+            return new RandomAccessFile(completeFile, "r");
             }
         }
     
-    private void onRangeCompleteOptimized(final LongRange range)
+
+    private void writeDownloadingFile(final OutputStream os, 
+        final boolean cancelOnStreamClose) throws IOException
         {
-        // We need to add a range to the global dispatcher range queue
-        // because new writers might come along and need to know 
-        // what has already been written.  Note this is just the ranges
-        // and doesn't take much memory.
-        synchronized (m_completedRanges)
+        final LaunchFileTracker tracker = 
+            new DownloadingFileLauncher(this.m_randomAccessFile, 
+                this.m_completedRanges, this.m_expectedSha1, 
+                this.m_incompleteFile, this.m_completeFile);
+        synchronized (this.m_readers)
             {
-            
-            // This is an optimization to avoid OutOfMemoryErrors, which 
-            // we've seen with very large files.  We basically do a cheap
-            // consolidation of contiguous blocks at the beginning of the queue.
-            // We don't fully consolidate all of it because it's potentially
-            // CPU intensive with large files, but this is a quick and dirty
-            // workaround that goes a long way.
-            if (range.getMinimumLong() == this.m_rangeIndex)
-                {
-                // Just remove the old start range because we know we're
-                // replacing it.  This range is the one that will continually 
-                // grow.  
-                
-                // We don't do it the first time because then it's a
-                // legitimate range, not one of our consolidated ones.
-                if (this.m_rangeIndex != 0L)
-                    {
-                    m_completedRanges.poll();
-                    }
-                
-                this.m_rangeIndex = range.getMaximumLong() + 1L;
-                while (!this.m_completedRanges.isEmpty())
-                    {
-                    final LongRange nextRange = this.m_completedRanges.peek();
-                    if (nextRange.getMinimumLong() == this.m_rangeIndex)
-                        {
-                        this.m_rangeIndex = nextRange.getMaximumLong() + 1L;
-                        this.m_completedRanges.remove();
-                        }
-                    else
-                        {
-                        break;
-                        }
-                    }
-                // Now add back the larger start range.
-                final LongRange startRange = 
-                    new LongRange(0L, this.m_rangeIndex - 1L);
-                this.m_completedRanges.add(startRange);
-                
-                //final LongRange newRange = new LongRange(range.getMinimumLong(), 
-                  //  startRange.getMaximumLong());
-                //notifyTrackers(newRange);
-                }
-            else
+            if (this.m_complete)
                 {
-                this.m_completedRanges.add(range);
+                tracker.onFileComplete();
                 }
+            this.m_readers.add(tracker);
+            }
+        
+        try
+            {
+            tracker.write(os, cancelOnStreamClose);
+            }
+        finally
+            {
+            this.m_readers.remove(tracker);
             }
-        notifyTrackers(range);
         }
-    
-    private void notifyTrackers(final LongRange range)
+
+    /**
+     * Streams the file to the given subscriber as the subscriber asks for
+     * it, without blocking the calling thread.  This works whether or not
+     * the file has finished downloading.
+     * 
+     * @param subscriber The subscriber.
+     */
+    public void subscribe(final DownloadStreamSubscriber subscriber)
         {
-        synchronized (this.m_trackers)
+        final DownloadStreamPublisher publisher;
+        synchronized (this.m_readers)
             {
-             
-            for (final LaunchFileTracker tracker : this.m_trackers)
-                {
-                //m_log.debug("Notifying all trackers of completed range...");
-                tracker.onRangeComplete(range);
-                //m_log.debug("Finished range notify...");
-                }
+            publisher = new DownloadStreamPublisher(this.m_incompleteFile,
+                this.m_completeFile, this.m_completedRanges, this.m_complete, subscriber, this);
+            this.m_readers.add(publisher);
             }
+        publisher.start();
         }
 
+    /**
+     * Stops notifying the given reader.
+     * 
+     * @param reader The reader.
+     */
+    void removeReader(final LaunchFileReader reader)
+        {
+        this.m_readers.remove(reader);
+        }
+
+    public void onRangeComplete(final LongRange range)
+        {
+        // Readers share the set of completed ranges and only wake up when
+        // the range they're waiting for arrives.
+        this.m_completedRanges.add(range);
+        for (final LaunchFileTracker tracker : this.m_trackers)
+            {
+            tracker.onRangeComplete(range);
+            }
+        }
 
     /**
      * Used for testing.
@@ -315,7 +306,7 @@ public class LaunchFileDispatcher implements LaunchFileTracker
      */
     public Collection<LongRange> getRanges()
         {
-        return this.m_completedRanges;
+        return this.m_completedRanges.getRanges();
         }
     /**
      * For testing.
@@ -329,14 +320,29 @@ public class LaunchFileDispatcher implements LaunchFileTracker
 
     public void onFileComplete()
         {
-        synchronized (this.m_trackers)
+        synchronized (this.m_readers)
             {
-            for (final LaunchFileTracker tracker : this.m_trackers)
-                {
-                tracker.onFileComplete();
-                }
+            this.m_complete = true;
+            }
+        for (final LaunchFileTracker tracker : this.m_trackers)
+            {
+            tracker.onFileComplete();
+            }
+        for (final LaunchFileReader reader : this.m_readers)
+            {
+            reader.onFileComplete();
             }
-        this.m_complete = true;
+        }
+
+    /**
+     * Accessor for the number of launchers and subscribers reading the file
+     * as it downloads.
+     * 
+     * @return The number of readers.
+     */
+    public int getNumReaders()
+        {
+        return this.m_readers.size();
         }
 
     public int getActiveWriteCalls()
@@ -346,23 +352,25 @@ public class LaunchFileDispatcher implements LaunchFileTracker
 
     public void onFailure()
         {
-        synchronized (this.m_trackers)
+        for (final LaunchFileTracker tracker : this.m_trackers)
             {
-            for (final LaunchFileTracker tracker : this.m_trackers)
-                {
-                tracker.onFailure();
-                }
+            tracker.onFailure();
+            }
+        for (final LaunchFileReader reader : this.m_readers)
+            {
+            reader.onFailure();
             }
         }
 
     public void onDownloadStopped()
         {
-        synchronized (this.m_trackers)
+        for (final LaunchFileTracker tracker : this.m_trackers)
             {
-            for (final LaunchFileTracker tracker : this.m_trackers)
-                {
-                tracker.onDownloadStopped();
-                }
+            tracker.onDownloadStopped();
+            }
+        for (final LaunchFileReader reader : this.m_readers)
+            {
+            reader.onDownloadStopped();
             }
         }
     }
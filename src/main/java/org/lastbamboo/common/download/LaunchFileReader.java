@@ -0,0 +1,27 @@
+package org.lastbamboo.common.download;
+
+import org.littleshoot.util.LongRangeListener;
+
+/**
+ * Something reading the file as it downloads, which needs to hear about
+ * newly available ranges and about the download ending.
+ */
+public interface LaunchFileReader extends LongRangeListener
+    {
+
+    /**
+     * Called when the file download has completed.
+     */
+    void onFileComplete();
+
+    /**
+     * Called when a download fails for any reason.
+     */
+    void onFailure();
+
+    /**
+     * Called when a download is stopped.
+     */
+    void onDownloadStopped();
+
+    }
@@ -3,13 +3,11 @@ package org.lastbamboo.common.download;
 import java.io.IOException;
 import java.io.OutputStream;
 
-import org.littleshoot.util.LongRangeListener;
-
-
 /**
- * Tracker for the file to launch for immediate viewing.
+ * Tracker for the file to launch for immediate viewing.  Unlike a plain
+ * {@link LaunchFileReader}, a tracker writes the file out itself.
  */
-public interface LaunchFileTracker extends LongRangeListener
+public interface LaunchFileTracker extends LaunchFileReader
     {
 
     /**
@@ -21,11 +19,6 @@ public interface LaunchFileTracker extends LongRangeListener
      */
     void write(OutputStream os, boolean cancelOnStreamClose) throws IOException;
 
-    /**
-     * Called when the file download has completed.
-     */
-    void onFileComplete();
-
     /**
      * Waits until all active launcher have finished their writes, typically
      * to the browser.
@@ -39,14 +32,4 @@ public interface LaunchFileTracker extends LongRangeListener
      */
     int getActiveWriteCalls();
 
-    /**
-     * Called when a download fails for any reason.
-     */
-    void onFailure();
-
-    /**
-     * Called when a download is stopped.
-     */
-    void onDownloadStopped();
-
     }
@@ -6,11 +6,23 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 
 import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
@@ -21,11 +33,8 @@ import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.lang.math.LongRange;
 import org.lastbamboo.common.http.client.CommonsHttpClient;
 import org.lastbamboo.common.http.client.CommonsHttpClientImpl;
-import org.littleshoot.util.None;
-import org.littleshoot.util.Optional;
-import org.littleshoot.util.OptionalVisitor;
+import org.littleshoot.util.DaemonThread;
 import org.littleshoot.util.ResettingMultiThreadedHttpConnectionManager;
-import org.littleshoot.util.Some;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +42,8 @@ import org.slf4j.LoggerFactory;
  * A downloader that can download from multiple sources simultaneously.
  */
 public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
-    implements VisitableDownloader<MsDState>, LittleShootDownloader {
+    implements VisitableDownloader<MsDState>, LittleShootDownloader,
+    WeightedDownload {
     
     /**
      * The log for this class.
@@ -42,13 +52,91 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         LoggerFactory.getLogger(MultiSourceDownloader.class);
     
     /**
-     * Limit on the number of connections to maintain.  We could set this higher
-     * in the future and more aggressively purge slow sources.
+     * Limit on the number of connections to maintain.  Persistently slow 
+     * sources are evicted to make room for untried sources.
      */
     private static final int CONNECTION_LIMIT = 30;
 
+    /**
+     * The number of threads shared by all downloads for looking up sources.
+     */
+    private static final int RESOLVER_THREADS = 4;
+
+    /**
+     * Threads for looking up sources for downloads started with 
+     * {@link #startAsync()}, as resolving blocks.
+     */
+    private static final ExecutorService RESOLVER = 
+        Executors.newFixedThreadPool(RESOLVER_THREADS, new ThreadFactory() {
+            public Thread newThread(final Runnable runnable) {
+                return new DaemonThread(runnable, "Download-Resolver-Thread");
+            }
+        });
+
+    /**
+     * How often to check for slow sources, in milliseconds.
+     */
+    private static final long SOURCE_EVALUATION_INTERVAL = 5 * 1000;
+
+    /**
+     * The default number of hosts to probe in each wave.
+     */
+    private static final int DEFAULT_PROBE_WAVE_SIZE = 8;
+
+    /**
+     * How long to wait before checking back with a partial source that 
+     * doesn't have anything we need, in milliseconds.
+     */
+    private static final long PARTIAL_SOURCE_RETRY_DELAY = 10 * 1000;
+
+    /**
+     * Sources with round trip times over this many milliseconds get small
+     * ranges until we know how fast they are.
+     */
+    private static final long HIGH_RTT = 500;
+    
+    /**
+     * The maximum number of ranges to request from a source at once when 
+     * downloading small ranges.
+     */
+    private static final int MAX_RANGES_PER_REQUEST = 8;
+    
+    /**
+     * Ranges of this size or smaller are batched into multiple range 
+     * requests for sources that support them, as each costs a full round
+     * trip otherwise.
+     */
+    private static final long MULTIPLE_RANGE_PART_SIZE = 64 * 1024;
+    
+    /**
+     * The size of the first range for streamable downloads.  Following 
+     * ranges double in size until they reach the normal range size.
+     */
+    private static final long FAST_START_RANGE_SIZE = 16 * 1024;
+    
+    /**
+     * The number of sources we have race for the first range of streamable
+     * downloads.
+     */
+    private static final int FAST_START_RACERS = 3;
+    
+    /**
+     * The weight downloads get for sharing bandwidth and connections unless
+     * told otherwise.
+     */
+    public static final int DEFAULT_WEIGHT = 10;
+    
+    /**
+     * How much we multiply the weight of streamable downloads while someone
+     * is reading them.
+     */
+    private static final int READER_BOOST = 4;
+
+    private final Comparator<RangeDownloader> m_sourceComparator =
+        new DownloadSpeedComparator ();
+    
     private final SourceRanker m_downloadingRanker = 
-        new SourceRankerImpl (new DownloadSpeedComparator ());
+        new SourceRankerImpl (m_sourceComparator);
     
     private final RateCalculator m_rateCalculator = new RateCalculatorImpl ();
     
@@ -104,13 +192,31 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
      */
     private final RandomAccessFile m_randomAccessFile;
     
-    private final RangeTracker m_rangeTracker;
+    /**
+     * The tracker for the ranges we need.  We can't create this until we 
+     * know how many sources we have.
+     */
+    private volatile RangeTracker m_rangeTracker = new RangeTrackerAdapter();
+    
+    private volatile LaunchFileTracker m_launchFileTracker = 
+        new LaunchFileTrackerAdapter();
+    
+    /**
+     * Released once we've looked up our sources.
+     */
+    private final CountDownLatch m_resolvedLatch = new CountDownLatch(1);
+    
+    /**
+     * Subscribers waiting for us to look up our sources.
+     */
+    private final Collection<DownloadStreamSubscriber> m_pendingSubscribers =
+        new LinkedList<DownloadStreamSubscriber>();
     
-    private final LaunchFileTracker m_launchFileTracker;
+    private final URI m_expectedSha1;
     
     /**
      * Variable for the number of hosts we've connected to and are actively
-     * downloading from.
+     * downloading from.  This only changes on the scheduler thread.
      */
     private volatile int m_numConnections = 0;
     
@@ -133,12 +239,145 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
     private final File m_completeFile;
 
-    private Collection<URI> m_sources = Collections.emptyList();
+    private volatile Collection<URI> m_sources = Collections.emptyList();
 
     private volatile boolean m_failed = false;
 
     private final boolean m_streamable;
 
+    /**
+     * The transport used to carry range requests to sources.
+     */
+    private volatile RangeTransport m_rangeTransport;
+    
+    /**
+     * Whether or not to use the first range request to each source as the
+     * probe instead of a separate HEAD request.
+     */
+    private volatile boolean m_probeWithGet = false;
+    
+    private final DownloadStartupMetrics m_startupMetrics =
+        new DownloadStartupMetrics();
+    
+    /**
+     * The downloaders we've counted as connections.
+     */
+    private final Set<RangeDownloader> m_connectedDownloaders =
+        Collections.synchronizedSet(new HashSet<RangeDownloader>());
+    
+    /**
+     * The race for the first range of streamable downloads.
+     */
+    private volatile RangeRace m_fastStartRace;
+
+    /**
+     * Sources we haven't probed yet, in the order we'd like to try them.
+     */
+    private final LinkedList<URI> m_standbySources = new LinkedList<URI>();
+
+    /**
+     * Downloaders we've sent probes for that haven't answered yet.
+     */
+    private final Set<RangeDownloader> m_probingDownloaders =
+        Collections.synchronizedSet(new HashSet<RangeDownloader>());
+
+    private volatile int m_probeWaveSize = DEFAULT_PROBE_WAVE_SIZE;
+
+    private final SlowSourceEvaluator m_slowSourceEvaluator =
+        new SlowSourceEvaluator();
+    
+    /**
+     * The sources we've evicted for being too slow.
+     */
+    private final Collection<URI> m_evictedSourceUris =
+        Collections.synchronizedList(new LinkedList<URI>());
+    
+    private volatile ScheduledFuture<?> m_sourceEvaluation;
+    
+    private final StallWatchdog m_stallWatchdog = new StallWatchdog();
+    
+    private final SourceValidators m_sourceValidators;
+    
+    private final RedirectCache m_redirectCache = new RedirectCache();
+    
+    /**
+     * Limits the bandwidth of this download.  Everything it reads also 
+     * counts against the process limit.
+     */
+    private final BandwidthLimiter m_bandwidthLimiter = 
+        new BandwidthLimiter(BandwidthLimiter.getProcessLimiter());
+    
+    private final SwarmAvailability m_swarmAvailability = 
+        new SwarmAvailability();
+    
+    /**
+     * What we know about hosts from past downloads, if anything.
+     */
+    private volatile SourceReputationCache m_reputationCache;
+    
+    /**
+     * The circuit breaker for each source, shared by all the connections to
+     * the source.
+     */
+    private final Map<URI, CircuitBreaker> m_circuitBreakers =
+        new HashMap<URI, CircuitBreaker>();
+    
+    private volatile ScheduledFuture<?> m_stallChecks;
+    
+    /**
+     * The scheduler that makes all our assignment decisions.
+     */
+    private volatile DownloadScheduler m_scheduler = 
+        DownloadScheduler.getShared();
+    
+    /**
+     * Shares bandwidth and connections between us and other downloads.
+     */
+    private volatile FairShareScheduler m_fairShareScheduler = 
+        FairShareScheduler.getShared();
+    
+    private volatile int m_weight = DEFAULT_WEIGHT;
+    
+    /**
+     * The number of connections we can use, as set by the fair share 
+     * scheduler.
+     */
+    private volatile int m_connectionLimit = CONNECTION_LIMIT;
+    
+    /**
+     * Whether we've already queued a pass over our sources and ranges that
+     * hasn't run yet.  We only ever need one.
+     */
+    private final AtomicBoolean m_dispatchQueued = new AtomicBoolean(false);
+    
+    private final Runnable m_dispatchTask = new Runnable() {
+        public void run() {
+            m_dispatchQueued.set(false);
+            dispatch();
+        }
+    };
+    
+    private final WorkListener m_workListener = new WorkListener() {
+        public void onWorkAvailable() {
+            requestDispatch();
+        }
+    };
+    
+    /**
+     * Connected sources with nothing to do right now, waiting for a range
+     * to free up.  This is only touched on the scheduler thread.
+     */
+    private final List<RangeDownloader> m_idleDownloaders = 
+        new ArrayList<RangeDownloader>();
+    
+    /**
+     * Whether we've completed, failed or been stopped.  This is only 
+     * written on the scheduler thread.
+     */
+    private volatile boolean m_terminated = false;
+    
+    private final CountDownLatch m_terminatedLatch = new CountDownLatch(1);
+
     /**
      * Constructs a new downloader.
      * 
@@ -166,6 +405,7 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         m_size = size;
         m_uriResolver = uriResolver;
         m_connectionsPerHttpServer = connectionsPerHost;
+        m_sourceValidators = new SourceValidators(size);
         final HttpMethodRetryHandler retryHandler = 
             new DefaultHttpMethodRetryHandler(0, false);
         this.m_httpClient.getParams().setParameter(
@@ -173,6 +413,8 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
         final HttpConnectionManagerParams params = 
             this.m_httpClient.getHttpConnectionManager().getParams();
+        // These are only backstops.  The stall watchdog catches slow and 
+        // dead range requests much sooner based on each source's own rate.
         params.setConnectionTimeout(50 * 1000);
         params.setSoTimeout(30 * 1000);
 
@@ -184,6 +426,7 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         params.setBooleanParameter(
                 HttpConnectionManagerParams.STALE_CONNECTION_CHECK, false);
         params.setBooleanParameter(HttpMethodParams.WARN_EXTRA_INPUT, true);
+        m_rangeTransport = new HttpClientRangeTransport(m_httpClient);
 
         try {
             m_randomAccessFile = new RandomAccessFile(incompleteFile, "rw");
@@ -194,37 +437,263 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         }
 
         m_completeFile = new File(downloadsDir, m_finalName);
+        m_expectedSha1 = expectedSha1;
 
-        m_log.debug("Resolving download sources...");
+        // We look up sources when we start, as resolving blocks.
         setState(MsDState.GETTING_SOURCES);
+    }
 
+    /**
+     * Looks up the sources for the file and sets up tracking for the ranges
+     * we need from them.  This blocks.
+     */
+    private void resolveSources() {
+        m_log.debug("Resolving download sources...");
+        Collection<URI> sources;
         try {
-            this.m_sources = m_uriResolver.resolve(m_uri);
-            if (this.m_sources.isEmpty()) {
+            sources = m_uriResolver.resolve(m_uri);
+            if (sources.isEmpty()) {
                 setState(MsDState.NO_SOURCES_AVAILABLE);
             }
         } catch (final IOException e) {
             m_log.warn("Could not access sources for download", e);
-            this.m_sources = Collections.emptyList();
+            sources = Collections.emptyList();
             setState(MsDState.COULD_NOT_DETERMINE_SOURCES);
         }
-        if (this.m_sources.isEmpty()) {
+        if (sources.isEmpty()) {
             m_log.warn("No sources available for uri: " + m_uri);
-            m_rangeTracker = new RangeTrackerAdapter();
-            m_launchFileTracker = new LaunchFileTrackerAdapter();
-            return;
         } else {
             final URI expectedSha1ToUse;
-            if (expectedSha1 == null) {
-                expectedSha1ToUse = expectedSha1;
+            if (m_expectedSha1 == null) {
+                expectedSha1ToUse = m_expectedSha1;
             } else {
                 expectedSha1ToUse = this.m_uriResolver.getSha1();
             }
-            m_rangeTracker = new RangeTrackerImpl(size, this.m_sources.size());
-            final int numChunks = m_rangeTracker.getNumChunks();
-            m_launchFileTracker = new LaunchFileDispatcher(incompleteFile,
-                    m_randomAccessFile, numChunks, expectedSha1ToUse);
+            final RangeTracker rangeTracker;
+            if (m_streamable) {
+                // Get the first bytes to readers as quickly as we can.
+                rangeTracker = new RangeTrackerImpl(m_size, sources.size(),
+                        new DefaultRangeSizeSelector(), FAST_START_RANGE_SIZE);
+            } else {
+                rangeTracker = new RangeTrackerImpl(m_size, sources.size());
+            }
+            rangeTracker.setWorkListener(m_workListener);
+            m_downloadingRanker.setWorkListener(m_workListener);
+            final int numChunks = rangeTracker.getNumChunks();
+            m_launchFileTracker = new LaunchFileDispatcher(m_incompleteFile,
+                    m_completeFile, m_randomAccessFile, numChunks, 
+                    expectedSha1ToUse);
+            m_rangeTracker = rangeTracker;
+        }
+        m_sources = sources;
+    }
+
+    /**
+     * Sets a transport to prefer for sources that support it, such as a 
+     * transport that multiplexes many range requests over a single 
+     * connection.  Sources the transport does not support fall back to the
+     * default HTTP client.  This must be called before the download starts.
+     * 
+     * @param transport The preferred transport.
+     */
+    public void setRangeTransport(final RangeTransport transport) {
+        m_rangeTransport = new FallbackRangeTransport(transport,
+                new HttpClientRangeTransport(m_httpClient));
+    }
+
+    /**
+     * Sets whether or not to skip the separate HEAD request to each source 
+     * and use the first range request as the probe instead.  This saves a 
+     * round trip per source.  This must be called before the download 
+     * starts.
+     * 
+     * @param probeWithGet Whether or not to probe sources with the first
+     * range request.
+     */
+    public void setProbeWithGet(final boolean probeWithGet) {
+        m_probeWithGet = probeWithGet;
+    }
+
+    /**
+     * Sets the cache of what we've learned about hosts across downloads.
+     * We use it to probe and rank the sources that did well before first,
+     * and we add what we learn in this download to it.  This must be 
+     * called before the download starts.
+     * 
+     * @param reputationCache The cache.
+     */
+    public void setReputationCache(
+            final SourceReputationCache reputationCache) {
+        m_reputationCache = reputationCache;
+    }
+
+    /**
+     * Sets the scheduler to make this download's assignment decisions on.
+     * Downloads use a scheduler shared by all downloads by default.  This
+     * must be called before the download starts.
+     * 
+     * @param scheduler The scheduler.
+     */
+    public void setScheduler(final DownloadScheduler scheduler) {
+        m_scheduler = scheduler;
+    }
+
+    /**
+     * Sets the scheduler that shares bandwidth and connections between this
+     * download and others.  Downloads use a scheduler shared by all 
+     * downloads by default.  This must be called before the download 
+     * starts.
+     * 
+     * @param fairShareScheduler The fair share scheduler.
+     */
+    public void setFairShareScheduler(
+            final FairShareScheduler fairShareScheduler) {
+        m_fairShareScheduler = fairShareScheduler;
+    }
+
+    /**
+     * Sets the weight of this download.  Downloads get shares of bandwidth
+     * and connections in proportion to their weights.  This can change at
+     * any time.
+     * 
+     * @param weight The weight.  Values below one count as one.
+     */
+    public void setWeight(final int weight) {
+        m_weight = Math.max(1, weight);
+        m_fairShareScheduler.rebalance();
+    }
+
+    /**
+     * Accessor for the weight of this download.
+     * 
+     * @return The weight.
+     */
+    public int getWeight() {
+        return m_weight;
+    }
+
+    public int getEffectiveWeight() {
+        if (m_streamable && hasReaders()) {
+            return m_weight * READER_BOOST;
+        }
+        return m_weight;
+    }
+
+    public void setConnectionLimit(final int connectionLimit) {
+        final int limit = connectionLimit > 0 ? 
+            Math.min(connectionLimit, CONNECTION_LIMIT) : CONNECTION_LIMIT;
+        final int oldLimit = m_connectionLimit;
+        m_connectionLimit = limit;
+        if (limit > oldLimit) {
+            m_scheduler.execute(new Runnable() {
+                public void run() {
+                    probeNextWave();
+                }
+            });
+            requestDispatch();
+        }
+    }
+
+    private boolean hasReaders() {
+        final LaunchFileTracker tracker = m_launchFileTracker;
+        return tracker instanceof LaunchFileDispatcher 
+            && ((LaunchFileDispatcher) tracker).getNumReaders() > 0;
+    }
+
+    /**
+     * Sets the number of hosts to probe in each wave.  We only probe another
+     * wave while we have fewer usable and outstanding connections than we
+     * can use.  This must be called before the download starts.
+     * 
+     * @param probeWaveSize The number of hosts to probe in each wave.
+     */
+    public void setProbeWaveSize(final int probeWaveSize) {
+        if (probeWaveSize < 1) {
+            throw new IllegalArgumentException("Bad wave size: "
+                    + probeWaveSize);
+        }
+        m_probeWaveSize = probeWaveSize;
+    }
+
+    /**
+     * Accessor for the sources we've evicted for being too slow, in the 
+     * order we evicted them.
+     * 
+     * @return The evicted sources.
+     */
+    public Collection<URI> getEvictedSources() {
+        synchronized (m_evictedSourceUris) {
+            return new ArrayList<URI>(m_evictedSourceUris);
+        }
+    }
+
+    /**
+     * Accessor for the number of times ranges from each source have stalled
+     * and been requeued.
+     * 
+     * @return The number of stalls for each source that has stalled.
+     */
+    public Map<URI, Integer> getStallsPerSource() {
+        return m_stallWatchdog.getStallsPerSource();
+    }
+
+    /**
+     * Accessor for the sources we've stopped using because they served a
+     * different version of the file than we expected.
+     * 
+     * @return The quarantined sources.
+     */
+    public Set<URI> getQuarantinedSources() {
+        return m_sourceValidators.getQuarantinedSources();
+    }
+
+    /**
+     * Accessor for the number of retries we've scheduled for each source 
+     * after failures.
+     * 
+     * @return The number of retries for each source we've retried.
+     */
+    public Map<URI, Integer> getRetriesPerSource() {
+        final Map<URI, Integer> retries = new HashMap<URI, Integer>();
+        synchronized (m_circuitBreakers) {
+            for (final Map.Entry<URI, CircuitBreaker> entry : 
+                m_circuitBreakers.entrySet()) {
+                final int numRetries = entry.getValue().getNumRetries();
+                if (numRetries > 0) {
+                    retries.put(entry.getKey(), numRetries);
+                }
+            }
         }
+        return retries;
+    }
+
+    /**
+     * Accessor for the number of times we've checked for slow sources.
+     * 
+     * @return The number of slow source evaluations.
+     */
+    public int getNumSourceEvaluations() {
+        return m_slowSourceEvaluator.getNumEvaluations();
+    }
+
+    /**
+     * Accessor for the metrics on how quickly this download got going.
+     * 
+     * @return The startup metrics.
+     */
+    public DownloadStartupMetrics getStartupMetrics() {
+        return m_startupMetrics;
+    }
+
+    /**
+     * Accessor for the bandwidth limiter for this download.  Set a limit on
+     * it to cap how fast the download reads from all its sources combined.
+     * This can change at any time.
+     * 
+     * @return The bandwidth limiter.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return m_bandwidthLimiter;
     }
 
     public void start() {
@@ -235,104 +704,415 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         m_started = true;
 
         try {
+            try {
+                resolveSources();
+            } finally {
+                onResolved();
+            }
             download(m_sources);
+            awaitTermination();
         } catch (final Throwable t) {
             m_log.warn("Unexpected throwable during download", t);
             setState(MsDState.FAILED);
             return;
         } finally {
             // Make sure we close the file.
-            try {
-                m_randomAccessFile.close();
-            } catch (final IOException e) {
-                m_log.warn("Could not close file: " + m_randomAccessFile, e);
+            closeFile();
+        }
+    }
+
+    public DownloadFuture<MsDState> startAsync() {
+        if (this.m_started) {
+            m_log.warn("Already started...");
+            return getFuture();
+        }
+        m_started = true;
+
+        RESOLVER.execute(new Runnable() {
+            public void run() {
+                try {
+                    resolveSources();
+                    download(m_sources);
+                } catch (final Throwable t) {
+                    m_log.warn("Unexpected throwable starting download", t);
+                    setState(MsDState.FAILED);
+                    closeFile();
+                } finally {
+                    onResolved();
+                }
             }
+        });
+        return getFuture();
+    }
+
+    private void onResolved() {
+        final Collection<DownloadStreamSubscriber> subscribers;
+        synchronized (m_pendingSubscribers) {
+            m_resolvedLatch.countDown();
+            subscribers = 
+                new ArrayList<DownloadStreamSubscriber>(m_pendingSubscribers);
+            m_pendingSubscribers.clear();
+        }
+        for (final DownloadStreamSubscriber subscriber : subscribers) {
+            subscribe(subscriber);
         }
     }
 
-    private void connect(final Collection<URI> sources,
-            final SourceRanker downloadSpeedRanker, final int connectionsPerHost) {
-        m_log.debug("Attempting to connection to " + connectionsPerHost
-                + " hosts..");
+    private void closeFile() {
+        try {
+            m_randomAccessFile.close();
+        } catch (final IOException e) {
+            m_log.debug("Error closing file.  Already closed?", e);
+        }
+    }
 
-        // Keep a counter of the number of hosts we've issued head requests to.
-        // We don't want to send out 1000 head requests, for example, so we
-        // cap it.
-        int numHosts = 0;
+    private void awaitTermination() {
+        try {
+            m_terminatedLatch.await();
+        } catch (final InterruptedException e) {
+            m_log.warn("Interrupted waiting for download", e);
+            Thread.currentThread().interrupt();
+            stop(false);
+        }
+    }
 
+    private void connect(final Collection<URI> sources) {
         final Preferences prefs = Preferences.userRoot();
         final long id = prefs.getLong("LITTLESHOOT_ID", -1);
 
-        final Iterator<URI> sourcesIter = sources.iterator();
+        synchronized (m_standbySources) {
+            for (final URI uri : sources) {
+                if (isOurself(uri, id)) {
+                    m_log.info("Ignoring request to download from ourselves");
+                    continue;
+                }
+                m_standbySources.add(uri);
+            }
+            final SourceReputationCache cache = m_reputationCache;
+            if (cache != null) {
+                Collections.sort(m_standbySources, 
+                    cache.newSourceComparator());
+            }
+        }
+        probeNextWave();
+    }
+
+    private static boolean isOurself(final URI uri, final long id) {
+        try {
+            return id == Long.parseLong(uri.getHost());
+        } catch (final NumberFormatException e) {
+            // This is a normal host name and not a LittleShoot peer.
+            return false;
+        }
+    }
+
+    /**
+     * Probes the next wave of standby sources, but only while we have fewer
+     * usable and outstanding connections than we could actually use.  This
+     * keeps us from flooding the network with probes whose responders we'd
+     * just ignore.
+     */
+    private void probeNextWave() {
+        int numHosts = 0;
+        while (numHosts < m_probeWaveSize && !m_stopped && !m_failed
+                && needsConnections()) {
+            final URI uri;
+            synchronized (m_standbySources) {
+                if (m_standbySources.isEmpty()) {
+                    m_log.debug("No more standby sources");
+                    return;
+                }
+                uri = m_standbySources.removeFirst();
+            }
+            probe(uri);
+            ++numHosts;
+        }
+    }
 
-        while (sourcesIter.hasNext() && (numHosts < 100)) {
-            final URI uri = sourcesIter.next();
-            m_log.info("Creating downloader for: ", uri);
-            if (id == Long.parseLong(uri.getHost())) {
-                m_log.info("Ignoring request to download from ourselves");
-                continue;
+    /**
+     * Retires sources that have been far slower than the rest for a while,
+     * as long as we have untried sources to replace them with.
+     */
+    private void evictSlowSources() {
+        final Collection<RangeDownloader> connected;
+        synchronized (m_connectedDownloaders) {
+            connected = new ArrayList<RangeDownloader>(m_connectedDownloaders);
+        }
+        final int numStandby;
+        synchronized (m_standbySources) {
+            numStandby = m_standbySources.size();
+        }
+        final List<RangeDownloader> slow = 
+            m_slowSourceEvaluator.evaluate(connected, numStandby);
+        if (slow.isEmpty()) {
+            return;
+        }
+        for (final RangeDownloader downloader : slow) {
+            if (m_connectedDownloaders.remove(downloader)) {
+                m_log.debug("Evicting slow source: {}", downloader);
+                m_numConnections--;
+                m_idleDownloaders.remove(downloader);
+                
+                // The downloader finishes any range it's working on, but
+                // the ranker won't hand it any more.
+                m_downloadingRanker.remove(downloader);
+                m_evictedSourceUris.add(downloader.getSourceUri());
             }
+        }
+        probeNextWave();
+    }
 
-            // We only use multiple connections to a single host if it's a
-            // straight HTTP server on the public Internet.
-            final int connectionsPerHostToCreate = uri.getScheme().equals(
-                    "http") ? connectionsPerHost : 1;
+    private CircuitBreaker getCircuitBreaker(final URI uri) {
+        synchronized (m_circuitBreakers) {
+            CircuitBreaker breaker = m_circuitBreakers.get(uri);
+            if (breaker == null) {
+                breaker = new CircuitBreaker();
+                m_circuitBreakers.put(uri, breaker);
+            }
+            return breaker;
+        }
+    }
 
-            for (int i = 0; i < connectionsPerHostToCreate; i++) {
-                m_log.debug("Creating connection...");
+    private void seedFromReputation(final SingleSourceDownloader dl) {
+        final SourceReputationCache cache = m_reputationCache;
+        if (cache == null) {
+            return;
+        }
+        final SourceReputation reputation = cache.get(dl.getSourceUri());
+        if (reputation == null) {
+            return;
+        }
+        if (reputation.getBytesPerSecond() != -1L) {
+            dl.setExpectedRate(reputation.getBytesPerSecond());
+        }
+        if (!reputation.isMultipleRangesSupported()) {
+            dl.setMultipleRangesSupported(false);
+        }
+    }
 
-                final RangeDownloader dl = new SingleSourceDownloader(
-                        m_httpClient, uri, m_singleDownloadListener,
-                        downloadSpeedRanker, m_rangeTracker,
-                        m_launchFileTracker, m_randomAccessFile);
+    private boolean needsConnections() {
+        final int target = Math.min(m_connectionLimit,
+                m_rangeTracker.getNumChunks());
+        return m_numConnections + m_probingDownloaders.size() < target;
+    }
 
-                dl.issueHeadRequest();
+    private void probe(final URI uri) {
+        m_log.info("Creating downloader for: ", uri);
+
+        // We only use multiple connections to a single host if it's a
+        // straight HTTP server on the public Internet, or if the transport
+        // multiplexes requests to it so the extra streams cost us no extra
+        // connections.
+        final int connectionsPerHostToCreate = uri.getScheme().equals(
+                "http") || m_rangeTransport.isMultiplexed(uri) ?
+                m_connectionsPerHttpServer : 1;
+
+        for (int i = 0; i < connectionsPerHostToCreate; i++) {
+            m_log.debug("Creating connection...");
+
+            final SingleSourceDownloader dl = new SingleSourceDownloader(
+                    m_rangeTransport, uri, m_singleDownloadListener,
+                    m_downloadingRanker, m_rangeTracker,
+                    m_launchFileTracker, m_randomAccessFile);
+            dl.setProbeWithGet(m_probeWithGet);
+            dl.setStallWatchdog(m_stallWatchdog);
+            dl.setExpectedSize(m_size);
+            dl.setSourceValidators(m_sourceValidators);
+            dl.setRedirectCache(m_redirectCache);
+            dl.setBandwidthLimiter(m_bandwidthLimiter);
+            dl.setCircuitBreaker(getCircuitBreaker(uri));
+            seedFromReputation(dl);
+            if (m_uriResolver instanceof AvailabilityUriResolver) {
+                dl.setAvailability(((AvailabilityUriResolver) m_uriResolver)
+                    .getAvailability(uri));
             }
 
-            ++numHosts;
+            m_probingDownloaders.add(dl);
+            dl.issueHeadRequest();
         }
     }
     
     private void download(final Collection<URI> sources) {
         if (sources.isEmpty()) {
             setState(MsDState.NO_SOURCES_AVAILABLE);
+            closeFile();
+            m_terminatedLatch.countDown();
         } else {
             setState(new MsDState.LittleShootDownloadingState(m_rateCalculator,
                     getNumUniqueHosts(), getSize()));
 
-            connect(sources, this.m_downloadingRanker,
-                    m_connectionsPerHttpServer);
+            m_startupMetrics.onStart();
+            m_scheduler.execute(new Runnable() {
+                public void run() {
+                    connect(sources);
+                }
+            });
+            m_sourceEvaluation = DownloadTimer.scheduleAtFixedRate(
+                new Runnable() {
+                    public void run() {
+                        // Evictions change who's connected, so they're
+                        // decisions for the scheduler.
+                        m_scheduler.execute(new Runnable() {
+                            public void run() {
+                                evictSlowSources();
+                            }
+                        });
+                    }
+                }, SOURCE_EVALUATION_INTERVAL, TimeUnit.MILLISECONDS);
+            m_stallChecks = DownloadTimer.scheduleAtFixedRate(m_stallWatchdog,
+                StallWatchdog.CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+            m_fairShareScheduler.register(this);
+            
+            // This also catches a stop before we started.
+            requestDispatch();
+        }
+    }
 
-            boolean done = false;
+    private void requestDispatch() {
+        if (m_dispatchQueued.compareAndSet(false, true)) {
+            m_scheduler.execute(m_dispatchTask);
+        }
+    }
 
-            while (m_rangeTracker.hasMoreRanges() && !m_stopped && !m_failed
-                    && !done) {
-                m_log.debug("Accessing next source...");
+    /**
+     * Hands out ranges to every source that's ready for one.  This runs on 
+     * the scheduler thread whenever a source or a range frees up, or 
+     * whenever we fail or are stopped, and never waits on anything.
+     */
+    private void dispatch() {
+        if (m_terminated) {
+            cancelTimerTasks();
+            return;
+        }
+        if (m_failed || m_stopped) {
+            onTerminated();
+            return;
+        }
+        if (!m_rangeTracker.hasMoreRanges()) {
+            onRangesComplete();
+            return;
+        }
+        
+        // Rank the sources that just became available along with the ones
+        // that were waiting for a range, and work down the list.
+        final List<RangeDownloader> candidates = 
+            new ArrayList<RangeDownloader>(m_idleDownloaders);
+        m_idleDownloaders.clear();
+        RangeDownloader dl = m_downloadingRanker.pollBestSource();
+        while (dl != null) {
+            candidates.add(dl);
+            dl = m_downloadingRanker.pollBestSource();
+        }
+        Collections.sort(candidates, m_sourceComparator);
+        
+        // Keep within our share of connections, leaving the slowest 
+        // sources idle.
+        int busy = m_numConnections - candidates.size();
+        for (final RangeDownloader candidate : candidates) {
+            if (busy < m_connectionLimit && assign(candidate)) {
+                busy++;
+            } else {
+                m_idleDownloaders.add(candidate);
+            }
+        }
+    }
 
-                final RangeDownloader dl = m_downloadingRanker.getBestSource();
+    /**
+     * Called on the scheduler thread for each source that answers our 
+     * probe.
+     * 
+     * @param downloader The downloader for the source.
+     */
+    private void onConnected(final RangeDownloader downloader) {
+        if (m_terminated) {
+            return;
+        }
+        if (m_numConnections >= m_connectionLimit) {
+            m_log.debug("We already have " + m_numConnections
+                    + " connections.  Ignoring new host...");
+        } else if (m_numConnections >= m_rangeTracker.getNumChunks()) {
+            m_log.debug("We already have a downloader for every chunk!!");
+        } else {
+            m_uniqueSourceUris.add(downloader.getSourceUri());
+            m_connectedDownloaders.add(downloader);
+            m_numConnections++;
+
+            if (joinFastStartRace(downloader)) {
+                m_log.debug("Joined race for first range...");
+            } else if (!assign(downloader)) {
+                m_idleDownloaders.add(downloader);
+            }
+        }
+    }
 
-                m_log.debug("Accessed source...downloading...");
+    /**
+     * Called on the scheduler thread for each source that fails for good,
+     * whether it failed its probe or a range.
+     * 
+     * @param downloader The downloader for the source.
+     */
+    private void onFailed(final RangeDownloader downloader) {
+        if (m_connectedDownloaders.remove(downloader)) {
+            // This can happen when the first range request is the probe.
+            m_numConnections--;
+        }
+        m_probingDownloaders.remove(downloader);
+        m_uniqueFailedSourceUris.add(downloader.getSourceUri());
+        m_swarmAvailability.remove(downloader.getSourceUri());
+        final SourceReputationCache cache = m_reputationCache;
+        if (cache != null) {
+            cache.onFailure(downloader.getSourceUri());
+        }
+        if (m_terminated) {
+            return;
+        }
+        final int remainingSources = m_sources.size()
+                - m_uniqueFailedSourceUris.size();
+        if (remainingSources == 0) {
+            fail();
+        } else {
+            m_log.debug("Continuing download.  Sources remaining: {}",
+                    m_sources.size());
+            
+            // Fail over to our standby sources if we need to.
+            probeNextWave();
+        }
+    }
 
-                if (m_stopped) {
-                    done = true;
-                } else if (this.m_failed) {
-                    done = true;
-                } else if (singleRangeDownload(dl)) {
-                    // This means we're done, so break out of the loop.
+    private void onRangesComplete() {
+        m_terminated = true;
+        cancelTimerTasks();
+        
+        // Listeners verify and move the file when we complete, so we keep 
+        // that off the scheduler thread.
+        final Runnable completer = new Runnable() {
+            public void run() {
+                try {
                     onDownloadComplete();
-                    done = true;
+                } catch (final Throwable t) {
+                    m_log.warn("Unexpected throwable completing download", t);
+                    setState(MsDState.FAILED);
+                } finally {
+                    m_terminatedLatch.countDown();
                 }
             }
-            if (m_failed) {
-                setState(MsDState.FAILED);
-                m_log.debug("The download failed");
-            }
+        };
+        new DaemonThread(completer, "Download-Completion-Thread-" + 
+            m_finalName).start();
+    }
 
-            else if (m_stopped) {
-                setState(MsDState.CANCELED);
-                m_log.debug("The download was cancelled");
-            }
+    private void onTerminated() {
+        m_terminated = true;
+        cancelTimerTasks();
+        if (m_failed) {
+            setState(MsDState.FAILED);
+            m_log.debug("The download failed");
+        } else if (m_stopped) {
+            setState(MsDState.CANCELED);
+            m_log.debug("The download was cancelled");
         }
+        closeFile();
+        m_terminatedLatch.countDown();
     }
 
     private int getNumUniqueHosts() {
@@ -342,21 +1122,18 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
     private void onDownloadComplete() {
         m_log.debug("Downloaded whole file...");
-
-        // First notify the launcher because it needs access to the open
-        // random access file.
+        m_log.info("Probe with GET: " + m_probeWithGet + " " + 
+                m_startupMetrics);
+        m_log.info("Retries per source: {}", getRetriesPerSource());
+
+        // We don't wait for launchers to finish streaming the file here.
+        // They each read through their own handle on the file, so they 
+        // keep going however slow their readers are while we close ours and 
+        // listeners verify and move the file.
         m_launchFileTracker.onFileComplete();
 
-        // Since the download completion and the file launching happen on
-        // different threads, we need to wait until all the launchers have
-        // finished here before notifying listeners that have free reign over
-        // the downloaded file (like moving it!).
-        // We need to make this call after the file complete notification
-        // above because that's the only way the launcher ever completes it's
-        // write (the launcher waits for the complete notification).
-        m_launchFileTracker.waitForLaunchersToComplete();
-
         this.m_connectionManager.shutdown();
+        saveReputations();
 
         try {
             m_randomAccessFile.close();
@@ -377,24 +1154,146 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         }
     }
 
-    private boolean singleRangeDownload(final RangeDownloader downloader) {
-        final Optional<LongRange> oRange = m_rangeTracker.getNextRange();
+    /**
+     * Gives the downloader the next range it should download, if there's 
+     * one waiting.
+     * 
+     * @param downloader The downloader.
+     * @return <code>true</code> if the downloader has work, or 
+     * <code>false</code> if it should wait for a range to free up.
+     */
+    private boolean assign(final RangeDownloader downloader) {
+        final SourceAvailability availability = downloader.getAvailability();
+        m_swarmAvailability.update(downloader.getSourceUri(), availability);
+        if (!availability.isComplete()) {
+            partialSourceDownload(downloader, availability);
+            return true;
+        }
+        final Collection<LongRange> next = 
+            m_rangeTracker.pollNextRanges(1, Long.MAX_VALUE);
+        if (next.isEmpty()) {
+            return false;
+        }
+        final LongRange range = next.iterator().next();
+        m_log.debug("Downloading from downloader: {}", downloader);
+        if (startFastStartRace(downloader, range)) {
+            m_log.debug("Racing for first range...");
+        } else if (downloader.supportsMultipleRanges() && 
+            rangeSize(range) <= MULTIPLE_RANGE_PART_SIZE) {
+            final List<LongRange> ranges = new LinkedList<LongRange>();
+            ranges.add(range);
+            ranges.addAll(m_rangeTracker.pollNextRanges(
+                    MAX_RANGES_PER_REQUEST - 1,
+                    MULTIPLE_RANGE_PART_SIZE));
+            downloader.download(ranges);
+        } else {
+            downloader.download(sizeForSource(downloader, range));
+        }
+        return true;
+    }
 
-        final OptionalVisitor<Boolean, LongRange> visitor = 
-            new OptionalVisitor<Boolean, LongRange>() {
-            public Boolean visitNone(final None<LongRange> none) {
-                return Boolean.TRUE;
-            }
+    /**
+     * Shrinks the range for sources that are far away and that we don't 
+     * know the speed of yet.  A slow source like that holding a big range 
+     * can hold up the whole download.
+     * 
+     * @param downloader The downloader.
+     * @param range The range the downloader was assigned.
+     * @return The range the downloader should download.
+     */
+    private LongRange sizeForSource(final RangeDownloader downloader,
+            final LongRange range) {
+        if (downloader.getRtt() <= HIGH_RTT) {
+            return range;
+        }
+        if (downloader instanceof SingleSourceDownloader
+                && ((SingleSourceDownloader) downloader)
+                        .getBytesPerSecond() != -1L) {
+            return range;
+        }
+        m_log.debug("Using small range for high RTT source: {}", downloader);
+        return m_rangeTracker.splitRange(range, 
+            DefaultRangeSizeSelector.MIN_CHUNK_SIZE);
+    }
 
-            public Boolean visitSome(final Some<LongRange> some) {
-                final LongRange range = some.object();
-                m_log.debug("Downloading from downloader: {}", downloader);
-                downloader.download(range);
-                return Boolean.FALSE;
+    /**
+     * Downloads the rarest range a partial source has that we still need.
+     * 
+     * @param downloader The downloader for the partial source.
+     * @param availability What the source has.
+     */
+    private void partialSourceDownload(final RangeDownloader downloader,
+            final SourceAvailability availability) {
+        final LongRange range = 
+            m_rangeTracker.pollNextRange(availability, m_swarmAvailability);
+        if (range != null) {
+            m_log.debug("Downloading {} from partial source: {}", range, 
+                downloader);
+            downloader.download(range);
+            return;
+        }
+        
+        // The source doesn't have anything we need yet, so check back 
+        // later instead of counting it as a failure.
+        m_log.debug("Nothing to download from partial source: {}", downloader);
+        DownloadTimer.schedule(new Runnable() {
+            public void run() {
+                if (m_uriResolver instanceof AvailabilityUriResolver
+                        && downloader instanceof SingleSourceDownloader) {
+                    ((SingleSourceDownloader) downloader).setAvailability(
+                        ((AvailabilityUriResolver) m_uriResolver)
+                            .getAvailability(downloader.getSourceUri()));
+                }
+                m_downloadingRanker.onAvailable(downloader);
             }
-        };
+        }, PARTIAL_SOURCE_RETRY_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a race across the first few sources to respond for the first
+     * range of a streamable download, as readers can't start until we have
+     * it.
+     * 
+     * @param downloader The first downloader to race.
+     * @param range The range the downloader was assigned.
+     * @return <code>true</code> if we started the race, otherwise 
+     * <code>false</code>.
+     */
+    private boolean startFastStartRace(final RangeDownloader downloader,
+            final LongRange range) {
+        if (!m_streamable || m_fastStartRace != null
+                || range.getMinimumLong() != 0L
+                || rangeSize(range) > FAST_START_RANGE_SIZE) {
+            return false;
+        }
+        final RangeRace race = new RangeRace(range, FAST_START_RACERS);
+        race.join(downloader);
+        m_fastStartRace = race;
+        downloader.race(range, race);
+        return true;
+    }
+
+    /**
+     * Adds a newly connected downloader to the race for the first range if
+     * the race is still open.
+     * 
+     * @param downloader The downloader.
+     * @return <code>true</code> if the downloader joined the race, otherwise
+     * <code>false</code>.
+     */
+    private boolean joinFastStartRace(final RangeDownloader downloader) {
+        final RangeRace race = m_fastStartRace;
+        if (race == null
+                || !downloader.getAvailability().contains(race.getRange())
+                || !race.join(downloader)) {
+            return false;
+        }
+        downloader.race(race.getRange(), race);
+        return true;
+    }
 
-        return oRange.accept(visitor).booleanValue();
+    private static long rangeSize(final LongRange range) {
+        return range.getMaximumLong() - range.getMinimumLong() + 1;
     }
 
     public File getIncompleteFile() {
@@ -415,7 +1314,12 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
     public void write(final OutputStream os, final boolean cancelOnStreamClose) {
         try {
+            // We don't know what we're writing until we have sources.
+            m_resolvedLatch.await();
             m_launchFileTracker.write(os, cancelOnStreamClose);
+        } catch (final InterruptedException e) {
+            m_log.debug("Interrupted waiting for sources", e);
+            Thread.currentThread().interrupt();
         } catch (final IOException e) {
             // This will typically be an exception from the servlet
             // container indicating the user has closed the browser window,
@@ -442,6 +1346,31 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         }
     }
 
+    public void subscribe(final DownloadStreamSubscriber subscriber) {
+        synchronized (m_pendingSubscribers) {
+            if (m_resolvedLatch.getCount() > 0) {
+                // We don't know what we're streaming until we have sources,
+                // and we never wait for them here.
+                m_pendingSubscribers.add(subscriber);
+                return;
+            }
+        }
+        final LaunchFileTracker tracker = m_launchFileTracker;
+        if (tracker instanceof LaunchFileDispatcher) {
+            ((LaunchFileDispatcher) tracker).subscribe(subscriber);
+        } else {
+            subscriber.onSubscribe(new DownloadStreamSubscription() {
+                public void request(final long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IOException("Nothing to stream for: "
+                    + m_finalName));
+        }
+    }
+
     /**
      * Returns whether a given state indicates that we are downloading.
      * 
@@ -463,16 +1392,51 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
         return state.accept(visitor).booleanValue();
     }
 
+    private void cancelTimerTasks() {
+        m_fairShareScheduler.unregister(this);
+        final ScheduledFuture<?> evaluation = m_sourceEvaluation;
+        if (evaluation != null) {
+            evaluation.cancel(false);
+        }
+        final ScheduledFuture<?> stallChecks = m_stallChecks;
+        if (stallChecks != null) {
+            stallChecks.cancel(false);
+        }
+    }
+
+    private void saveReputations() {
+        final SourceReputationCache cache = m_reputationCache;
+        if (cache != null) {
+            cache.save();
+        }
+    }
+
     private void fail() {
         m_failed = true;
-        m_downloadingRanker.onFailed();
-        setState(MsDState.FAILED);
-        m_launchFileTracker.onFailure();
+        
+        // The flag stops new work right away, but the state only changes
+        // on the scheduler thread.
+        m_scheduler.execute(new Runnable() {
+            public void run() {
+                cancelTimerTasks();
+                saveReputations();
+                setState(MsDState.FAILED);
+                m_launchFileTracker.onFailure();
+            }
+        });
+        requestDispatch();
     }
     
     public void stop(final boolean removeFiles) {
         m_stopped = true;
-        setState(MsDState.CANCELED);
+        m_scheduler.execute(new Runnable() {
+            public void run() {
+                cancelTimerTasks();
+                setState(MsDState.CANCELED);
+                m_launchFileTracker.onDownloadStopped();
+            }
+        });
+        requestDispatch();
 
         // Note we don't manually clean up the single source downloaders here
         // because they just complete their current operation and stop. They
@@ -516,27 +1480,39 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
         public void onConnect(final RangeDownloader downloader) {
             m_log.debug("Connected to: " + downloader);
-
-            if (m_numConnections > CONNECTION_LIMIT) {
-                m_log.debug("We already have " + m_numConnections
-                        + " connections.  Ignoring new host...");
-            } else if (m_numConnections >= m_rangeTracker.getNumChunks()) {
-                m_log.debug("We already have a downloader for every chunk!!");
-            } else {
-                m_uniqueSourceUris.add(downloader.getSourceUri());
-                m_numConnections++;
-
-                if (singleRangeDownload(downloader)) {
-                    m_log.debug("Completed download on connect...");
+            m_probingDownloaders.remove(downloader);
+            final SourceReputationCache cache = m_reputationCache;
+            if (cache != null && downloader instanceof SingleSourceDownloader) {
+                final long rtt = ((SingleSourceDownloader) downloader).getRtt();
+                if (rtt != -1L) {
+                    cache.onRtt(downloader.getSourceUri(), rtt);
                 }
             }
+
+            m_scheduler.execute(new Runnable() {
+                public void run() {
+                    onConnected(downloader);
+                }
+            });
         }
 
         public void onBytesRead(final RangeDownloader downloader) {
             m_rateCalculator.addData(downloader);
+            if (m_startupMetrics.shouldSample()) {
+                m_startupMetrics.onRate(m_rateCalculator.getRate());
+            }
         }
 
         public void onDownloadFinished(final RangeDownloader downloader) {
+            final SourceReputationCache cache = m_reputationCache;
+            if (cache != null && downloader instanceof SingleSourceDownloader) {
+                final long rate = 
+                    ((SingleSourceDownloader) downloader).getBytesPerSecond();
+                if (rate != -1L) {
+                    cache.onRangeComplete(downloader.getSourceUri(), rate,
+                        downloader.supportsMultipleRanges());
+                }
+            }
             if (isDownloading(m_state)) {
                 setState(new MsDState.LittleShootDownloadingState(
                         m_rateCalculator, getNumUniqueHosts(), getSize()));
@@ -552,15 +1528,11 @@ public final class MultiSourceDownloader extends AbstractDownloader<MsDState>
 
         public void onFail(final RangeDownloader downloader) {
             m_log.debug("Received a range failure.");
-            m_uniqueFailedSourceUris.add(downloader.getSourceUri());
-            final int remainingSources = m_sources.size()
-                    - m_uniqueFailedSourceUris.size();
-            if (remainingSources == 0) {
-                MultiSourceDownloader.this.fail();
-            } else {
-                m_log.debug("Continuing download.  Sources remaining: {}",
-                        m_sources.size());
-            }
+            m_scheduler.execute(new Runnable() {
+                public void run() {
+                    onFailed(downloader);
+                }
+            });
         }
     }
 
@@ -0,0 +1,280 @@
+package org.lastbamboo.common.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.lang.math.LongRange;
+
+/**
+ * Reads the parts of a multipart/byteranges response body, as sent by 
+ * servers in response to requests for multiple ranges.  See RFC 2616 
+ * section 19.2 and RFC 7233 appendix A.  Callers read the data for each
+ * part from {@link #getPartStream()} after each call to {@link #nextPart()}.
+ */
+public class MultipartByteRangesReader
+    {
+    
+    /**
+     * Cap on the length of header lines so a broken response can't make us
+     * buffer forever.
+     */
+    private static final int MAX_LINE_LENGTH = 8 * 1024;
+
+    private final InputStream m_inputStream;
+    
+    private final String m_delimiter;
+    
+    private final String m_closeDelimiter;
+
+    private PartInputStream m_partStream;
+    
+    private boolean m_closed = false;
+
+    /**
+     * Creates a new reader.
+     * 
+     * @param is The stream for the response body.
+     * @param boundary The boundary from the multipart Content-Type header.
+     */
+    public MultipartByteRangesReader(final InputStream is, 
+        final String boundary)
+        {
+        if (is == null)
+            {
+            throw new NullPointerException("Null stream");
+            }
+        if (StringUtils.isBlank(boundary))
+            {
+            throw new IllegalArgumentException("No boundary");
+            }
+        this.m_inputStream = is;
+        this.m_delimiter = "--" + boundary;
+        this.m_closeDelimiter = this.m_delimiter + "--";
+        }
+    
+    /**
+     * Accesses the boundary from a Content-Type header value if the value 
+     * specifies a multipart/byteranges body.
+     * 
+     * @param contentType The Content-Type header value.
+     * @return The boundary, or <code>null</code> if the content type is not
+     * multipart/byteranges.
+     */
+    public static String getBoundary(final String contentType)
+        {
+        if (StringUtils.isBlank(contentType))
+            {
+            return null;
+            }
+        final String[] params = StringUtils.split(contentType, ";");
+        if (params.length == 0 || !"multipart/byteranges".equalsIgnoreCase(params[0].trim()))
+            {
+            return null;
+            }
+        for (int i = 1; i < params.length; i++)
+            {
+            final String param = params[i].trim();
+            if (param.toLowerCase().startsWith("boundary="))
+                {
+                final String boundary = 
+                    param.substring("boundary=".length()).trim();
+                if (boundary.length() > 1 && boundary.startsWith("\"") && 
+                    boundary.endsWith("\""))
+                    {
+                    return boundary.substring(1, boundary.length() - 1);
+                    }
+                return boundary;
+                }
+            }
+        return null;
+        }
+
+    /**
+     * Advances to the next part in the body, skipping any unread data from
+     * the current part.
+     * 
+     * @return The range of the next part, or <code>null</code> if there are
+     * no more parts.
+     * @throws IOException If there's an error reading the stream or the 
+     * body is malformed.
+     */
+    public LongRange nextPart() throws IOException
+        {
+        if (this.m_closed)
+            {
+            return null;
+            }
+        if (this.m_partStream != null)
+            {
+            this.m_partStream.drain();
+            this.m_partStream = null;
+            }
+        
+        // Skip the preamble or the line break trailing the last part until
+        // we hit a delimiter.
+        while (true)
+            {
+            final String line = readLine();
+            if (line == null)
+                {
+                throw new IOException("Body ended without closing delimiter");
+                }
+            if (line.equals(this.m_closeDelimiter))
+                {
+                this.m_closed = true;
+                return null;
+                }
+            if (line.equals(this.m_delimiter))
+                {
+                break;
+                }
+            }
+        
+        LongRange range = null;
+        while (true)
+            {
+            final String header = readLine();
+            if (header == null)
+                {
+                throw new IOException("Body ended in part headers");
+                }
+            if (header.length() == 0)
+                {
+                break;
+                }
+            final int colon = header.indexOf(':');
+            if (colon > 0 && "Content-Range".equalsIgnoreCase(
+                header.substring(0, colon).trim()))
+                {
+                range = ContentRangeUtils.parseRange(
+                    header.substring(colon + 1));
+                }
+            }
+        if (range == null)
+            {
+            throw new IOException("No Content-Range for part");
+            }
+        this.m_partStream = new PartInputStream(this.m_inputStream,
+            range.getMaximumLong() - range.getMinimumLong() + 1);
+        return range;
+        }
+    
+    /**
+     * Accesses the stream for the data of the current part.  The stream ends
+     * at the end of the part, and closing it does not close the underlying
+     * stream.
+     * 
+     * @return The stream for the current part.
+     */
+    public InputStream getPartStream()
+        {
+        if (this.m_partStream == null)
+            {
+            throw new IllegalStateException("No current part");
+            }
+        return this.m_partStream;
+        }
+
+    private String readLine() throws IOException
+        {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true)
+            {
+            final int b = this.m_inputStream.read();
+            if (b == -1)
+                {
+                if (line.size() == 0)
+                    {
+                    return null;
+                    }
+                break;
+                }
+            if (b == '\n')
+                {
+                break;
+                }
+            if (b != '\r')
+                {
+                line.write(b);
+                }
+            if (line.size() > MAX_LINE_LENGTH)
+                {
+                throw new IOException("Line too long");
+                }
+            }
+        return line.toString("US-ASCII").trim();
+        }
+    
+    /**
+     * Stream for reading a single part.
+     */
+    private static final class PartInputStream extends InputStream
+        {
+
+        private final InputStream m_is;
+        private long m_remaining;
+
+        private PartInputStream(final InputStream is, final long length)
+            {
+            this.m_is = is;
+            this.m_remaining = length;
+            }
+
+        @Override
+        public int read() throws IOException
+            {
+            if (this.m_remaining <= 0)
+                {
+                return -1;
+                }
+            final int b = this.m_is.read();
+            if (b == -1)
+                {
+                throw new IOException("Body ended in part");
+                }
+            this.m_remaining--;
+            return b;
+            }
+        
+        @Override
+        public int read(final byte[] b, final int off, final int len) 
+            throws IOException
+            {
+            if (this.m_remaining <= 0)
+                {
+                return -1;
+                }
+            final int toRead = (int) Math.min(len, this.m_remaining);
+            final int read = this.m_is.read(b, off, toRead);
+            if (read == -1)
+                {
+                throw new IOException("Body ended in part");
+                }
+            this.m_remaining -= read;
+            return read;
+            }
+        
+        @Override
+        public int available() throws IOException
+            {
+            return (int) Math.min(this.m_is.available(), this.m_remaining);
+            }
+        
+        @Override
+        public void close()
+            {
+            // We don't close the underlying stream.
+            }
+
+        private void drain() throws IOException
+            {
+            final byte[] buf = new byte[4096];
+            while (read(buf, 0, buf.length) != -1)
+                {
+                // Just skip the data.
+                }
+            }
+        }
+    }
@@ -0,0 +1,183 @@
+package org.lastbamboo.common.download;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A digest a server sent for the body of a single range response, which we
+ * check while we stream the range to disk.  Only digests of the response 
+ * content itself work here -- Content-MD5 from RFC 1864 and Content-Digest 
+ * from RFC 9530.  Digest and Repr-Digest describe the whole file, so they 
+ * can't tell us anything about a range.
+ */
+public final class RangeDigest
+    {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(RangeDigest.class);
+    
+    /**
+     * The value we send in Want-Content-Digest to ask servers for a digest
+     * of each range.  See RFC 9530 section 4.
+     */
+    public static final String WANT_CONTENT_DIGEST = "sha-256=10, sha-512=5";
+    
+    /**
+     * The Content-Digest algorithms we understand, in order of preference,
+     * with their Java names.
+     */
+    private static final String[][] ALGORITHMS = 
+        {
+        {"sha-512", "SHA-512"},
+        {"sha-256", "SHA-256"},
+        {"sha", "SHA-1"},
+        {"md5", "MD5"},
+        };
+    
+    private final String m_algorithm;
+    
+    private final byte[] m_expected;
+
+    private RangeDigest(final String algorithm, final byte[] expected)
+        {
+        m_algorithm = algorithm;
+        m_expected = expected;
+        }
+    
+    /**
+     * Creates a digest from the response headers for a range.
+     * 
+     * @param contentDigest The value of the Content-Digest header, or 
+     * <code>null</code> if there isn't one.
+     * @param contentMd5 The value of the Content-MD5 header, or 
+     * <code>null</code> if there isn't one.
+     * @return The digest, or <code>null</code> if there's nothing we can 
+     * use.
+     */
+    public static RangeDigest fromHeaders(final String contentDigest, 
+        final String contentMd5)
+        {
+        if (contentDigest != null)
+            {
+            final RangeDigest digest = parseContentDigest(contentDigest);
+            if (digest != null)
+                {
+                return digest;
+                }
+            }
+        if (StringUtils.isNotBlank(contentMd5))
+            {
+            return create("MD5", contentMd5.trim());
+            }
+        return null;
+        }
+    
+    /**
+     * Parses a Content-Digest header value, which looks like
+     * <code>sha-256=:base64:, sha-512=:base64:</code>.
+     * 
+     * @param value The header value.
+     * @return The digest for the strongest algorithm we know, or 
+     * <code>null</code> if we don't know any of them.
+     */
+    private static RangeDigest parseContentDigest(final String value)
+        {
+        final String[] members = value.split(",");
+        for (final String[] algorithm : ALGORITHMS)
+            {
+            for (final String member : members)
+                {
+                final String key = 
+                    StringUtils.substringBefore(member, "=").trim();
+                if (!algorithm[0].equalsIgnoreCase(key))
+                    {
+                    continue;
+                    }
+                final String encoded = 
+                    StringUtils.substringAfter(member, "=").trim();
+                if (encoded.length() < 2 || !encoded.startsWith(":") || 
+                    !encoded.endsWith(":"))
+                    {
+                    continue;
+                    }
+                final RangeDigest digest = create(algorithm[1], 
+                    encoded.substring(1, encoded.length() - 1));
+                if (digest != null)
+                    {
+                    return digest;
+                    }
+                }
+            }
+        return null;
+        }
+    
+    private static RangeDigest create(final String algorithm, 
+        final String base64)
+        {
+        try
+            {
+            final byte[] expected = 
+                Base64.decodeBase64(base64.getBytes("US-ASCII"));
+            if (expected == null || expected.length == 0)
+                {
+                return null;
+                }
+            
+            // Make sure we can actually compute it.
+            MessageDigest.getInstance(algorithm);
+            return new RangeDigest(algorithm, expected);
+            }
+        catch (final UnsupportedEncodingException e)
+            {
+            LOG.error("No ASCII?", e);
+            return null;
+            }
+        catch (final NoSuchAlgorithmException e)
+            {
+            LOG.debug("Unsupported digest: {}", algorithm);
+            return null;
+            }
+        }
+    
+    /**
+     * Creates a new message digest for computing this digest over a range.
+     * 
+     * @return The new message digest.
+     */
+    public MessageDigest newMessageDigest()
+        {
+        try
+            {
+            return MessageDigest.getInstance(m_algorithm);
+            }
+        catch (final NoSuchAlgorithmException e)
+            {
+            // We already checked this when we created the digest.
+            throw new IllegalStateException("No algorithm: " + m_algorithm, e);
+            }
+        }
+    
+    /**
+     * Checks the computed digest against the digest the server sent.
+     * 
+     * @param actual The digest we computed.
+     * @return <code>true</code> if they match, otherwise <code>false</code>.
+     */
+    public boolean matches(final byte[] actual)
+        {
+        return Arrays.equals(m_expected, actual);
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + m_algorithm;
+        }
+    }
@@ -1,6 +1,7 @@
 package org.lastbamboo.common.download;
 
 import java.net.URI;
+import java.util.List;
 
 import org.apache.commons.lang.math.LongRange;
 import org.littleshoot.util.Optional;
@@ -22,6 +23,21 @@ public interface RangeDownloader
      * @return The number of bytes downloaded by this downloader.
      */
     long getNumBytesDownloaded ();
+    
+    /**
+     * Accessor for the parts of the file this downloader's source has.
+     * 
+     * @return The parts of the file the source has.
+     */
+    SourceAvailability getAvailability ();
+    
+    /**
+     * Accessor for the round trip time to the source, measured while 
+     * probing it and connecting to it.
+     * 
+     * @return The round trip time in milliseconds, or -1 if we don't know.
+     */
+    long getRtt ();
 
     /**
      * Downloads the specified range from the assigned file.
@@ -30,6 +46,40 @@ public interface RangeDownloader
      */
     void download (LongRange range);
     
+    /**
+     * Downloads the specified ranges from the assigned file in a single 
+     * request.  Downloaders that don't support this download only the first
+     * range and return the others to the range tracker.
+     * 
+     * @param ranges The byte ranges to download.
+     */
+    void download (List<LongRange> ranges);
+    
+    /**
+     * Returns whether or not this downloader can request multiple ranges in
+     * a single request.
+     * 
+     * @return <code>true</code> if this downloader can request multiple 
+     * ranges at once, otherwise <code>false</code>.
+     */
+    boolean supportsMultipleRanges();
+    
+    /**
+     * Downloads the specified range as one of several downloaders racing to
+     * download the same range.
+     * 
+     * @param range The byte range to download.
+     * @param race The race for the range.
+     */
+    void race (LongRange range, RangeRace race);
+    
+    /**
+     * Cancels the current request, if any.  The range for the request goes
+     * back to the range tracker as with any other failure, but the failure
+     * does not count against the source.
+     */
+    void cancel ();
+
     /**
      * Sends a head request to the server this downloader is downloading from.
      */
@@ -0,0 +1,67 @@
+package org.lastbamboo.common.download;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A single request to a source and its response, as carried by a 
+ * {@link RangeTransport}.  The response accessors only mean anything once
+ * the response has arrived.
+ */
+public interface RangeExchange
+    {
+
+    /**
+     * Sends the request without waiting for the response.  The listener 
+     * hears about the response, and gets the body if there is one.
+     * 
+     * @param listener The listener for the response.
+     */
+    void execute(RangeResponseListener listener);
+    
+    /**
+     * Sends the request and waits for the response, ignoring any body.  
+     * This is meant for probes such as HEAD requests.
+     * 
+     * @throws IOException If we couldn't get a response.
+     */
+    void executeAndWait() throws IOException;
+    
+    /**
+     * Accessor for the status code of the response.
+     * 
+     * @return The status code.
+     */
+    int getStatusCode();
+    
+    /**
+     * Accessor for a header of the response.
+     * 
+     * @param name The name of the header.
+     * @return The value of the header, or <code>null</code> if the response
+     * doesn't have one.
+     */
+    String getResponseHeader(String name);
+    
+    /**
+     * Accessor for the URI that actually answered, which differs from the 
+     * request URI if the transport followed a redirect.
+     * 
+     * @return The URI that answered, or <code>null</code> if we don't know.
+     */
+    URI getResponseUri();
+    
+    /**
+     * Returns whether or not this exchange shared its connection with other
+     * requests to the same source.
+     * 
+     * @return <code>true</code> if the exchange was multiplexed, otherwise
+     * <code>false</code>.
+     */
+    boolean isMultiplexed();
+    
+    /**
+     * Aborts the exchange, closing the response body if we're reading it.
+     */
+    void abort();
+    }
@@ -0,0 +1,152 @@
+package org.lastbamboo.common.download;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import org.apache.commons.lang.math.LongRange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Coordinates several downloaders racing to download the same range.  This
+ * is used to get the first bytes of streamable downloads to readers as 
+ * quickly as possible.  The first racer to finish claims the range, and the
+ * others are cancelled.
+ */
+public class RangeRace
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final LongRange m_range;
+    
+    private final int m_maxRacers;
+    
+    private final Collection<RangeDownloader> m_racers = 
+        new HashSet<RangeDownloader>();
+    
+    private RangeDownloader m_winner;
+    
+    /**
+     * Set when every racer has failed, in which case the range goes back to
+     * the range tracker.
+     */
+    private boolean m_abandoned = false;
+
+    /**
+     * Creates a new race.
+     * 
+     * @param range The range to race for.
+     * @param maxRacers The maximum number of downloaders that can join.
+     */
+    public RangeRace(final LongRange range, final int maxRacers)
+        {
+        if (range == null)
+            {
+            throw new NullPointerException("Null range");
+            }
+        this.m_range = range;
+        this.m_maxRacers = maxRacers;
+        }
+    
+    /**
+     * Accessor for the range the racers are downloading.
+     * 
+     * @return The range.
+     */
+    public LongRange getRange()
+        {
+        return m_range;
+        }
+
+    /**
+     * Adds a downloader to the race if the race is still open.
+     * 
+     * @param downloader The downloader.
+     * @return <code>true</code> if the downloader joined the race, otherwise
+     * <code>false</code>.
+     */
+    public synchronized boolean join(final RangeDownloader downloader)
+        {
+        if (this.m_winner != null || this.m_abandoned || 
+            this.m_racers.size() >= this.m_maxRacers)
+            {
+            return false;
+            }
+        m_log.debug("Adding racer for {}: {}", this.m_range, downloader);
+        return this.m_racers.add(downloader);
+        }
+    
+    /**
+     * Called when a racer has downloaded the whole range.  The first racer
+     * to call this wins and is responsible for writing the range.  All other
+     * racers are cancelled.
+     * 
+     * @param downloader The downloader that finished.
+     * @return <code>true</code> if the downloader won the race, otherwise
+     * <code>false</code>.
+     */
+    public boolean claim(final RangeDownloader downloader)
+        {
+        final Collection<RangeDownloader> losers;
+        synchronized (this)
+            {
+            if (this.m_winner != null || !this.m_racers.contains(downloader))
+                {
+                return false;
+                }
+            this.m_winner = downloader;
+            losers = new LinkedList<RangeDownloader>(this.m_racers);
+            losers.remove(downloader);
+            this.m_racers.clear();
+            this.m_racers.add(downloader);
+            }
+        
+        m_log.debug("Race for {} won by: {}", this.m_range, downloader);
+        for (final RangeDownloader loser : losers)
+            {
+            loser.cancel();
+            }
+        return true;
+        }
+    
+    /**
+     * Returns whether or not the specified downloader won the race.
+     * 
+     * @param downloader The downloader.
+     * @return <code>true</code> if the downloader won, otherwise 
+     * <code>false</code>.
+     */
+    public synchronized boolean isWinner(final RangeDownloader downloader)
+        {
+        return this.m_winner == downloader;
+        }
+    
+    /**
+     * Called when a racer fails.
+     * 
+     * @param downloader The downloader that failed.
+     * @return <code>true</code> if the range should go back to the range
+     * tracker, either because the winner failed or because every racer has
+     * now failed, otherwise <code>false</code>.
+     */
+    public synchronized boolean onRacerFailed(final RangeDownloader downloader)
+        {
+        if (!this.m_racers.remove(downloader))
+            {
+            // This is typically a loser we've already cancelled.
+            return false;
+            }
+        if (this.m_winner == downloader || 
+            (this.m_winner == null && this.m_racers.isEmpty()))
+            {
+            m_log.debug("Abandoning race for: {}", this.m_range);
+            this.m_winner = null;
+            this.m_abandoned = true;
+            this.m_racers.clear();
+            return true;
+            }
+        return false;
+        }
+    }
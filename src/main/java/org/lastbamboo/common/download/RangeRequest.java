@@ -0,0 +1,97 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A request to a source, independent of whatever transport carries it.
+ */
+public final class RangeRequest
+    {
+
+    /**
+     * The method for requests for ranges of the file.
+     */
+    public static final String GET = "GET";
+    
+    /**
+     * The method for probing whether a source is alive and has the file.
+     */
+    public static final String HEAD = "HEAD";
+    
+    private final String m_method;
+    
+    private final URI m_uri;
+    
+    private final Map<String, String> m_headers = 
+        new LinkedHashMap<String, String>();
+
+    /**
+     * Creates a new request.
+     * 
+     * @param method The request method, such as {@link #GET}.
+     * @param uri The URI to send the request to.
+     */
+    public RangeRequest(final String method, final URI uri)
+        {
+        if (method == null)
+            {
+            throw new NullPointerException("Null method");
+            }
+        if (uri == null)
+            {
+            throw new NullPointerException("Null URI");
+            }
+        this.m_method = method;
+        this.m_uri = uri;
+        }
+    
+    /**
+     * Adds a header to the request, replacing any header with the same name.
+     * 
+     * @param name The name of the header.
+     * @param value The value of the header.
+     */
+    public void addHeader(final String name, final String value)
+        {
+        this.m_headers.put(name, value);
+        }
+    
+    /**
+     * Accessor for the request method.
+     * 
+     * @return The request method.
+     */
+    public String getMethod()
+        {
+        return this.m_method;
+        }
+    
+    /**
+     * Accessor for the URI to send the request to.
+     * 
+     * @return The URI.
+     */
+    public URI getUri()
+        {
+        return this.m_uri;
+        }
+    
+    /**
+     * Accessor for the request headers, in the order they were added.
+     * 
+     * @return The request headers.
+     */
+    public Map<String, String> getHeaders()
+        {
+        return Collections.unmodifiableMap(this.m_headers);
+        }
+    
+    @Override
+    public String toString()
+        {
+        return this.m_method + " " + this.m_uri + " " + this.m_headers;
+        }
+    }
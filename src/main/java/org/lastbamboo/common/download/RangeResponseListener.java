@@ -0,0 +1,96 @@
+package org.lastbamboo.common.download;
+
+import java.io.IOException;
+
+import org.apache.commons.lang.math.LongRange;
+import org.littleshoot.util.InputStreamHandler;
+
+/**
+ * Listener for the events in a {@link RangeExchange}.  The response body,
+ * if any, goes to {@link #handleInputStream(java.io.InputStream)}.
+ */
+public interface RangeResponseListener extends InputStreamHandler
+    {
+
+    /**
+     * Called when we've connected to the source.
+     * 
+     * @param ms The time it took to connect, in milliseconds.
+     */
+    void onConnect(long ms);
+    
+    /**
+     * Called when we couldn't connect to the source.
+     */
+    void onCouldNotConnect();
+    
+    /**
+     * Called when the source sent a response that didn't make sense.
+     * 
+     * @param e The error.
+     */
+    void onProtocolError(IOException e);
+    
+    /**
+     * Called when the response has a status other than 200 or 206.
+     * 
+     * @param responseCode The status code.
+     */
+    void onNoTwoHundredOk(int responseCode);
+    
+    /**
+     * Called with the length of the response body.
+     * 
+     * @param contentLength The length of the body.
+     */
+    void onContentLength(long contentLength);
+    
+    /**
+     * Called with the range the source is sending.
+     * 
+     * @param range The range.
+     * @throws IOException If the range isn't one we can use.
+     */
+    void onContentRange(LongRange range) throws IOException;
+    
+    /**
+     * Called when a response header couldn't be parsed.
+     * 
+     * @param header The header.
+     */
+    void onBadHeader(String header);
+    
+    /**
+     * Called when we start reading the response body.
+     */
+    void onDownloadStarted();
+    
+    /**
+     * Called as we read the response body.
+     * 
+     * @param bytesRead The number of bytes just read.
+     */
+    void onBytesRead(int bytesRead);
+    
+    /**
+     * Called once we've read the whole response body.
+     */
+    void onMessageBodyRead();
+    
+    /**
+     * Called when the exchange failed in a way we can retry.
+     */
+    void onFailure();
+    
+    /**
+     * Called when the exchange failed in a way retrying won't fix.
+     */
+    void onPermanentFailure();
+    
+    /**
+     * Called with status updates on the exchange.
+     * 
+     * @param status The status.
+     */
+    void onStatusEvent(String status);
+    }
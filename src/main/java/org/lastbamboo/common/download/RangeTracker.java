@@ -1,5 +1,8 @@
 package org.lastbamboo.common.download;
 
+import java.util.Collection;
+import java.util.Comparator;
+
 import org.apache.commons.lang.math.LongRange;
 import org.littleshoot.util.Optional;
 
@@ -19,6 +22,19 @@ public interface RangeTracker
      */
     Optional<LongRange> getNextRange();
 
+    /**
+     * Accesses up to the specified number of ranges waiting to be downloaded,
+     * in priority order, as long as each is no larger than the specified 
+     * size.  This does not block, and the returned ranges are considered 
+     * active just as if they were returned from {@link #getNextRange()}.
+     * This is typically used to request many small ranges at once.
+     * 
+     * @param maxRanges The maximum number of ranges to return.
+     * @param maxRangeSize The maximum size in bytes of any returned range.
+     * @return The ranges.  This is empty if no small ranges are waiting.
+     */
+    Collection<LongRange> pollNextRanges(int maxRanges, long maxRangeSize);
+
     /**
      * Returns whether or not there are available ranges to download.
      * 
@@ -43,6 +59,65 @@ public interface RangeTracker
      */
     void onRangeFailed(LongRange range);
 
+    /**
+     * Called when a source only sent part of the range we assigned it.  The
+     * rest of the range goes back in the queue of ranges to assign.
+     * 
+     * @param range The range we assigned.
+     * @param completed The part of the range we received.  This must lie 
+     * within the assigned range.
+     */
+    void onRangePartiallyComplete(LongRange range, LongRange completed);
+
+    /**
+     * Claims the range waiting to be downloaded that starts at the specified
+     * byte, if there is one.  This does not block, and the returned range is
+     * considered active just as if it were returned from 
+     * {@link #getNextRange()}.  This is typically used to make use of a 
+     * source that sends the whole file regardless of the range we ask for.
+     * 
+     * @param start The first byte of the range.
+     * @return The range, or <code>null</code> if no waiting range starts at
+     * that byte.
+     */
+    LongRange claimRange(long start);
+
+    /**
+     * Claims the best waiting range a source with the given availability 
+     * has, according to the given order.  This does not block, and the 
+     * returned range is considered active just as if it were returned from
+     * {@link #getNextRange()}.  This is typically used for sources that 
+     * only have part of the file.
+     * 
+     * @param availability What the source has.
+     * @param order The order to prefer ranges in.
+     * @return The range, or <code>null</code> if none of the waiting ranges
+     * are available from the source.
+     */
+    LongRange pollNextRange(SourceAvailability availability, 
+        Comparator<LongRange> order);
+
+    /**
+     * Accessor for the first byte of the nearest waiting range at or after 
+     * the specified position.
+     * 
+     * @param position The position in the file.
+     * @return The first byte of the nearest waiting range, or -1 if no
+     * ranges after the position are waiting.
+     */
+    long getNextInactiveStart(long position);
+
+    /**
+     * Shrinks an active range to the specified size, returning the rest of
+     * it to the queue of ranges to assign.
+     * 
+     * @param range The active range.
+     * @param size The size of the range to keep active.
+     * @return The part of the range that's still active.  This is the 
+     * range itself if it's no larger than the size.
+     */
+    LongRange splitRange(LongRange range, long size);
+
     /**
      * Accessor for the number of chunks to download.
      * 
@@ -55,4 +130,12 @@ public interface RangeTracker
      * @return The number of bytes read.
      */
     long getBytesRead();
+
+    /**
+     * Sets the listener to notify whenever a range is freed up for 
+     * assignment or completed.
+     * 
+     * @param listener The listener.
+     */
+    void setWorkListener(WorkListener listener);
     }
@@ -1,5 +1,9 @@
 package org.lastbamboo.common.download;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+
 import org.apache.commons.lang.math.LongRange;
 import org.littleshoot.util.Optional;
 
@@ -19,6 +23,12 @@ public class RangeTrackerAdapter implements RangeTracker
         return null;
         }
 
+    public Collection<LongRange> pollNextRanges(int maxRanges, 
+        long maxRangeSize)
+        {
+        return Collections.emptyList();
+        }
+
     public int getNumChunks()
         {
         return 0;
@@ -37,4 +47,33 @@ public class RangeTrackerAdapter implements RangeTracker
         {
         }
 
+    public void onRangePartiallyComplete(LongRange range, LongRange completed)
+        {
+        }
+
+    public LongRange claimRange(long start)
+        {
+        return null;
+        }
+
+    public LongRange pollNextRange(SourceAvailability availability, 
+        Comparator<LongRange> order)
+        {
+        return null;
+        }
+
+    public long getNextInactiveStart(long position)
+        {
+        return -1;
+        }
+
+    public LongRange splitRange(LongRange range, long size)
+        {
+        return range;
+        }
+
+    public void setWorkListener(WorkListener listener)
+        {
+        }
+
     }
@@ -1,7 +1,9 @@
 package org.lastbamboo.common.download;
 
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.Set;
@@ -51,6 +53,8 @@ public class RangeTrackerImpl implements RangeTracker
 
     private final long m_chunkSize;
 
+    private volatile WorkListener m_workListener;
+
     /**
      * Creates a new range tracker for a file of the specified size.
      * @param fileSize The size of the file we're downloading.
@@ -70,33 +74,57 @@ public class RangeTrackerImpl implements RangeTracker
     public RangeTrackerImpl(final long fileSize, final int numSources,
         final RangeSizeSelector rangeSizeSelector)
         {
+        this(fileSize, numSources, rangeSizeSelector, -1L);
+        }
+    
+    /**
+     * Creates a new range tracker for a file of the specified size.  If a
+     * fast start size is specified, the first range is that size and each 
+     * following range doubles in size until it reaches the normal chunk 
+     * size.  This gets the beginning of the file to streaming readers as 
+     * quickly as possible.
+     * 
+     * @param fileSize The size of the file we're downloading.
+     * @param numSources The number of sources for the download.
+     * @param rangeSizeSelector The class for selecting the size of ranges.
+     * @param fastStartSize The size of the first range, or -1 to use the
+     * normal chunk size for every range.
+     */
+    public RangeTrackerImpl(final long fileSize, final int numSources,
+        final RangeSizeSelector rangeSizeSelector, final long fastStartSize)
+        {
         m_log.debug("Creating queue for file size: " + fileSize);
         
         this.m_chunkSize = rangeSizeSelector.selectSize(fileSize, numSources);
         m_log.debug("Chunk size is: {}", this.m_chunkSize);
         
-        m_numChunks = (int) Math.ceil(fileSize/m_chunkSize);
+        final int initialCapacity = 
+            Math.max(1, (int) Math.ceil(fileSize/m_chunkSize));
         
-        m_log.debug("Creating a queue with " + m_numChunks + " chunks...");
+        m_log.debug("Creating a queue with " + initialCapacity + " chunks...");
         
         final Comparator<LongRange> rangeComparator = new LongRangeComparator();
         
         m_inactive = 
-            new PriorityQueue<LongRange> (m_numChunks, rangeComparator);
+            new PriorityQueue<LongRange> (initialCapacity, rangeComparator);
         m_active = new HashSet<LongRange> ();
         
         long index = 0;
+        long curChunkSize = fastStartSize > 0 ? 
+            Math.min(fastStartSize, m_chunkSize) : m_chunkSize;
         while (index < fileSize)
             {
             // If we are at the last chunk, our last chunk ends at the file
             // size.  Since the range is inclusive at both ends, we always
             // subtract 1 to get the maximum byte.
-            final long max = Math.min(fileSize - 1, index + m_chunkSize - 1);
+            final long max = Math.min(fileSize - 1, index + curChunkSize - 1);
             final LongRange curRange = new LongRange(index, max);
             //m_log.debug("Adding range: " + curRange);
             m_inactive.add (curRange);
             index = max + 1;
+            curChunkSize = Math.min(m_chunkSize, curChunkSize * 2);
             }
+        m_numChunks = m_inactive.size();
         }
 
     public Optional<LongRange> getNextRange ()
@@ -142,6 +170,31 @@ public class RangeTrackerImpl implements RangeTracker
             }
         }
     
+    public Collection<LongRange> pollNextRanges(final int maxRanges, 
+        final long maxRangeSize)
+        {
+        final Collection<LongRange> ranges = new LinkedList<LongRange>();
+        synchronized (this)
+            {
+            // We only take ranges from the head of the queue to preserve
+            // the priority ordering.
+            while (ranges.size() < maxRanges && !m_inactive.isEmpty())
+                {
+                final LongRange next = m_inactive.peek();
+                final long size = 
+                    next.getMaximumLong() - next.getMinimumLong() + 1;
+                if (size > maxRangeSize)
+                    {
+                    break;
+                    }
+                m_inactive.poll();
+                m_active.add(next);
+                ranges.add(next);
+                }
+            }
+        return ranges;
+        }
+    
     public int getNumChunks ()
         {
         return this.m_numChunks;
@@ -168,7 +221,7 @@ public class RangeTrackerImpl implements RangeTracker
                 this.m_bytesRead += 
                     (range.getMaximumLong() - range.getMinimumLong());
                 m_active.remove (range);
-                notifyAll ();
+                onRangesChanged ();
                 }
             else
                 {
@@ -197,7 +250,7 @@ public class RangeTrackerImpl implements RangeTracker
                 m_active.remove (range);
                 m_inactive.add (range);
                 
-                notifyAll ();
+                onRangesChanged ();
                 }
             else
                 {
@@ -210,8 +263,149 @@ public class RangeTrackerImpl implements RangeTracker
             }
         }
 
+    /**
+     * {@inheritDoc}
+     */
+    public void onRangePartiallyComplete (final LongRange range, 
+        final LongRange completed)
+        {
+        m_log.debug ("Range {} partially complete: {}", range, completed);
+        if (!range.containsRange(completed))
+            {
+            throw new IllegalArgumentException(completed + " not in " + range);
+            }
+        synchronized (this)
+            {
+            if (m_active.contains (range))
+                {
+                this.m_bytesRead += 
+                    (completed.getMaximumLong() - completed.getMinimumLong());
+                m_active.remove (range);
+                if (completed.getMinimumLong() > range.getMinimumLong())
+                    {
+                    m_inactive.add (new LongRange(range.getMinimumLong(),
+                        completed.getMinimumLong() - 1));
+                    }
+                if (completed.getMaximumLong() < range.getMaximumLong())
+                    {
+                    m_inactive.add (new LongRange(
+                        completed.getMaximumLong() + 1, 
+                        range.getMaximumLong()));
+                    }
+                onRangesChanged ();
+                }
+            else
+                {
+                m_log.error("Nothing known about range: "+range+
+                    "\nActively downloading: " + this.m_active + 
+                    "\nWaiting:              " + this.m_inactive);
+                throw new RuntimeException("Range '" + range + 
+                    "' is unknown to this tracker");
+                }
+            }
+        }
+    
+    public LongRange claimRange(final long start)
+        {
+        synchronized (this)
+            {
+            for (final LongRange range : m_inactive)
+                {
+                if (range.getMinimumLong() == start)
+                    {
+                    m_inactive.remove (range);
+                    m_active.add (range);
+                    return range;
+                    }
+                }
+            return null;
+            }
+        }
+    
+    public LongRange pollNextRange(final SourceAvailability availability,
+        final Comparator<LongRange> order)
+        {
+        synchronized (this)
+            {
+            LongRange best = null;
+            for (final LongRange range : m_inactive)
+                {
+                if (availability.contains(range) && 
+                    (best == null || order.compare(range, best) < 0))
+                    {
+                    best = range;
+                    }
+                }
+            if (best != null)
+                {
+                m_inactive.remove (best);
+                m_active.add (best);
+                }
+            return best;
+            }
+        }
+    
+    public LongRange splitRange(final LongRange range, final long size)
+        {
+        if (range.getMaximumLong() - range.getMinimumLong() + 1 <= size)
+            {
+            return range;
+            }
+        synchronized (this)
+            {
+            if (!m_active.remove (range))
+                {
+                throw new RuntimeException("Range '" + range + 
+                    "' is not active");
+                }
+            final LongRange first = new LongRange(range.getMinimumLong(),
+                range.getMinimumLong() + size - 1);
+            m_active.add (first);
+            m_inactive.add (new LongRange(first.getMaximumLong() + 1, 
+                range.getMaximumLong()));
+            onRangesChanged ();
+            return first;
+            }
+        }
+    
+    public long getNextInactiveStart(final long position)
+        {
+        long next = -1;
+        synchronized (this)
+            {
+            for (final LongRange range : m_inactive)
+                {
+                final long start = range.getMinimumLong();
+                if (start >= position && (next == -1 || start < next))
+                    {
+                    next = start;
+                    }
+                }
+            }
+        return next;
+        }
+
     public long getBytesRead()
         {
         return this.m_bytesRead;
         }
+
+    public void setWorkListener(final WorkListener listener)
+        {
+        this.m_workListener = listener;
+        }
+
+    /**
+     * Wakes up anyone waiting on ranges and lets our listener know there 
+     * may be new work.  This must be called while holding our lock.
+     */
+    private void onRangesChanged ()
+        {
+        notifyAll ();
+        final WorkListener listener = this.m_workListener;
+        if (listener != null)
+            {
+            listener.onWorkAvailable ();
+            }
+        }
     }
@@ -0,0 +1,45 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+
+/**
+ * Interface for classes that carry requests to a source.  This allows
+ * sources that support more efficient transports, such as those that 
+ * multiplex many concurrent requests over a single connection, to be used
+ * when available while falling back to plain HTTP otherwise.  Nothing here
+ * depends on any particular HTTP client.
+ */
+public interface RangeTransport
+    {
+
+    /**
+     * Returns whether or not this transport can carry requests to the 
+     * specified source.
+     * 
+     * @param source The source URI.
+     * @return <code>true</code> if this transport can carry requests to the
+     * source, otherwise <code>false</code>.
+     */
+    boolean supports(URI source);
+    
+    /**
+     * Returns whether or not this transport multiplexes concurrent requests
+     * to the specified source over one connection.
+     * 
+     * @param source The source URI.
+     * @return <code>true</code> if concurrent requests to the source share
+     * a connection, otherwise <code>false</code>.
+     */
+    boolean isMultiplexed(URI source);
+
+    /**
+     * Creates an exchange for the specified request.  Nothing is sent until
+     * the exchange is executed, so callers can hold on to the exchange 
+     * before any events arrive.
+     * 
+     * @param request The request.
+     * @return The exchange for the request.
+     */
+    RangeExchange newExchange(RangeRequest request);
+
+    }
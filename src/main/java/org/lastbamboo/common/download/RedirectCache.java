@@ -0,0 +1,110 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers where each source redirected us so later range requests can go
+ * straight to the final target instead of paying for the redirect every 
+ * time.  Targets expire after a while since redirectors often spread 
+ * requests across mirrors.
+ */
+public class RedirectCache
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * The default time to remember a redirect for, in milliseconds.
+     */
+    private static final long DEFAULT_TTL = 5 * 60 * 1000;
+    
+    private final long m_ttl;
+    
+    private final Map<URI, Target> m_targets = new HashMap<URI, Target>();
+    
+    /**
+     * Creates a new cache that remembers redirects for the default time.
+     */
+    public RedirectCache()
+        {
+        this(DEFAULT_TTL);
+        }
+    
+    /**
+     * Creates a new cache.
+     * 
+     * @param ttl The time to remember each redirect for, in milliseconds.
+     */
+    public RedirectCache(final long ttl)
+        {
+        m_ttl = ttl;
+        }
+    
+    /**
+     * Accessor for the URI to send requests for the given source to.
+     * 
+     * @param source The source.
+     * @return The final target of the source's last redirect, or the source
+     * itself if we don't know of a current redirect.
+     */
+    public synchronized URI getTarget(final URI source)
+        {
+        final Target target = m_targets.get(source);
+        if (target == null)
+            {
+            return source;
+            }
+        if (System.currentTimeMillis() > target.m_expires)
+            {
+            m_targets.remove(source);
+            return source;
+            }
+        return target.m_uri;
+        }
+    
+    /**
+     * Records that a request to the given source ended up at the given 
+     * target.
+     * 
+     * @param source The source.
+     * @param target The final target.
+     */
+    public synchronized void onRedirect(final URI source, final URI target)
+        {
+        if (source.equals(target))
+            {
+            return;
+            }
+        m_log.debug("Caching redirect from {} to {}", source, target);
+        m_targets.put(source, 
+            new Target(target, System.currentTimeMillis() + m_ttl));
+        }
+    
+    /**
+     * Forgets any redirect for the given source.  This is typically called
+     * when a request to the target fails.
+     * 
+     * @param source The source.
+     */
+    public synchronized void invalidate(final URI source)
+        {
+        m_targets.remove(source);
+        }
+    
+    private static final class Target
+        {
+        private final URI m_uri;
+        private final long m_expires;
+
+        private Target(final URI uri, final long expires)
+            {
+            m_uri = uri;
+            m_expires = expires;
+            }
+        }
+    }
@@ -0,0 +1,181 @@
+package org.lastbamboo.common.download;
+
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedList;
+
+/**
+ * One request's handle on a download that may be shared with other 
+ * requests for the same file.  Each handle reads the file and hears about
+ * its completion on its own, and the download only stops once every handle
+ * has cancelled.
+ * 
+ * @param <StateT> The downloader state type.
+ */
+public final class SharedDownload<StateT extends DownloaderState>
+    {
+
+    private final DownloadRegistry m_registry;
+    
+    /**
+     * The download we're reading.  This only changes before we start 
+     * reading, if the registry finds another download of the same file.
+     */
+    private Downloader<StateT> m_downloader;
+    
+    private boolean m_reading = false;
+    
+    private final Collection<DownloaderListener<StateT>> m_listeners =
+        new LinkedList<DownloaderListener<StateT>>();
+    
+    /**
+     * The final state of the download, or <code>null</code> if it's still
+     * running.
+     */
+    private StateT m_finalState;
+    
+    private boolean m_cancelled = false;
+    
+    /**
+     * Creates a new handle.
+     * 
+     * @param registry The registry that counts the handles on the download.
+     * @param downloader The shared downloader.
+     */
+    SharedDownload(final DownloadRegistry registry,
+        final Downloader<StateT> downloader)
+        {
+        m_registry = registry;
+        m_downloader = downloader;
+        }
+    
+    /**
+     * Accessor for the shared downloader.  Use {@link #cancel()} rather 
+     * than stopping it directly, as other requests may still be using it.
+     * Until this request starts reading the file, the downloader can change
+     * if we learn another download is already getting the same file.
+     * 
+     * @return The downloader.
+     */
+    public synchronized Downloader<StateT> getDownloader()
+        {
+        return m_downloader;
+        }
+    
+    /**
+     * Writes the file to the given stream as it downloads.  This blocks 
+     * until the whole file is written.
+     * 
+     * @param os The stream to write to.
+     */
+    public void write(final OutputStream os)
+        {
+        // Losing one stream should never cancel a download other requests
+        // share.  They cancel with their handles instead.
+        startReading().write(os, false);
+        }
+    
+    /**
+     * Streams the file to the given subscriber as it downloads.
+     * 
+     * @param subscriber The subscriber.
+     */
+    public void subscribe(final DownloadStreamSubscriber subscriber)
+        {
+        startReading().subscribe(subscriber);
+        }
+    
+    private synchronized Downloader<StateT> startReading()
+        {
+        m_reading = true;
+        return m_downloader;
+        }
+    
+    /**
+     * Switches this handle to another download of the same file, as long 
+     * as we haven't started reading the file yet.
+     * 
+     * @param downloader The other download.
+     * @return <code>true</code> if we switched, otherwise 
+     * <code>false</code>.
+     */
+    synchronized boolean moveTo(final Downloader<StateT> downloader)
+        {
+        if (m_reading || m_cancelled)
+            {
+            return false;
+            }
+        m_downloader = downloader;
+        return true;
+        }
+    
+    /**
+     * Adds a listener to notify once with the final state of the download.
+     * If the download is already done, the listener is notified right away.
+     * Listeners on a handle that's been cancelled are never notified.
+     * 
+     * @param listener The listener.
+     */
+    public void addCompletionListener(
+        final DownloaderListener<StateT> listener)
+        {
+        final StateT finalState;
+        synchronized (this)
+            {
+            if (m_cancelled)
+                {
+                return;
+                }
+            finalState = m_finalState;
+            if (finalState == null)
+                {
+                m_listeners.add(listener);
+                return;
+                }
+            }
+        listener.stateChanged(finalState);
+        }
+    
+    /**
+     * Gives up this request's use of the download.  The download stops if 
+     * no other requests are using it.  Calling this more than once has no
+     * further effect.
+     */
+    public void cancel()
+        {
+        synchronized (this)
+            {
+            if (m_cancelled)
+                {
+                return;
+                }
+            m_cancelled = true;
+            m_listeners.clear();
+            }
+        m_registry.release(this);
+        }
+    
+    /**
+     * Called when the shared download finishes.
+     * 
+     * @param state The final state.
+     */
+    void onComplete(final StateT state)
+        {
+        final Collection<DownloaderListener<StateT>> listeners;
+        synchronized (this)
+            {
+            if (m_cancelled || m_finalState != null)
+                {
+                return;
+                }
+            m_finalState = state;
+            listeners = new LinkedList<DownloaderListener<StateT>>(m_listeners);
+            m_listeners.clear();
+            }
+        for (final DownloaderListener<StateT> listener : listeners)
+            {
+            listener.stateChanged(state);
+            }
+        }
+    }
@@ -3,27 +3,29 @@ package org.lastbamboo.common.download;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.httpclient.DefaultHttpMethodRetryHandler;
-import org.apache.commons.httpclient.Header;
-import org.apache.commons.httpclient.HttpException;
-import org.apache.commons.httpclient.HttpMethodRetryHandler;
-import org.apache.commons.httpclient.HttpStatus;
-import org.apache.commons.httpclient.methods.GetMethod;
-import org.apache.commons.httpclient.methods.HeadMethod;
-import org.apache.commons.httpclient.params.HttpMethodParams;
 import org.apache.commons.lang.math.LongRange;
-import org.lastbamboo.common.http.client.CommonsHttpClient;
-import org.lastbamboo.common.http.client.HttpClientRunner;
-import org.lastbamboo.common.http.client.HttpListener;
+import org.apache.commons.lang.math.NumberUtils;
 import org.lastbamboo.common.http.client.NoContentRangeException;
-import org.lastbamboo.common.http.client.RuntimeHttpException;
-import org.littleshoot.util.InputStreamHandler;
 import org.littleshoot.util.IoUtils;
+import org.littleshoot.util.LongRangeListener;
 import org.littleshoot.util.NoneImpl;
 import org.littleshoot.util.Optional;
-import org.littleshoot.util.RuntimeIoException;
 import org.littleshoot.util.SomeImpl;
 import org.littleshoot.util.WriteListener;
 import org.slf4j.Logger;
@@ -33,11 +35,61 @@ import org.slf4j.LoggerFactory;
  * Downloads data from a single source.
  */
 public class SingleSourceDownloader implements RangeDownloader, 
-    InputStreamHandler, HttpListener
+    RangeResponseListener
     {
 
     private final Logger m_log = LoggerFactory.getLogger(getClass());
     
+    /**
+     * {@link HttpURLConnection} doesn't define this one -- see RFC 2616.
+     */
+    private static final int SC_TEMPORARY_REDIRECT = 307;
+    
+    /**
+     * {@link HttpURLConnection} doesn't define this one -- see RFC 2616.
+     */
+    private static final int SC_REQUESTED_RANGE_NOT_SATISFIABLE = 416;
+    
+    /**
+     * {@link HttpURLConnection} doesn't define this one -- see RFC 6585.
+     */
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    
+    /**
+     * The longest we'll wait for a throttled source to take us back, in 
+     * milliseconds.  Sources that ask for longer than this are dropped.
+     */
+    private static final long MAX_RETRY_AFTER = 10 * 60 * 1000;
+    
+    /**
+     * How long to back off from a throttled source that doesn't tell us, in
+     * milliseconds.  This doubles each time the source throttles us.
+     */
+    private static final long DEFAULT_RETRY_AFTER = 5 * 1000;
+    
+    /**
+     * The most bytes we'll read and throw away to get to a range we can use
+     * when a source sends us the whole file.
+     */
+    private static final long MAX_SKIP = 1024 * 1024;
+    
+    /**
+     * {@link HttpURLConnection} doesn't define this one -- see RFC 7538.
+     */
+    private static final int SC_PERMANENT_REDIRECT = 308;
+    
+    /**
+     * The most redirects in a row we'll follow ourselves before counting a
+     * failure.
+     */
+    private static final int MAX_REDIRECTS = 5;
+    
+    /**
+     * The number of ranges that can fail their digest checks before we stop
+     * using a source.
+     */
+    private static final int MAX_DIGEST_MISMATCHES = 2;
+    
     private final URI m_uri;
     private final SourceRanker m_sourceRanker;
 
@@ -46,6 +98,34 @@ public class SingleSourceDownloader implements RangeDownloader,
     private LongRange m_contentRange;
 
     private LongRange m_assignedRange;
+    
+    /**
+     * Additional ranges requested along with the assigned range in a single
+     * multiple range request.  We return any of these we don't receive to
+     * the range tracker.
+     */
+    private final List<LongRange> m_extraRanges = new LinkedList<LongRange>();
+    
+    /**
+     * Whether or not we think the source supports multiple range requests.
+     * We assume it does until it tells us otherwise.
+     */
+    private volatile boolean m_multipleRangesSupported = true;
+    
+    /**
+     * The exchange for the current request.
+     */
+    private volatile RangeExchange m_exchange;
+    
+    /**
+     * The race we're in for the current range, if any.
+     */
+    private volatile RangeRace m_race;
+    
+    /**
+     * Whether or not the current request has been cancelled.
+     */
+    private volatile boolean m_cancelled = false;
 
     private final RangeTracker m_rangeTracker;
 
@@ -70,21 +150,133 @@ public class SingleSourceDownloader implements RangeDownloader,
     private final LaunchFileTracker m_launchFileTracker;
 
     /**
-     * Our HTTP client used to execute our HTTP methods.
+     * Decides when to retry this source after failures and when to give up
+     * on it.  Sources can occasionally make recoverable failures, so we 
+     * keep trying for a while.
      */
-    private final CommonsHttpClient m_httpClient;
+    private volatile CircuitBreaker m_circuitBreaker = new CircuitBreaker();
 
     /**
-     * Records the number of times this source has failed.  Sources can
-     * occasionally make recoverable failures, so we keep trying.
+     * The transport used to carry range requests to the source.
+     */
+    private final RangeTransport m_transport;
+    
+    /**
+     * Whether or not we skip the HEAD request and use the first range 
+     * request to find out if the source is alive and supports ranges.
+     */
+    private volatile boolean m_probeWithGet = false;
+    
+    /**
+     * Whether or not the source has successfully responded to a request.
+     */
+    private volatile boolean m_verified = false;
+    
+    private volatile long m_probeStartTime = -1L;
+    
+    private volatile long m_firstByteTime = -1L;
+    
+    /**
+     * The watchdog for stalled ranges, if any.
+     */
+    private volatile StallWatchdog m_stallWatchdog;
+    
+    /**
+     * The rate of the last range we completed, or -1 if we haven't completed
+     * one.
+     */
+    private volatile long m_bytesPerSecond = -1L;
+    
+    /**
+     * The size we expect the file to be, or -1 if we don't know.
+     */
+    private volatile long m_expectedSize = -1L;
+    
+    /**
+     * The number of times in a row the source has throttled us.
+     */
+    private volatile int m_numThrottles = 0;
+    
+    /**
+     * Whether or not we've already given the assigned range back to the 
+     * tracker during the current request.
+     */
+    private volatile boolean m_assignedReleased = false;
+    
+    /**
+     * The validators sources have reported for the download, if we're 
+     * checking them.
+     */
+    private volatile SourceValidators m_sourceValidators;
+    
+    /**
+     * Whether or not we sent If-Range with the current request.
+     */
+    private volatile boolean m_sentIfRange = false;
+    
+    /**
+     * Whether or not we've caught the source serving a different version of
+     * the file.
+     */
+    private volatile boolean m_quarantined = false;
+    
+    /**
+     * Where we remember the final targets of redirects from sources, if 
+     * anywhere.
+     */
+    private volatile RedirectCache m_redirectCache;
+    
+    /**
+     * The limiter for the download this source is part of.
+     */
+    private volatile BandwidthLimiter m_bandwidthLimiter = 
+        BandwidthLimiter.getProcessLimiter();
+    
+    /**
+     * The URI we sent the current request to.  This is the final target of
+     * the source's last redirect if we know it.
+     */
+    private volatile URI m_requestUri;
+    
+    /**
+     * The URI that actually answered the current request.
+     */
+    private volatile URI m_responderUri;
+    
+    /**
+     * The number of redirects in a row we've followed ourselves.
+     */
+    private volatile int m_numRedirects = 0;
+    
+    /**
+     * Whether or not the current range failed its digest check.
+     */
+    private volatile boolean m_corrupt = false;
+    
+    private volatile int m_numDigestMismatches = 0;
+    
+    /**
+     * The parts of the file the source has.
      */
-    private volatile int m_numFailures = 0;
+    private volatile SourceAvailability m_availability = 
+        SourceAvailability.COMPLETE;
+    
+    /**
+     * The round trip time for our HEAD request, or -1 if we don't know.
+     */
+    private volatile long m_rtt = -1L;
+    
+    /**
+     * The time it took to connect for our last range request, or -1 if we 
+     * don't know.
+     */
+    private volatile long m_connectTime = -1L;
 
     /**
      * Creates a downloader for downloading from a specific source.
      * 
-     * @param httpClient The HTTP client instance to use for performing 
-     * downloads.
+     * @param transport The transport to make range requests to the source
+     * with.
      * @param source The URI for the source to download from.
      * @param rangeDownloadListener The listener for range download events.
      * @param downloadSpeedRanker The class for ranking sources.
@@ -92,7 +284,7 @@ public class SingleSourceDownloader implements RangeDownloader,
      * @param launchTracker The tracker for bytes to send to the launch file.
      * @param randomAccessFile The class to store downloaded bytes to.
      */
-    public SingleSourceDownloader(final CommonsHttpClient httpClient,
+    public SingleSourceDownloader(final RangeTransport transport,
         final URI source, 
         final RangeDownloadListener rangeDownloadListener,
         final SourceRanker downloadSpeedRanker, 
@@ -106,48 +298,312 @@ public class SingleSourceDownloader implements RangeDownloader,
         this.m_rangeTracker = rangeTracker;
         this.m_launchFileTracker = launchTracker;
         this.m_randomAccessFile = randomAccessFile;
-        this.m_httpClient = httpClient;
-        if (!this.m_uri.toString().startsWith("http://"))
+        if (transport == null)
             {
-            final HttpMethodRetryHandler retryHandler = 
-                new DefaultHttpMethodRetryHandler(0, false);
-            this.m_httpClient.getParams().setParameter(
-                HttpMethodParams.RETRY_HANDLER, retryHandler);
+            throw new NullPointerException("Null transport");
             }
+        this.m_transport = transport;
         this.m_numBytesDownloaded = 0L;
         }
     
+    /**
+     * Sets the watchdog that aborts range requests that stall.  This should
+     * be called before any downloads begin.
+     * 
+     * @param stallWatchdog The watchdog.
+     */
+    public void setStallWatchdog(final StallWatchdog stallWatchdog)
+        {
+        this.m_stallWatchdog = stallWatchdog;
+        }
+    
+    /**
+     * Sets the size we expect the file to be.  We use this to tell whether
+     * a source that rejects our ranges actually has a different file.  This
+     * should be called before any downloads begin.
+     * 
+     * @param expectedSize The expected size of the file.
+     */
+    public void setExpectedSize(final long expectedSize)
+        {
+        this.m_expectedSize = expectedSize;
+        }
+    
+    /**
+     * Sets the class for checking that this source serves the same version
+     * of the file as other sources and as itself over time.  This should be
+     * called before any downloads begin.
+     * 
+     * @param sourceValidators The validators for the download.
+     */
+    public void setSourceValidators(final SourceValidators sourceValidators)
+        {
+        this.m_sourceValidators = sourceValidators;
+        }
+    
+    /**
+     * Sets the cache for the final targets of redirects.  When the source 
+     * redirects us, later range requests go straight to the target.  This
+     * should be called before any downloads begin.
+     * 
+     * @param redirectCache The cache.
+     */
+    public void setRedirectCache(final RedirectCache redirectCache)
+        {
+        this.m_redirectCache = redirectCache;
+        }
+    
+    /**
+     * Sets the bandwidth limiter for the download.  Everything we read also
+     * counts against the limiter for the source's host, if there is one.
+     * This should be called before any downloads begin.
+     * 
+     * @param bandwidthLimiter The limiter.
+     */
+    public void setBandwidthLimiter(final BandwidthLimiter bandwidthLimiter)
+        {
+        this.m_bandwidthLimiter = bandwidthLimiter;
+        }
+    
+    /**
+     * Sets what parts of the file the source has, such as from the 
+     * resolver.  Sources can also tell us this themselves in their 
+     * responses.
+     * 
+     * @param availability The parts of the file the source has.
+     */
+    public void setAvailability(final SourceAvailability availability)
+        {
+        this.m_availability = availability;
+        }
+    
+    public SourceAvailability getAvailability()
+        {
+        return this.m_availability;
+        }
+    
+    /**
+     * Sets the rate we expect from this source, such as from past 
+     * downloads, until we've measured it ourselves.
+     * 
+     * @param bytesPerSecond The expected rate in bytes per second.
+     */
+    public void setExpectedRate(final long bytesPerSecond)
+        {
+        this.m_bytesPerSecond = bytesPerSecond;
+        }
+    
+    /**
+     * Accessor for the rate of the last range from this source, or the
+     * expected rate if we haven't completed one yet.
+     * 
+     * @return The rate in bytes per second, or -1 if we don't know.
+     */
+    public long getBytesPerSecond()
+        {
+        return this.m_bytesPerSecond;
+        }
+    
+    /**
+     * Sets whether or not we think the source serves multiple ranges in one
+     * response.  We'll find out for sure when we ask.
+     * 
+     * @param supported Whether or not we think the source supports 
+     * multiple ranges.
+     */
+    public void setMultipleRangesSupported(final boolean supported)
+        {
+        this.m_multipleRangesSupported = supported;
+        }
+    
+    /**
+     * Accessor for the round trip time to the source.  This is the time
+     * for our HEAD request if we sent one.  Otherwise it's the connect time
+     * of our last range request, or the time to the first byte of our 
+     * first range request.
+     * 
+     * @return The round trip time in milliseconds, or -1 if we don't know.
+     */
+    public long getRtt()
+        {
+        if (this.m_rtt != -1L)
+            {
+            return this.m_rtt;
+            }
+        if (this.m_connectTime != -1L)
+            {
+            return this.m_connectTime;
+            }
+        return getTimeToFirstByte();
+        }
+    
+    /**
+     * Sets the circuit breaker for the source.  Connections to the same 
+     * source typically share one.  This should be called before any 
+     * downloads begin.
+     * 
+     * @param circuitBreaker The circuit breaker.
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker)
+        {
+        this.m_circuitBreaker = circuitBreaker;
+        }
+    
     public void download(final LongRange range)
         {
+        download(Collections.singletonList(range));
+        }
+    
+    public void download(final List<LongRange> ranges)
+        {
+        startDownload(ranges, null);
+        }
+    
+    public void race(final LongRange range, final RangeRace race)
+        {
+        startDownload(Collections.singletonList(range), race);
+        }
+    
+    public void cancel()
+        {
+        this.m_cancelled = true;
+        final RangeExchange exchange = this.m_exchange;
+        if (exchange != null)
+            {
+            m_log.debug("Cancelling request to: {}", this.m_uri);
+            exchange.abort();
+            }
+        }
+    
+    /**
+     * Called when the watchdog decides our current range has stalled.  We
+     * abort the request, and the range goes back to the tracker as a normal
+     * failure of this source.
+     */
+    void onStalled()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        if (exchange != null)
+            {
+            m_log.debug("Aborting stalled request to: {}", this.m_uri);
+            exchange.abort();
+            }
+        }
+    
+    private void startDownload(final List<LongRange> ranges, 
+        final RangeRace race)
+        {
+        this.m_race = race;
+        this.m_cancelled = false;
         this.m_completedTime = -1;
         this.m_startedTime = -1;
         this.m_contentLength = -1;
-        this.m_assignedRange = range;
-        m_log.debug("Downloading from: "+this.m_uri);
-        final GetMethod method = new GetMethod(this.m_uri.toString());
-        method.getParams().setBooleanParameter(
-            HttpMethodParams.WARN_EXTRA_INPUT, true);
+        this.m_contentRange = null;
+        this.m_assignedReleased = false;
+        this.m_quarantined = false;
+        this.m_corrupt = false;
+        this.m_assignedRange = ranges.get(0);
+        synchronized (this.m_extraRanges)
+            {
+            this.m_extraRanges.clear();
+            this.m_extraRanges.addAll(ranges.subList(1, ranges.size()));
+            }
+        if (!this.m_multipleRangesSupported)
+            {
+            releaseExtraRanges();
+            }
+        final RedirectCache redirectCache = this.m_redirectCache;
+        final URI target = redirectCache == null ? 
+            this.m_uri : redirectCache.getTarget(this.m_uri);
+        this.m_requestUri = target;
+        this.m_responderUri = target;
+        m_log.debug("Downloading from: "+target);
+        final RangeRequest request = 
+            new RangeRequest(RangeRequest.GET, target);
         
         // See RFC 2616 section 14.35.1 - "Byte Ranges"
-        final String rangesSpecifier = 
-            "bytes="+range.getMinimumLong()+"-"+range.getMaximumLong();
-        method.addRequestHeader("Range", rangesSpecifier);
+        final String rangesSpecifier;
+        synchronized (this.m_extraRanges)
+            {
+            final List<LongRange> requested = new LinkedList<LongRange>();
+            requested.add(this.m_assignedRange);
+            requested.addAll(this.m_extraRanges);
+            rangesSpecifier = ContentRangeUtils.toRangesSpecifier(requested);
+            }
+        request.addHeader("Range", rangesSpecifier);
+        request.addHeader("Want-Content-Digest", 
+            RangeDigest.WANT_CONTENT_DIGEST);
+        
+        // If the file changed on the source, we'll get a 200 with the whole
+        // new file instead of the range.  See RFC 2616 section 14.27.
+        final SourceValidators validators = this.m_sourceValidators;
+        final String ifRange = 
+            validators == null ? null : validators.getIfRange(target);
+        if (ifRange != null)
+            {
+            request.addHeader("If-Range", ifRange);
+            }
+        this.m_sentIfRange = ifRange != null;
         
-        m_log.debug("HTTP connection manager: " +
-            m_httpClient.getHttpConnectionManager().getClass());
+        // We hold on to the exchange before executing it so that it's
+        // there to inspect as soon as events arrive.
+        final RangeExchange exchange = this.m_transport.newExchange(request);
+        this.m_exchange = exchange;
         
-        final Runnable runner = 
-            new HttpClientRunner(this, this.m_httpClient, method, this);
-
-        // Tempting to get rid of this extra thread here.
-        final Thread httpThread = 
-            new Thread(runner, "HTTP-Download-Thread-"+this.hashCode());
-        httpThread.setDaemon(true);
-        httpThread.start();
+        final StallWatchdog watchdog = this.m_stallWatchdog;
+        if (watchdog != null)
+            {
+            watchdog.onRangeStarted(this, this.m_bytesPerSecond);
+            }
+        exchange.execute(this);
+        }
+    
+    private void stopWatching()
+        {
+        final StallWatchdog watchdog = this.m_stallWatchdog;
+        if (watchdog != null)
+            {
+            watchdog.onRangeFinished(this);
+            }
+        }
+    
+    /**
+     * Sets whether or not to skip the separate HEAD request and use the 
+     * first range request as the probe for whether the source is alive and
+     * supports ranges.  This saves a round trip per source.
+     * 
+     * @param probeWithGet Whether or not to probe with the first range 
+     * request.
+     */
+    public void setProbeWithGet(final boolean probeWithGet)
+        {
+        this.m_probeWithGet = probeWithGet;
+        }
+    
+    /**
+     * Accessor for the time between probing the source and receiving the 
+     * first byte of data from it.
+     * 
+     * @return The time to first byte in milliseconds, or -1 if we haven't 
+     * received any data.
+     */
+    public long getTimeToFirstByte()
+        {
+        if (this.m_probeStartTime == -1L || this.m_firstByteTime == -1L)
+            {
+            return -1L;
+            }
+        return this.m_firstByteTime - this.m_probeStartTime;
+        }
+    
+    public boolean supportsMultipleRanges()
+        {
+        return this.m_multipleRangesSupported;
         }
     
     public void issueHeadRequest()
         {
+        this.m_probeStartTime = System.currentTimeMillis();
         // The head request is threaded to allow us to send a lot of them
         // quickly and to use whoever responds the quickest.
         final Runnable headRunner = new Runnable()
@@ -156,10 +612,17 @@ public class SingleSourceDownloader implements RangeDownloader,
                 {
                 try
                     {
-                    // We skip the HEAD request for now.
-                    //m_rangeDownloadListener.onConnect(
-                      //  SingleSourceDownloader.this);
-                    sendHeadRequest();
+                    if (m_probeWithGet)
+                        {
+                        // The first range request tells us whether the 
+                        // source is any good.
+                        m_rangeDownloadListener.onConnect(
+                            SingleSourceDownloader.this);
+                        }
+                    else
+                        {
+                        sendHeadRequest();
+                        }
                     }
                 catch (final Throwable t)
                     {
@@ -179,52 +642,38 @@ public class SingleSourceDownloader implements RangeDownloader,
         // Note for HTTP requests we can often see duplicate
         // requests/downloaders for the same URI.  That's because we maintain
         // 2 connection to the same host to speed things up.
-        final String uri = this.m_uri.toString();
-        m_log.debug("Sending request to URI: {}", uri);
-        final HeadMethod method = new HeadMethod(uri);
+        m_log.debug("Sending request to URI: {}", this.m_uri);
+        final RangeExchange exchange = this.m_transport.newExchange(
+            new RangeRequest(RangeRequest.HEAD, this.m_uri));
         try
             {
-            this.m_httpClient.executeMethod(method);
-            m_log.debug("Finished executing method for HEAD request...");
-            final int statusCode = method.getStatusCode ();
-            if (statusCode == HttpStatus.SC_OK)
-                {
-                method.releaseConnection();
-                this.m_rangeDownloadListener.onConnect(this);
-                }
-            else if (statusCode == HttpStatus.SC_PARTIAL_CONTENT)
-                {
-                method.releaseConnection();
-                final Header range = method.getResponseHeader ("Content-Range");
-                if (range != null)
-                    {
-                    this.m_rangeDownloadListener.onConnect(this);
-                    }
-                else
-                    {
-                    this.m_rangeDownloadListener.onFail(this);
-                    }
-                }
-            else
-                {
-                m_log.debug("Status code: " + statusCode);
-                }
+            final long start = System.currentTimeMillis();
+            exchange.executeAndWait();
+            this.m_rtt = System.currentTimeMillis() - start;
             }
-        catch (final RuntimeHttpException e)
+        catch (final IOException e)
             {
             // We just won't end up using this source.
-            m_log.debug("HTTP exception contacting source", e);
+            m_log.debug("Error contacting source", e);
             this.m_rangeDownloadListener.onFail(this);
+            return;
             }
-        catch (final RuntimeIoException e)
+        m_log.debug("Finished executing HEAD request...");
+        final int statusCode = exchange.getStatusCode();
+        updateAvailability(exchange);
+        if (statusCode == HttpURLConnection.HTTP_OK)
             {
-            // We just won't end up using this source.
-            m_log.debug("IO error contacting source", e);
-            this.m_rangeDownloadListener.onFail(this);
+            this.m_rangeDownloadListener.onConnect(this);
             }
-        finally
+        else if (statusCode == HttpURLConnection.HTTP_PARTIAL &&
+            exchange.getResponseHeader("Content-Range") != null)
             {
-            method.releaseConnection();
+            this.m_rangeDownloadListener.onConnect(this);
+            }
+        else
+            {
+            m_log.debug("Status code: " + statusCode);
+            this.m_rangeDownloadListener.onFail(this);
             }
         }
 
@@ -234,6 +683,13 @@ public class SingleSourceDownloader implements RangeDownloader,
             this.m_startedTime == -1 ||
             this.m_completedTime == -1)
             {
+            if (this.m_bytesPerSecond != -1L)
+                {
+                // Use the last rate we know of, such as while a range is in
+                // flight.
+                return new SomeImpl<Integer> (
+                    (int) (this.m_bytesPerSecond / 1024));
+                }
             m_log.debug ("Trying to get kbs without enough" +
                           " data.  Content Length: "+this.m_contentLength +
                           " Connect Time: "+this.m_startedTime+" Completed " +
@@ -262,7 +718,7 @@ public class SingleSourceDownloader implements RangeDownloader,
             
             final long downloadMs = safeCompletedTime - m_startedTime;
             
-            final int kbs = (int) (m_contentLength * 1000 / downloadMs * 1024);
+            final int kbs = (int) (m_contentLength * 1000 / downloadMs / 1024);
             
             return new SomeImpl<Integer> (kbs);
             }
@@ -284,32 +740,515 @@ public class SingleSourceDownloader implements RangeDownloader,
         
         // We reset the bytes downloaded with each new HTTP method body read.
         m_numBytesDownloaded = 0;
-        copy(is);
+        copy(throttle(is));
         }
     
     /**
-     * Copies the data from a given input stream into the part of the file for
-     * which we are responsible.  The input stream is queued up to the part of
-     * the file for which we are responsible.
+     * Wraps the response body so reading it counts against our bandwidth
+     * limits.
      * 
-     * @param is The input stream from which to read data to put into the file.
-     *      
-     * @throws IOException If there are any I/O problems.
+     * @param is The response body.
+     * @return The throttled body.
+     */
+    private InputStream throttle(final InputStream is)
+        {
+        final BandwidthLimiter host = 
+            BandwidthLimiter.findHostLimiter(this.m_uri.getHost());
+        return new ThrottledInputStream(is, this.m_bandwidthLimiter, host)
+            {
+            @Override
+            protected void onThrottled(final long millis)
+                {
+                final StallWatchdog watchdog = m_stallWatchdog;
+                if (watchdog != null)
+                    {
+                    watchdog.onThrottled(SingleSourceDownloader.this, millis);
+                    }
+                }
+            };
+        }
+    
+    /**
+     * Copies the data from a given input stream into the part of the file for
+     * which we are responsible.  The input stream is queued up to the part of
+     * the file for which we are responsible.
+     * 
+     * @param is The input stream from which to read data to put into the file.
+     *      
+     * @throws IOException If there are any I/O problems.
      */
     private void copy(final InputStream is) throws IOException 
         {
+        onResponder();
+        if (!isConsistent())
+            {
+            // Don't write any of the bytes.
+            this.m_quarantined = true;
+            throw new IOException("Source serves a different file: " + 
+                this.m_uri);
+            }
+        final String boundary = getMultipartBoundary();
+        if (boundary != null)
+            {
+            copyParts(is, boundary);
+            return;
+            }
+        
+        final RangeExchange exchange = this.m_exchange;
+        if (this.m_contentRange == null && this.m_race == null && 
+            exchange != null && exchange.getStatusCode() == HttpURLConnection.HTTP_OK)
+            {
+            copyWholeBody(is, exchange);
+            return;
+            }
+        
         // It's possible the server never provided a content range.
         if (this.m_contentRange == null)
             {
             m_log.error("No Content-Range header from: {} ...expecting: " + 
                 this.m_assignedRange, this.m_uri);
+            if (hasExtraRanges())
+                {
+                // The server likely ignored our multiple range request.
+                this.m_multipleRangesSupported = false;
+                }
             
             // We don't notify of failure because the exception eventually
             // triggers the failure notification.
             throw new NoContentRangeException("No content range");
             }
-        final long min = m_contentRange.getMinimumLong();
-        final long max = m_contentRange.getMaximumLong();
+        final RangeDigest digest = getRangeDigest(exchange);
+        if (this.m_race != null)
+            {
+            copyRaceRange(is, this.m_race, digest);
+            return;
+            }
+        if (digest != null)
+            {
+            copyVerifiedRange(is, this.m_contentRange, digest);
+            return;
+            }
+        copyRange(is, this.m_contentRange);
+        } 
+    
+    private static RangeDigest getRangeDigest(final RangeExchange exchange)
+        {
+        if (exchange == null)
+            {
+            return null;
+            }
+        return RangeDigest.fromHeaders(
+            exchange.getResponseHeader("Content-Digest"),
+            exchange.getResponseHeader("Content-MD5"));
+        }
+    
+    /**
+     * Copies a range into the file while computing its digest.  We hold 
+     * off telling the launch tracker about the range until it checks out,
+     * so readers never see bad bytes.
+     * 
+     * @param is The input stream for the range.
+     * @param range The range.
+     * @param digest The digest the server sent for the range.
+     * @throws IOException If there are any I/O problems or the range 
+     * doesn't match its digest.
+     */
+    private void copyVerifiedRange(final InputStream is, 
+        final LongRange range, final RangeDigest digest) throws IOException
+        {
+        final MessageDigest md = digest.newMessageDigest();
+        final List<LongRange> written = new LinkedList<LongRange>();
+        final LongRangeListener deferred = new LongRangeListener()
+            {
+            public void onRangeComplete(final LongRange completed)
+                {
+                written.add(completed);
+                }
+            };
+        copyRange(new DigestInputStream(is, md), range, deferred);
+        if (!digest.matches(md.digest()))
+            {
+            onDigestMismatch(range, digest);
+            }
+        for (final LongRange completed : written)
+            {
+            this.m_launchFileTracker.onRangeComplete(completed);
+            }
+        }
+    
+    private void onDigestMismatch(final LongRange range, 
+        final RangeDigest digest) throws IOException
+        {
+        this.m_corrupt = true;
+        this.m_numDigestMismatches++;
+        m_log.warn("Range "+range+" from "+this.m_uri+" failed "+digest);
+        throw new IOException("Digest mismatch for range: " + range);
+        }
+    
+    /**
+     * Checks the response validators and the file size the source reports 
+     * against what it and the other sources have reported before.
+     * 
+     * @return <code>true</code> if the response is for the same file, 
+     * otherwise <code>false</code>.
+     */
+    private boolean isConsistent()
+        {
+        final SourceValidators validators = this.m_sourceValidators;
+        final RangeExchange exchange = this.m_exchange;
+        if (validators == null || exchange == null)
+            {
+            return true;
+            }
+        
+        // We pin validators to whoever actually answers, since a 
+        // redirecting source can send us to different mirrors over time.
+        final URI responder = this.m_responderUri;
+        final long size;
+        if (exchange.getStatusCode() == HttpURLConnection.HTTP_OK)
+            {
+            if (this.m_sentIfRange && responder.equals(this.m_requestUri))
+                {
+                m_log.debug("If-Range failed for: {}", responder);
+                return false;
+                }
+            size = this.m_contentLength;
+            }
+        else
+            {
+            final String range = exchange.getResponseHeader("Content-Range");
+            size = range == null ? 
+                -1L : ContentRangeUtils.parseInstanceLength(range);
+            }
+        return validators.onResponse(responder, 
+            exchange.getResponseHeader("ETag"), 
+            exchange.getResponseHeader("Last-Modified"), size);
+        }
+    
+    /**
+     * Records the URI that actually answered the current request, caching 
+     * it as the source's redirect target if it's not the source itself.
+     */
+    private void onResponder()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        if (exchange == null)
+            {
+            return;
+            }
+        updateAvailability(exchange);
+        final URI responder = exchange.getResponseUri();
+        if (responder == null)
+            {
+            m_log.debug("Could not read final URI");
+            return;
+            }
+        this.m_responderUri = responder;
+        final RedirectCache redirectCache = this.m_redirectCache;
+        if (redirectCache != null && 
+            !this.m_responderUri.equals(this.m_requestUri))
+            {
+            redirectCache.onRedirect(this.m_uri, this.m_responderUri);
+            }
+        }
+    
+    /**
+     * Picks up what parts of the file a partial source has from its 
+     * response, if it told us.
+     * 
+     * @param exchange The exchange with the response.
+     */
+    private void updateAvailability(final RangeExchange exchange)
+        {
+        final String header = 
+            exchange.getResponseHeader(SourceAvailability.HEADER);
+        if (header == null)
+            {
+            return;
+            }
+        final SourceAvailability availability = 
+            SourceAvailability.parse(header);
+        if (availability == null)
+            {
+            m_log.debug("Bad availability from {}: {}", this.m_uri, header);
+            }
+        else
+            {
+            this.m_availability = availability;
+            }
+        }
+    
+    private boolean isRedirected()
+        {
+        final URI responder = this.m_responderUri;
+        return responder != null && !responder.equals(this.m_uri);
+        }
+    
+    /**
+     * Reads the whole file from a source that ignored our Range header,
+     * writing any ranges we still need as the stream passes them.  We stop
+     * reading once nothing we need is close enough ahead.
+     * 
+     * @param is The input stream for the whole file.
+     * @param exchange The exchange for the request.
+     * @throws IOException If there are any I/O problems.
+     */
+    private void copyWholeBody(final InputStream is, 
+        final RangeExchange exchange) 
+        throws IOException
+        {
+        m_log.debug("Source sent the whole file: {}", this.m_uri);
+        if (hasExtraRanges())
+            {
+            // The stream passes these anyway, so we can claim them as we go.
+            this.m_multipleRangesSupported = false;
+            releaseExtraRanges();
+            }
+        final LongRange assigned = this.m_assignedRange;
+        boolean assignedDone = false;
+        long position = 0;
+        while (true)
+            {
+            final LongRange range;
+            if (!assignedDone && position == assigned.getMinimumLong())
+                {
+                range = assigned;
+                }
+            else
+                {
+                range = this.m_rangeTracker.claimRange(position);
+                }
+            if (range != null)
+                {
+                copyClaimedRange(is, range, range != assigned);
+                assignedDone = assignedDone || range == assigned;
+                position = range.getMaximumLong() + 1;
+                continue;
+                }
+            
+            // Nothing to write here, so skip ahead to the next range we can
+            // use if it's not too far.
+            long next = this.m_rangeTracker.getNextInactiveStart(position);
+            if (!assignedDone && 
+                (next == -1 || next > assigned.getMinimumLong()))
+                {
+                next = assigned.getMinimumLong();
+                }
+            if (next == -1 || next - position > MAX_SKIP)
+                {
+                break;
+                }
+            skip(is, next - position);
+            position = next;
+            }
+        
+        if (!assignedDone)
+            {
+            m_log.debug("Never reached assigned range: {}", assigned);
+            this.m_assignedReleased = true;
+            this.m_rangeTracker.onRangeFailed(assigned);
+            }
+        
+        // This is the amount we actually read, which we use for the rate.
+        this.m_contentLength = position;
+        
+        // Don't let the connection read the rest of the file on release.
+        exchange.abort();
+        }
+    
+    /**
+     * Copies a range from a stream of the whole file.
+     * 
+     * @param is The input stream positioned at the start of the range.
+     * @param range The range.
+     * @param claimed Whether or not we claimed the range from the tracker 
+     * ourselves, in which case we're also responsible for completing it or
+     * giving it back.
+     * @throws IOException If there are any I/O problems.
+     */
+    private void copyClaimedRange(final InputStream is, final LongRange range,
+        final boolean claimed) throws IOException
+        {
+        if (!claimed)
+            {
+            copyRange(is, range);
+            return;
+            }
+        boolean copied = false;
+        try
+            {
+            copyRange(is, range);
+            copied = true;
+            }
+        finally
+            {
+            if (copied)
+                {
+                this.m_rangeTracker.onRangeComplete(range);
+                }
+            else
+                {
+                this.m_rangeTracker.onRangeFailed(range);
+                }
+            }
+        }
+    
+    private void skip(final InputStream is, final long bytes) 
+        throws IOException
+        {
+        final byte[] buffer = new byte[8192];
+        long remaining = bytes;
+        while (remaining > 0)
+            {
+            final int read = 
+                is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read == -1)
+                {
+                throw new IOException("Stream ended while skipping");
+                }
+            remaining -= read;
+            
+            // These bytes don't count toward our rate, but they do show the
+            // connection is alive.
+            final StallWatchdog watchdog = this.m_stallWatchdog;
+            if (watchdog != null)
+                {
+                watchdog.onBytesRead(this, read);
+                }
+            }
+        }
+    
+    /**
+     * Reads a range we're racing other downloaders for into memory, only 
+     * writing it to the file if we win.  Raced ranges are small, and this
+     * keeps the losers from writing or reporting the same range twice.
+     * 
+     * @param is The input stream for the range.
+     * @param race The race.
+     * @throws IOException If there are any I/O problems.
+     */
+    private void copyRaceRange(final InputStream is, final RangeRace race,
+        final RangeDigest digest) throws IOException
+        {
+        final LongRange range = this.m_contentRange;
+        final int expectedBytes = 
+            (int) (range.getMaximumLong() - range.getMinimumLong() + 1);
+        final byte[] data = new byte[expectedBytes];
+        int index = 0;
+        while (index < expectedBytes)
+            {
+            final int read = is.read(data, index, 
+                Math.min(8192, expectedBytes - index));
+            if (read == -1)
+                {
+                throw new IOException("Stream ended at "+index+" of "+range);
+                }
+            index += read;
+            onRangeBytesRead(read);
+            }
+        if (digest != null)
+            {
+            final MessageDigest md = digest.newMessageDigest();
+            md.update(data);
+            if (!digest.matches(md.digest()))
+                {
+                onDigestMismatch(range, digest);
+                }
+            }
+        
+        if (!race.claim(this))
+            {
+            m_log.debug("Lost race for {} from {}", range, this.m_uri);
+            return;
+            }
+        synchronized (this.m_randomAccessFile)
+            {
+            this.m_randomAccessFile.seek(range.getMinimumLong());
+            this.m_randomAccessFile.write(data);
+            }
+        this.m_launchFileTracker.onRangeComplete(range);
+        }
+    
+    /**
+     * Copies each part of a multipart/byteranges response into the file,
+     * notifying the range tracker of each extra range as it completes.  The
+     * assigned range completes when the whole message body is read.
+     * 
+     * @param is The input stream for the response body.
+     * @param boundary The multipart boundary.
+     * @throws IOException If there are any I/O problems or the response
+     * doesn't include the assigned range.
+     */
+    private void copyParts(final InputStream is, final String boundary) 
+        throws IOException
+        {
+        m_log.debug("Reading multipart/byteranges response from: {}", m_uri);
+        final MultipartByteRangesReader reader = 
+            new MultipartByteRangesReader(is, boundary);
+        boolean receivedAssigned = false;
+        while (true)
+            {
+            final LongRange part = reader.nextPart();
+            if (part == null)
+                {
+                break;
+                }
+            final boolean assigned = part.equals(this.m_assignedRange);
+            if (!assigned && !isExtraRange(part))
+                {
+                throw new IOException("Unexpected part: " + part + 
+                    " from: " + this.m_uri);
+                }
+            copyRange(reader.getPartStream(), part);
+            if (assigned)
+                {
+                receivedAssigned = true;
+                }
+            else
+                {
+                synchronized (this.m_extraRanges)
+                    {
+                    this.m_extraRanges.remove(part);
+                    }
+                this.m_rangeTracker.onRangeComplete(part);
+                }
+            }
+        
+        // Return anything the server didn't send back to the tracker.
+        releaseExtraRanges();
+        if (!receivedAssigned)
+            {
+            throw new IOException("No part for assigned range: " + 
+                this.m_assignedRange);
+            }
+        }
+    
+    /**
+     * Copies the data for a single range from the stream into the file.
+     * 
+     * @param is The input stream positioned at the start of the range data.
+     * @param range The range the data is for.
+     * @throws IOException If there are any I/O problems.
+     */
+    private void copyRange(final InputStream is, final LongRange range) 
+        throws IOException
+        {
+        copyRange(is, range, this.m_launchFileTracker);
+        }
+    
+    /**
+     * Copies the data for a single range from the stream into the file.
+     * 
+     * @param is The input stream positioned at the start of the range data.
+     * @param range The range the data is for.
+     * @param rangeListener The listener for ranges written to the file.
+     * @throws IOException If there are any I/O problems.
+     */
+    private void copyRange(final InputStream is, final LongRange range,
+        final LongRangeListener rangeListener) throws IOException
+        {
+        final long min = range.getMinimumLong();
+        final long max = range.getMaximumLong();
         
         // The number of bytes we expect to read from the stream.  This is
         // simply the number of bytes in the range for which we are responsible.
@@ -322,15 +1261,78 @@ public class SingleSourceDownloader implements RangeDownloader,
             public void onBytesRead(final int bytesRead)
                 {
                 //m_log.debug("Adding bytes read...");
-                m_numBytesDownloaded +=bytesRead;
-                m_rangeDownloadListener.onBytesRead(SingleSourceDownloader.this);
+                onRangeBytesRead(bytesRead);
                 }
             
             };
         // The copy method handles synchronizing the RAF.
         IoUtils.copy(is, this.m_randomAccessFile, min, expectedBytes, 
-            this.m_launchFileTracker, writeListener);
-        } 
+            rangeListener, writeListener);
+        }
+    
+    private void onRangeBytesRead(final int bytesRead)
+        {
+        if (m_firstByteTime == -1L)
+            {
+            m_firstByteTime = System.currentTimeMillis();
+            m_log.debug("Time to first byte from {}: {}", m_uri, 
+                new Long(getTimeToFirstByte()));
+            }
+        m_numBytesDownloaded +=bytesRead;
+        final StallWatchdog watchdog = this.m_stallWatchdog;
+        if (watchdog != null)
+            {
+            watchdog.onBytesRead(this, bytesRead);
+            }
+        m_rangeDownloadListener.onBytesRead(this);
+        }
+    
+    private String getMultipartBoundary()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        if (exchange == null || !hasExtraRanges())
+            {
+            return null;
+            }
+        final String contentType = exchange.getResponseHeader("Content-Type");
+        if (contentType == null)
+            {
+            return null;
+            }
+        return MultipartByteRangesReader.getBoundary(contentType);
+        }
+    
+    private boolean hasExtraRanges()
+        {
+        synchronized (this.m_extraRanges)
+            {
+            return !this.m_extraRanges.isEmpty();
+            }
+        }
+    
+    private boolean isExtraRange(final LongRange range)
+        {
+        synchronized (this.m_extraRanges)
+            {
+            return this.m_extraRanges.contains(range);
+            }
+        }
+    
+    /**
+     * Returns any extra ranges we were assigned but didn't download to the
+     * range tracker.
+     */
+    private void releaseExtraRanges()
+        {
+        synchronized (this.m_extraRanges)
+            {
+            for (final LongRange range : this.m_extraRanges)
+                {
+                this.m_rangeTracker.onRangeFailed(range);
+                }
+            this.m_extraRanges.clear();
+            }
+        }
 
     public void onContentLength(final long contentLength)
         {
@@ -346,36 +1348,319 @@ public class SingleSourceDownloader implements RangeDownloader,
     
     public void onConnect(final long ms)
         {
-        // Ignored.
+        m_log.debug("Connected to {} in {} ms", this.m_uri, new Long(ms));
+        this.m_connectTime = ms;
         }
 
     public void onFailure()
         {
-        m_log.debug("Received download failure number: "+this.m_numFailures+
-            " for: "+this);
-        this.m_rangeTracker.onRangeFailed(this.m_assignedRange);
-        this.m_numFailures++;
-        if (this.m_numFailures < 4)
+        m_log.debug("Received download failure number: "+
+            this.m_circuitBreaker.getNumFailures()+" for: "+this);
+        stopWatching();
+        releaseAssignedRanges();
+        
+        // Whatever we were sent to may be gone, so start over at the source
+        // next time.
+        final RedirectCache redirectCache = this.m_redirectCache;
+        if (redirectCache != null)
             {
+            redirectCache.invalidate(this.m_uri);
+            }
+        if (this.m_quarantined && !isRedirected())
+            {
+            m_log.debug("Dropping inconsistent source: {}", m_uri);
+            this.m_rangeDownloadListener.onFail(this);
+            return;
+            }
+        if (this.m_corrupt && 
+            this.m_numDigestMismatches >= MAX_DIGEST_MISMATCHES)
+            {
+            m_log.debug("Dropping source with corrupt ranges: {}", m_uri);
+            this.m_rangeDownloadListener.onFail(this);
+            return;
+            }
+        if (this.m_cancelled)
+            {
+            // We cancelled the request ourselves, so it's not the source's
+            // fault.
             this.m_sourceRanker.onAvailable(this);
+            return;
+            }
+        if (this.m_probeWithGet && !this.m_verified)
+            {
+            // The first request served as our probe, and the source 
+            // didn't pass.
+            m_log.debug("Source failed initial range request: {}", m_uri);
+            this.m_rangeDownloadListener.onFail(this);
+            return;
             }
+        final long delay = this.m_circuitBreaker.onFailure();
+        if (delay == -1L)
+            {
+            m_log.debug("Giving up on source: {}", m_uri);
+            this.m_rangeDownloadListener.onFail(this);
+            return;
+            }
+        m_log.debug("Retrying {} in {} ms", this.m_uri, new Long(delay));
+        makeAvailableAfter(delay);
+        }
+    
+    /**
+     * Offers this downloader to the ranker again after a delay.  This runs
+     * on the timer shared by all downloads, so waiting doesn't cost a 
+     * thread.
+     * 
+     * @param delay The delay in milliseconds.
+     */
+    private void makeAvailableAfter(final long delay)
+        {
+        DownloadTimer.schedule(new Runnable()
+            {
+            public void run()
+                {
+                m_sourceRanker.onAvailable(SingleSourceDownloader.this);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
         }
     
     public void onPermanentFailure()
         {
-        this.m_rangeTracker.onRangeFailed(this.m_assignedRange);
+        stopWatching();
+        releaseAssignedRanges();
         }
     
-    public void onHttpException(final HttpException httpException)
+    /**
+     * Returns the ranges for a failed request to the range tracker.  If 
+     * we're racing for the range, it only goes back if no other racer can
+     * still finish it.
+     */
+    private void releaseAssignedRanges()
         {
-        m_log.debug("Received HTTP exception");
+        final RangeRace race = this.m_race;
+        if (this.m_assignedReleased)
+            {
+            // Already back in the tracker.
+            }
+        else if (race == null || race.onRacerFailed(this))
+            {
+            this.m_assignedReleased = true;
+            this.m_rangeTracker.onRangeFailed(this.m_assignedRange);
+            }
+        releaseExtraRanges();
+        }
+    
+    public void onProtocolError(final IOException e)
+        {
+        m_log.debug("Received protocol error", e);
         onFailure();
         }
 
     public void onNoTwoHundredOk(final int responseCode)
         {
-        m_log.debug("No 200-level response...re-submitting range...");
-        onFailure();
+        m_log.debug("Received status "+responseCode+" from: "+this.m_uri);
+        onResponder();
+        switch (responseCode)
+            {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case SC_TEMPORARY_REDIRECT:
+            case SC_PERMANENT_REDIRECT:
+                onRedirect();
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+            case HttpURLConnection.HTTP_GONE:
+                onSourceGone();
+                break;
+            case SC_TOO_MANY_REQUESTS:
+            case HttpURLConnection.HTTP_UNAVAILABLE:
+                onThrottled();
+                break;
+            case SC_REQUESTED_RANGE_NOT_SATISFIABLE:
+                onRangeNotSatisfiable();
+                break;
+            default:
+                onFailure();
+                break;
+            }
+        }
+    
+    /**
+     * Handles a redirect the HTTP client didn't follow itself, such as one
+     * to another host.  We remember the target and try again right away.
+     */
+    private void onRedirect()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        final String location = 
+            exchange == null ? null : exchange.getResponseHeader("Location");
+        final RedirectCache redirectCache = this.m_redirectCache;
+        if (location == null || redirectCache == null || 
+            this.m_numRedirects >= MAX_REDIRECTS)
+            {
+            onFailure();
+            return;
+            }
+        final URI target;
+        try
+            {
+            target = this.m_requestUri.resolve(new URI(location.trim()));
+            }
+        catch (final URISyntaxException e)
+            {
+            m_log.debug("Bad Location: {}", location);
+            onFailure();
+            return;
+            }
+        if (!"http".equals(target.getScheme()) && 
+            !"https".equals(target.getScheme()))
+            {
+            m_log.debug("Not following redirect to: {}", target);
+            onFailure();
+            return;
+            }
+        this.m_numRedirects++;
+        stopWatching();
+        releaseAssignedRanges();
+        redirectCache.onRedirect(this.m_uri, target);
+        this.m_sourceRanker.onAvailable(this);
+        }
+    
+    /**
+     * Drops the source for good.  The source doesn't have the file.  If the
+     * answer came from where the source redirected us, though, it's just
+     * that target that's bad.
+     */
+    private void onSourceGone()
+        {
+        if (isRedirected())
+            {
+            onFailure();
+            return;
+            }
+        m_log.debug("Dropping source: {}", this.m_uri);
+        stopWatching();
+        releaseAssignedRanges();
+        this.m_rangeDownloadListener.onFail(this);
+        }
+    
+    /**
+     * Backs off from a source that's too busy for us, waiting as long as it
+     * asks us to.  This doesn't count as a failure of the source.
+     */
+    private void onThrottled()
+        {
+        stopWatching();
+        releaseAssignedRanges();
+        final long retryAfter = getRetryAfter();
+        final long delay;
+        if (retryAfter == -1L)
+            {
+            delay = DEFAULT_RETRY_AFTER << Math.min(this.m_numThrottles, 10);
+            }
+        else
+            {
+            delay = retryAfter;
+            }
+        this.m_numThrottles++;
+        if (delay > MAX_RETRY_AFTER)
+            {
+            m_log.debug("Source wants us to wait too long: {}", this.m_uri);
+            this.m_rangeDownloadListener.onFail(this);
+            return;
+            }
+        m_log.debug("Backing off from {} for {} ms", this.m_uri, 
+            new Long(delay));
+        makeAvailableAfter(delay);
+        }
+    
+    /**
+     * Accessor for the delay the source asked for in its Retry-After header.
+     * See RFC 2616 section 14.37.
+     * 
+     * @return The delay in milliseconds, or -1 if there isn't a valid one.
+     */
+    private long getRetryAfter()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        if (exchange == null)
+            {
+            return -1L;
+            }
+        final String header = exchange.getResponseHeader("Retry-After");
+        if (header == null)
+            {
+            return -1L;
+            }
+        final String value = header.trim();
+        if (NumberUtils.isDigits(value))
+            {
+            return Long.parseLong(value) * 1000;
+            }
+        final Date date = parseHttpDate(value);
+        if (date == null)
+            {
+            m_log.debug("Could not parse Retry-After: {}", value);
+            return -1L;
+            }
+        return Math.max(0L, date.getTime() - System.currentTimeMillis());
+        }
+    
+    /**
+     * Parses a date in any of the formats RFC 2616 section 3.3.1 allows.
+     * 
+     * @param value The date.
+     * @return The date, or <code>null</code> if it's not in any of the
+     * formats.
+     */
+    private static Date parseHttpDate(final String value)
+        {
+        final String[] patterns = 
+            {
+            "EEE, dd MMM yyyy HH:mm:ss zzz",
+            "EEEE, dd-MMM-yy HH:mm:ss zzz",
+            "EEE MMM d HH:mm:ss yyyy"
+            };
+        for (final String pattern : patterns)
+            {
+            // Date formats aren't thread safe, so we make our own.
+            final DateFormat format = new SimpleDateFormat(pattern, Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            try
+                {
+                return format.parse(value);
+                }
+            catch (final ParseException e)
+                {
+                // Try the next format.
+                }
+            }
+        return null;
+        }
+    
+    /**
+     * The source says it can't serve our range.  If it reports a different
+     * size for the file, it's simply not the file we want.  Otherwise we 
+     * treat it like any other failure.
+     */
+    private void onRangeNotSatisfiable()
+        {
+        final RangeExchange exchange = this.m_exchange;
+        final String header = exchange == null ? 
+            null : exchange.getResponseHeader("Content-Range");
+        final long size = header == null ? 
+            -1L : ContentRangeUtils.parseInstanceLength(header);
+        if (size != -1L && this.m_expectedSize != -1L && 
+            size != this.m_expectedSize)
+            {
+            m_log.debug("Source reports size "+size+" but we expected "+
+                this.m_expectedSize+": "+this.m_uri);
+            onSourceGone();
+            }
+        else
+            {
+            onFailure();
+            }
         }
     
     public void onMessageBodyRead()
@@ -384,17 +1669,29 @@ public class SingleSourceDownloader implements RangeDownloader,
         this.m_completedTime = System.currentTimeMillis();
         m_numBytesDownloaded = m_contentLength;
         m_log.info ("Completed time recorded as: " + m_completedTime);
+        stopWatching();
+        if (this.m_startedTime != -1 && this.m_contentLength > 0)
+            {
+            final long ms = 
+                Math.max(1, this.m_completedTime - this.m_startedTime);
+            this.m_bytesPerSecond = this.m_contentLength * 1000 / ms;
+            }
+        this.m_verified = true;
         
         // This is notifying the class that just keeps track of ranges we 
         // need. This is NOT the class that streams the file to the browser.
-        this.m_rangeTracker.onRangeComplete(this.m_assignedRange);
-        
-        this.m_completedRanges++;
-        if (this.m_numFailures > 0)
+        // If we lost a race for the range, the winner handles this.
+        final RangeRace race = this.m_race;
+        if (race == null || race.isWinner(this))
             {
-            this.m_numFailures--;
+            completeAssignedRange();
             }
         
+        this.m_completedRanges++;
+        this.m_numThrottles = 0;
+        this.m_numRedirects = 0;
+        this.m_circuitBreaker.onSuccess();
+        
         this.m_rangeDownloadListener.onDownloadFinished (this);
         
         // Everything's going well with this downloader, so add it to the 
@@ -402,6 +1699,26 @@ public class SingleSourceDownloader implements RangeDownloader,
         this.m_sourceRanker.onAvailable(this);
         }
 
+    private void completeAssignedRange()
+        {
+        final LongRange received = this.m_contentRange;
+        if (this.m_assignedReleased)
+            {
+            // We never got to it, and it's already back in the tracker.
+            }
+        else if (received != null && !received.equals(this.m_assignedRange))
+            {
+            // The source only sent part of the range.  The rest goes back
+            // to the tracker.
+            this.m_rangeTracker.onRangePartiallyComplete(
+                this.m_assignedRange, received);
+            }
+        else
+            {
+            this.m_rangeTracker.onRangeComplete(this.m_assignedRange);
+            }
+        }
+
     public void onBadHeader(final String header)
         {
         m_log.warn("Could not understand header: {}", header);
@@ -411,14 +1728,29 @@ public class SingleSourceDownloader implements RangeDownloader,
     public void onContentRange(final LongRange range) throws IOException
         {
         m_log.debug("Received Content-Range: "+range);
-        if (!range.equals (m_assignedRange))
+        if (!m_assignedRange.containsRange(range))
             {
             final String msg = "Bad range -- expected: " +this.m_assignedRange+
                 " but was: "+range; 
             m_log.error(msg);
             throw new IOException(msg);
             }
+        if (!range.equals(m_assignedRange))
+            {
+            // We'll use what the source sent and requeue the rest.
+            m_log.debug("Source sent part of range {}: {}", m_assignedRange,
+                range);
+            }
+        if (hasExtraRanges())
+            {
+            // The server only sent the first of the ranges we asked for, so
+            // we won't bother asking it for more than one again.
+            m_log.debug("Source does not support multiple ranges: {}", m_uri);
+            this.m_multipleRangesSupported = false;
+            releaseExtraRanges();
+            }
         this.m_contentRange = range;
+        this.m_verified = true;
         }
     
     public void onStatusEvent(final String status)
@@ -0,0 +1,176 @@
+package org.lastbamboo.common.download;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.littleshoot.util.None;
+import org.littleshoot.util.Optional;
+import org.littleshoot.util.OptionalVisitor;
+import org.littleshoot.util.Some;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically compares the rate of each source against the median rate of
+ * all the sources for a download and picks out the sources that have lagged
+ * far behind for several evaluations in a row.
+ */
+public class SlowSourceEvaluator
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * Sources below this fraction of the median rate count as slow.
+     */
+    private static final double SLOW_FRACTION = 0.25;
+    
+    /**
+     * The number of evaluations in a row a source has to be slow before we 
+     * evict it.
+     */
+    private static final int MAX_STRIKES = 3;
+    
+    /**
+     * We need at least this many sources with known rates before the median
+     * means anything.
+     */
+    private static final int MIN_SOURCES = 3;
+    
+    private final Map<RangeDownloader, Integer> m_strikes =
+        new HashMap<RangeDownloader, Integer>();
+
+    private int m_numEvaluations;
+    
+    private int m_numEvictions;
+    
+    /**
+     * Evaluates the given sources and returns the ones that should be 
+     * evicted.
+     * 
+     * @param sources The sources currently downloading.
+     * @param maxEvictions The most sources to evict.  This is typically the
+     * number of replacement sources available.
+     * @return The sources to evict, slowest first.
+     */
+    public synchronized List<RangeDownloader> evaluate(
+        final Collection<RangeDownloader> sources, final int maxEvictions)
+        {
+        m_numEvaluations++;
+        final Map<RangeDownloader, Integer> rates = 
+            new HashMap<RangeDownloader, Integer>();
+        for (final RangeDownloader source : sources)
+            {
+            final int kbs = toKbs(source.getKbs());
+            if (kbs >= 0)
+                {
+                rates.put(source, kbs);
+                }
+            }
+        
+        // Forget about sources that are no longer around.
+        m_strikes.keySet().retainAll(rates.keySet());
+        
+        final List<RangeDownloader> evicted = new LinkedList<RangeDownloader>();
+        if (rates.size() < MIN_SOURCES)
+            {
+            return evicted;
+            }
+        
+        final double threshold = median(rates.values()) * SLOW_FRACTION;
+        final List<RangeDownloader> laggards = 
+            new ArrayList<RangeDownloader>();
+        for (final Map.Entry<RangeDownloader, Integer> entry : rates.entrySet())
+            {
+            final RangeDownloader source = entry.getKey();
+            if (entry.getValue() < threshold)
+                {
+                final Integer strikes = m_strikes.get(source);
+                final int newStrikes = strikes == null ? 1 : strikes + 1;
+                m_strikes.put(source, newStrikes);
+                if (newStrikes >= MAX_STRIKES)
+                    {
+                    laggards.add(source);
+                    }
+                }
+            else
+                {
+                m_strikes.remove(source);
+                }
+            }
+        
+        Collections.sort(laggards, new DownloadSpeedComparator());
+        
+        // Never evict so many sources that we'd drop below the minimum, and 
+        // evict the slowest ones first.
+        final int maxToEvict = Math.min(maxEvictions, 
+            rates.size() - MIN_SOURCES + 1);
+        for (int i = laggards.size() - 1; i >= 0 && evicted.size() < maxToEvict;
+            i--)
+            {
+            final RangeDownloader source = laggards.get(i);
+            m_log.debug("Evicting slow source: {}", source);
+            m_strikes.remove(source);
+            evicted.add(source);
+            }
+        m_numEvictions += evicted.size();
+        return evicted;
+        }
+    
+    /**
+     * Accessor for the number of times we've evaluated sources.
+     * 
+     * @return The number of evaluations.
+     */
+    public synchronized int getNumEvaluations()
+        {
+        return m_numEvaluations;
+        }
+    
+    /**
+     * Accessor for the number of sources we've evicted.
+     * 
+     * @return The number of evicted sources.
+     */
+    public synchronized int getNumEvictions()
+        {
+        return m_numEvictions;
+        }
+
+    private static double median(final Collection<Integer> values)
+        {
+        final Integer[] sorted = values.toArray(new Integer[values.size()]);
+        Arrays.sort(sorted);
+        final int middle = sorted.length / 2;
+        if (sorted.length % 2 == 1)
+            {
+            return sorted[middle];
+            }
+        return (sorted[middle - 1] + sorted[middle]) / 2.0;
+        }
+    
+    private static int toKbs(final Optional<Integer> kbs)
+        {
+        final OptionalVisitor<Integer,Integer> visitor =
+            new OptionalVisitor<Integer,Integer> ()
+            {
+            public Integer visitSome (final Some<Integer> some)
+                {
+                return some.object ();
+                }
+            
+            public Integer visitNone (final None<Integer> none)
+                {
+                return -1;
+                }
+            };
+            
+        return kbs.accept (visitor);
+        }
+    }
@@ -0,0 +1,163 @@
+package org.lastbamboo.common.download;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.math.LongRange;
+
+/**
+ * The parts of a file a source can serve.  Most sources have the whole 
+ * file, but peers that are still downloading it only have some of it.
+ */
+public final class SourceAvailability
+    {
+
+    /**
+     * The header partial sources use to tell us what they have, as in 
+     * <code>X-Available-Ranges: bytes 0-1023, 4096-8191</code>.  This is
+     * the same header Gnutella uses for partial file sharing.
+     */
+    public static final String HEADER = "X-Available-Ranges";
+    
+    /**
+     * Availability for sources that have the whole file.
+     */
+    public static final SourceAvailability COMPLETE = 
+        new SourceAvailability(null);
+    
+    /**
+     * The ranges the source has, sorted and not overlapping, or 
+     * <code>null</code> if it has the whole file.
+     */
+    private final List<LongRange> m_ranges;
+
+    private SourceAvailability(final List<LongRange> ranges)
+        {
+        m_ranges = ranges;
+        }
+    
+    /**
+     * Creates availability for a source that has the given ranges.
+     * 
+     * @param ranges The ranges the source has.
+     * @return The availability.
+     */
+    public static SourceAvailability create(final Collection<LongRange> ranges)
+        {
+        final List<LongRange> sorted = new ArrayList<LongRange>(ranges);
+        Collections.sort(sorted, new LongRangeComparator());
+        
+        // Merge overlapping and adjacent ranges.
+        final List<LongRange> merged = new ArrayList<LongRange>();
+        for (final LongRange range : sorted)
+            {
+            if (!merged.isEmpty())
+                {
+                final LongRange last = merged.get(merged.size() - 1);
+                if (range.getMinimumLong() <= last.getMaximumLong() + 1)
+                    {
+                    merged.set(merged.size() - 1, 
+                        new LongRange(last.getMinimumLong(), 
+                            Math.max(last.getMaximumLong(), 
+                                range.getMaximumLong())));
+                    continue;
+                    }
+                }
+            merged.add(range);
+            }
+        return new SourceAvailability(merged);
+        }
+    
+    /**
+     * Parses the value of an {@link #HEADER} header.
+     * 
+     * @param value The header value.
+     * @return The availability, or <code>null</code> if the value isn't 
+     * valid.
+     */
+    public static SourceAvailability parse(final String value)
+        {
+        if (value == null)
+            {
+            return null;
+            }
+        final String trimmed = value.trim();
+        if (!trimmed.startsWith("bytes"))
+            {
+            return null;
+            }
+        final String spec = trimmed.substring("bytes".length()).trim();
+        final List<LongRange> ranges = new ArrayList<LongRange>();
+        for (final String token : spec.split(","))
+            {
+            final String range = token.trim();
+            final int dash = range.indexOf('-');
+            if (dash < 1)
+                {
+                return null;
+                }
+            try
+                {
+                final long min = Long.parseLong(range.substring(0, dash).trim());
+                final long max = Long.parseLong(range.substring(dash+1).trim());
+                if (max < min)
+                    {
+                    return null;
+                    }
+                ranges.add(new LongRange(min, max));
+                }
+            catch (final NumberFormatException e)
+                {
+                return null;
+                }
+            }
+        return create(ranges);
+        }
+    
+    /**
+     * Returns whether or not the source has the whole file.
+     * 
+     * @return <code>true</code> if the source has the whole file, otherwise
+     * <code>false</code>.
+     */
+    public boolean isComplete()
+        {
+        return m_ranges == null;
+        }
+    
+    /**
+     * Returns whether or not the source has all of the given range.
+     * 
+     * @param range The range.
+     * @return <code>true</code> if the source has the whole range, otherwise
+     * <code>false</code>.
+     */
+    public boolean contains(final LongRange range)
+        {
+        if (m_ranges == null)
+            {
+            return true;
+            }
+        for (final LongRange held : m_ranges)
+            {
+            if (held.containsRange(range))
+                {
+                return true;
+                }
+            if (held.getMinimumLong() > range.getMinimumLong())
+                {
+                return false;
+                }
+            }
+        return false;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + 
+            (m_ranges == null ? " complete" : " " + m_ranges);
+        }
+    }
@@ -16,12 +16,20 @@ public interface SourceRanker
     boolean hasMoreSources();
 
     /**
-     * Gets the best available source to download from.  The best source will
-     * typically just be the fastest source.
+     * Gets the best available source to download from without waiting for
+     * one.
      * 
-     * @return The best source to download from.
+     * @return The best source to download from, or <code>null</code> if no
+     * source is available right now.
      */
-    RangeDownloader getBestSource();
+    RangeDownloader pollBestSource();
+
+    /**
+     * Sets the listener to notify whenever a source becomes available.
+     * 
+     * @param listener The listener.
+     */
+    void setWorkListener(WorkListener listener);
 
     /**
      * Notifies the ranker that the given source is available for work.  This
@@ -32,6 +40,12 @@ public interface SourceRanker
      */
     void onAvailable(RangeDownloader downloader);
 
-    void onFailed();
+    /**
+     * Removes the given source from the ranker for good.  Any later 
+     * notification that the source is available is ignored.
+     * 
+     * @param downloader The downloader to remove.
+     */
+    void remove(RangeDownloader downloader);
 
     }
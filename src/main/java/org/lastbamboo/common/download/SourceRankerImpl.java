@@ -1,11 +1,11 @@
 package org.lastbamboo.common.download;
 
-import java.net.URI;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.PriorityBlockingQueue;
 
-import org.apache.commons.lang.math.LongRange;
-import org.littleshoot.util.Optional;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -20,6 +20,11 @@ public class SourceRankerImpl implements SourceRanker
     
     private final PriorityBlockingQueue<RangeDownloader> m_sources;
     
+    private final Set<RangeDownloader> m_removed = 
+        Collections.synchronizedSet(new HashSet<RangeDownloader>());
+    
+    private volatile WorkListener m_workListener;
+    
     /**
      * Creates a new ranker.
      * @param comparator The comparator to use for judging sources.
@@ -35,67 +40,36 @@ public class SourceRankerImpl implements SourceRanker
         return !this.m_sources.isEmpty();
         }
 
-    public RangeDownloader getBestSource()
+    public RangeDownloader pollBestSource()
         {
-        try
-            {
-            return this.m_sources.take();
-            }
-        catch (final InterruptedException e)
-            {
-            m_log.warn("Interrupt waiting for sources!!", e);
-            return null;
-            }
+        return this.m_sources.poll();
         }
 
-    public void onAvailable(final RangeDownloader downloader)
+    public void setWorkListener(final WorkListener listener)
         {
-        m_log.debug("New source available: {}", downloader);
-        this.m_sources.add(downloader);
+        this.m_workListener = listener;
         }
 
-    public void onFailed()
-        {
-        // We add a dummy failed downloader just to break the source ranker
-        // out of its wait.  This is never used during the download process,
-        // as this failure indicates all sources have failed, and we're done.
-        this.m_sources.add(new DummyRangeDownloader());
-        }
-    
-    private static final class DummyRangeDownloader implements RangeDownloader
+    public void onAvailable(final RangeDownloader downloader)
         {
-
-        public void download(LongRange range)
-            {
-            }
-
-        public Optional<Integer> getKbs()
+        if (this.m_removed.contains(downloader))
             {
-            return null;
+            m_log.debug("Ignoring removed source: {}", downloader);
+            return;
             }
-
-        public long getNumBytesDownloaded()
-            {
-            return 0;
-            }
-
-        public URI getSourceUri()
-            {
-            return null;
-            }
-
-        public void issueHeadRequest()
-            {
-            }
-
-        public long getRangeIndex()
+        m_log.debug("New source available: {}", downloader);
+        this.m_sources.add(downloader);
+        final WorkListener listener = this.m_workListener;
+        if (listener != null)
             {
-            return 0;
+            listener.onWorkAvailable();
             }
+        }
 
-        public long getRangeStartTime()
-            {
-            return 0;
-            }
+    public void remove(final RangeDownloader downloader)
+        {
+        this.m_removed.add(downloader);
+        this.m_sources.remove(downloader);
         }
+
     }
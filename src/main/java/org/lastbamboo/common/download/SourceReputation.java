@@ -0,0 +1,107 @@
+package org.lastbamboo.common.download;
+
+/**
+ * What we've learned about a host from downloading from it before.
+ */
+public final class SourceReputation
+    {
+
+    private final long m_bytesPerSecond;
+    private final long m_rtt;
+    private final int m_successes;
+    private final int m_failures;
+    private final boolean m_multipleRangesSupported;
+    private final long m_lastUpdated;
+
+    /**
+     * Creates a new reputation.
+     * 
+     * @param bytesPerSecond The typical rate of the host in bytes per 
+     * second, or -1 if we don't know.
+     * @param rtt The typical round trip time to the host in milliseconds, 
+     * or -1 if we don't know.
+     * @param successes The number of ranges the host has served.
+     * @param failures The number of requests to the host that failed.
+     * @param multipleRangesSupported Whether or not the host serves 
+     * multiple ranges in one response.
+     * @param lastUpdated When we last learned something about the host.
+     */
+    public SourceReputation(final long bytesPerSecond, final long rtt, 
+        final int successes, final int failures, 
+        final boolean multipleRangesSupported, final long lastUpdated)
+        {
+        m_bytesPerSecond = bytesPerSecond;
+        m_rtt = rtt;
+        m_successes = successes;
+        m_failures = failures;
+        m_multipleRangesSupported = multipleRangesSupported;
+        m_lastUpdated = lastUpdated;
+        }
+
+    /**
+     * @return The typical rate of the host in bytes per second, or -1 if we
+     * don't know.
+     */
+    public long getBytesPerSecond()
+        {
+        return m_bytesPerSecond;
+        }
+
+    /**
+     * @return The typical round trip time to the host in milliseconds, or
+     * -1 if we don't know.
+     */
+    public long getRtt()
+        {
+        return m_rtt;
+        }
+
+    /**
+     * @return The number of ranges the host has served.
+     */
+    public int getSuccesses()
+        {
+        return m_successes;
+        }
+
+    /**
+     * @return The number of requests to the host that failed.
+     */
+    public int getFailures()
+        {
+        return m_failures;
+        }
+
+    /**
+     * @return The fraction of requests to the host that failed.
+     */
+    public double getFailureRate()
+        {
+        final int total = m_successes + m_failures;
+        return total == 0 ? 0.0 : (double) m_failures / total;
+        }
+    
+    /**
+     * @return Whether or not the host serves multiple ranges in one 
+     * response.
+     */
+    public boolean isMultipleRangesSupported()
+        {
+        return m_multipleRangesSupported;
+        }
+
+    /**
+     * @return When we last learned something about the host.
+     */
+    public long getLastUpdated()
+        {
+        return m_lastUpdated;
+        }
+    
+    @Override
+    public String toString()
+        {
+        return getClass().getSimpleName() + " " + m_bytesPerSecond + 
+            " B/s, " + m_rtt + " ms, " + m_successes + "/" + m_failures;
+        }
+    }
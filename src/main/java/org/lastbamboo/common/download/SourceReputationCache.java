@@ -0,0 +1,373 @@
+package org.lastbamboo.common.download;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers how hosts have performed across downloads so new downloads can
+ * start with the sources that worked well before.  This holds a bounded 
+ * number of hosts, dropping the least recently used, and forgets hosts we
+ * haven't heard from in a while.  It's saved to disk so it survives 
+ * restarts.
+ */
+public class SourceReputationCache
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * The weight of each new measurement in the running averages.
+     */
+    private static final double NEW_WEIGHT = 0.3;
+    
+    /**
+     * Hosts that fail more often than this go to the back of the line.
+     */
+    private static final double MAX_FAILURE_RATE = 0.5;
+    
+    private final File m_file;
+    
+    private final long m_maxAge;
+    
+    private final Map<String, SourceReputation> m_reputations;
+    
+    /**
+     * Creates a new cache, loading anything saved in the given file.
+     * 
+     * @param file The file to save the cache to.
+     * @param maxHosts The most hosts to remember.
+     * @param maxAge How long to remember a host we haven't heard from, in 
+     * milliseconds.
+     */
+    public SourceReputationCache(final File file, final int maxHosts, 
+        final long maxAge)
+        {
+        m_file = file;
+        m_maxAge = maxAge;
+        m_reputations = new LinkedHashMap<String, SourceReputation>(
+            16, 0.75f, true)
+            {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                final Map.Entry<String, SourceReputation> eldest)
+                {
+                return size() > maxHosts;
+                }
+            };
+        load();
+        }
+    
+    /**
+     * Accessor for what we know about the host for the given source.
+     * 
+     * @param source The source.
+     * @return The host's reputation, or <code>null</code> if we don't know
+     * anything current about it.
+     */
+    public synchronized SourceReputation get(final URI source)
+        {
+        final String host = toHost(source);
+        if (host == null)
+            {
+            return null;
+            }
+        final SourceReputation reputation = m_reputations.get(host);
+        if (reputation != null && isExpired(reputation))
+            {
+            m_reputations.remove(host);
+            return null;
+            }
+        return reputation;
+        }
+    
+    /**
+     * Records that the source served a range at the given rate.
+     * 
+     * @param source The source.
+     * @param bytesPerSecond The rate.
+     * @param multipleRangesSupported Whether or not the source serves 
+     * multiple ranges in one response.
+     */
+    public synchronized void onRangeComplete(final URI source, 
+        final long bytesPerSecond, final boolean multipleRangesSupported)
+        {
+        final SourceReputation old = getOrEmpty(source);
+        if (old == null)
+            {
+            return;
+            }
+        put(source, new SourceReputation(
+            average(old.getBytesPerSecond(), bytesPerSecond), old.getRtt(),
+            old.getSuccesses() + 1, old.getFailures(), 
+            multipleRangesSupported, System.currentTimeMillis()));
+        }
+    
+    /**
+     * Records a round trip time to the source.
+     * 
+     * @param source The source.
+     * @param rtt The round trip time in milliseconds.
+     */
+    public synchronized void onRtt(final URI source, final long rtt)
+        {
+        final SourceReputation old = getOrEmpty(source);
+        if (old == null)
+            {
+            return;
+            }
+        put(source, new SourceReputation(old.getBytesPerSecond(), 
+            average(old.getRtt(), rtt), old.getSuccesses(), 
+            old.getFailures(), old.isMultipleRangesSupported(), 
+            System.currentTimeMillis()));
+        }
+    
+    /**
+     * Records a failed request to the source.
+     * 
+     * @param source The source.
+     */
+    public synchronized void onFailure(final URI source)
+        {
+        final SourceReputation old = getOrEmpty(source);
+        if (old == null)
+            {
+            return;
+            }
+        put(source, new SourceReputation(old.getBytesPerSecond(), 
+            old.getRtt(), old.getSuccesses(), old.getFailures() + 1, 
+            old.isMultipleRangesSupported(), System.currentTimeMillis()));
+        }
+    
+    /**
+     * Creates a comparator that orders sources from most to least 
+     * promising.  Hosts that have done well come first, followed by hosts
+     * we don't know, followed by hosts that have mostly failed.  The 
+     * comparator works from what we know right now, so it stays consistent
+     * while it sorts even if the cache changes or entries expire.
+     * 
+     * @return The comparator.
+     */
+    public Comparator<URI> newSourceComparator()
+        {
+        final Map<String, SourceReputation> snapshot = 
+            new HashMap<String, SourceReputation>();
+        synchronized (this)
+            {
+            // Iterating doesn't count as access, so this leaves the order
+            // alone.
+            for (final Map.Entry<String, SourceReputation> entry : 
+                m_reputations.entrySet())
+                {
+                if (!isExpired(entry.getValue()))
+                    {
+                    snapshot.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        return new Comparator<URI>()
+            {
+            public int compare(final URI uri0, final URI uri1)
+                {
+                final SourceReputation rep0 = snapshot.get(toHost(uri0));
+                final SourceReputation rep1 = snapshot.get(toHost(uri1));
+                final int tier0 = tier(rep0);
+                final int tier1 = tier(rep1);
+                if (tier0 != tier1)
+                    {
+                    return tier0 < tier1 ? -1 : 1;
+                    }
+                final long rate0 = rate(rep0);
+                final long rate1 = rate(rep1);
+                if (rate0 != rate1)
+                    {
+                    return rate0 > rate1 ? -1 : 1;
+                    }
+                return 0;
+                }
+            };
+        }
+    
+    private static int tier(final SourceReputation reputation)
+        {
+        if (reputation == null)
+            {
+            return 1;
+            }
+        if (reputation.getFailureRate() > MAX_FAILURE_RATE)
+            {
+            return 2;
+            }
+        return reputation.getBytesPerSecond() == -1 ? 1 : 0;
+        }
+    
+    private static long rate(final SourceReputation reputation)
+        {
+        return reputation == null ? -1 : reputation.getBytesPerSecond();
+        }
+    
+    /**
+     * Removes hosts we haven't heard from in too long.
+     */
+    public synchronized void purgeExpired()
+        {
+        final Iterator<SourceReputation> iter = 
+            m_reputations.values().iterator();
+        while (iter.hasNext())
+            {
+            if (isExpired(iter.next()))
+                {
+                iter.remove();
+                }
+            }
+        }
+    
+    /**
+     * Saves the cache to disk.
+     */
+    public synchronized void save()
+        {
+        final File temp = new File(m_file.getPath() + ".tmp");
+        Writer writer = null;
+        try
+            {
+            writer = new OutputStreamWriter(new FileOutputStream(temp), 
+                "UTF-8");
+            for (final Map.Entry<String, SourceReputation> entry : 
+                m_reputations.entrySet())
+                {
+                final SourceReputation rep = entry.getValue();
+                writer.write(entry.getKey() + "\t" + 
+                    rep.getBytesPerSecond() + "\t" + rep.getRtt() + "\t" + 
+                    rep.getSuccesses() + "\t" + rep.getFailures() + "\t" + 
+                    rep.isMultipleRangesSupported() + "\t" + 
+                    rep.getLastUpdated() + "\n");
+                }
+            writer.close();
+            writer = null;
+            if (m_file.exists() && !m_file.delete())
+                {
+                m_log.warn("Could not replace: {}", m_file);
+                }
+            if (!temp.renameTo(m_file))
+                {
+                m_log.warn("Could not save: {}", m_file);
+                }
+            }
+        catch (final IOException e)
+            {
+            m_log.warn("Could not save source reputations", e);
+            }
+        finally
+            {
+            IOUtils.closeQuietly(writer);
+            }
+        }
+    
+    private void load()
+        {
+        if (!m_file.isFile())
+            {
+            return;
+            }
+        BufferedReader reader = null;
+        try
+            {
+            reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(m_file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null)
+                {
+                final String[] fields = line.split("\t");
+                if (fields.length != 7)
+                    {
+                    m_log.debug("Ignoring bad line: {}", line);
+                    continue;
+                    }
+                try
+                    {
+                    final SourceReputation rep = new SourceReputation(
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]),
+                        Integer.parseInt(fields[3]), 
+                        Integer.parseInt(fields[4]), 
+                        Boolean.valueOf(fields[5]).booleanValue(), 
+                        Long.parseLong(fields[6]));
+                    if (!isExpired(rep))
+                        {
+                        m_reputations.put(fields[0], rep);
+                        }
+                    }
+                catch (final NumberFormatException e)
+                    {
+                    m_log.debug("Ignoring bad line: {}", line);
+                    }
+                }
+            }
+        catch (final IOException e)
+            {
+            m_log.warn("Could not load source reputations", e);
+            }
+        finally
+            {
+            IOUtils.closeQuietly(reader);
+            }
+        }
+    
+    private SourceReputation getOrEmpty(final URI source)
+        {
+        if (toHost(source) == null)
+            {
+            return null;
+            }
+        final SourceReputation reputation = get(source);
+        if (reputation != null)
+            {
+            return reputation;
+            }
+        return new SourceReputation(-1, -1, 0, 0, true, 
+            System.currentTimeMillis());
+        }
+    
+    private void put(final URI source, final SourceReputation reputation)
+        {
+        m_reputations.put(toHost(source), reputation);
+        }
+    
+    private boolean isExpired(final SourceReputation reputation)
+        {
+        return System.currentTimeMillis() - reputation.getLastUpdated() > 
+            m_maxAge;
+        }
+    
+    private static long average(final long old, final long value)
+        {
+        if (old == -1)
+            {
+            return value;
+            }
+        return (long) (old * (1 - NEW_WEIGHT) + value * NEW_WEIGHT);
+        }
+    
+    private static String toHost(final URI source)
+        {
+        final String host = source.getHost();
+        return host != null ? host : source.getAuthority();
+        }
+    }
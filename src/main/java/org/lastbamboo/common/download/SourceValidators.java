@@ -0,0 +1,171 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the validators and file sizes each source reports for a 
+ * download so we can catch sources serving a different version of the file
+ * before their bytes reach the disk.  Different mirrors legitimately report
+ * different ETags and modification dates for the same file, so we pin each 
+ * source to the validators it first reports and only compare sizes across
+ * sources.
+ */
+public class SourceValidators
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    private final long m_expectedSize;
+    
+    private final Map<URI, String> m_etags = new HashMap<URI, String>();
+    
+    private final Map<URI, String> m_lastModified = 
+        new HashMap<URI, String>();
+    
+    private final Map<URI, Long> m_sizes = new HashMap<URI, Long>();
+    
+    private final Map<Long, Integer> m_sizeVotes = new HashMap<Long, Integer>();
+    
+    private final Set<URI> m_quarantined = new HashSet<URI>();
+
+    /**
+     * Creates a new class for tracking source validators.
+     * 
+     * @param expectedSize The size we expect the file to be, or -1 if we 
+     * don't know.  If we don't know, the size most sources agree on wins.
+     */
+    public SourceValidators(final long expectedSize)
+        {
+        m_expectedSize = expectedSize;
+        }
+    
+    /**
+     * Checks a response from a source against what it and other sources 
+     * have reported before.  Sources that don't match are quarantined.
+     * 
+     * @param source The source.
+     * @param etag The ETag for the response, or <code>null</code> if none.
+     * @param lastModified The Last-Modified date for the response, or 
+     * <code>null</code> if none.
+     * @param size The size of the file the source reported, or -1 if it 
+     * didn't.
+     * @return <code>true</code> if the response is consistent, otherwise
+     * <code>false</code>.
+     */
+    public synchronized boolean onResponse(final URI source, 
+        final String etag, final String lastModified, final long size)
+        {
+        if (m_quarantined.contains(source))
+            {
+            return false;
+            }
+        if (!matchesPinned(m_etags, source, etag) ||
+            !matchesPinned(m_lastModified, source, lastModified))
+            {
+            m_log.debug("Source changed its validators: {}", source);
+            m_quarantined.add(source);
+            return false;
+            }
+        if (size != -1L)
+            {
+            if (!m_sizes.containsKey(source))
+                {
+                m_sizes.put(source, size);
+                final Integer votes = m_sizeVotes.get(size);
+                m_sizeVotes.put(size, votes == null ? 1 : votes + 1);
+                }
+            if (!isSizeConsistent(size))
+                {
+                m_log.debug("Source reports size "+size+
+                    " unlike the other sources: "+source);
+                m_quarantined.add(source);
+                return false;
+                }
+            }
+        return true;
+        }
+    
+    /**
+     * Accessor for the value to send in an If-Range header to the given
+     * source, if we can send one.  See RFC 2616 section 14.27.
+     * 
+     * @param source The source.
+     * @return The value, or <code>null</code> if the source hasn't given us
+     * a strong validator.
+     */
+    public synchronized String getIfRange(final URI source)
+        {
+        final String etag = m_etags.get(source);
+        if (etag != null && !etag.startsWith("W/"))
+            {
+            return etag;
+            }
+        return m_lastModified.get(source);
+        }
+    
+    /**
+     * Accessor for the sources we've quarantined.
+     * 
+     * @return The quarantined sources.
+     */
+    public synchronized Set<URI> getQuarantinedSources()
+        {
+        return new HashSet<URI>(m_quarantined);
+        }
+
+    private static boolean matchesPinned(final Map<URI, String> pinned, 
+        final URI source, final String value)
+        {
+        if (value == null)
+            {
+            return true;
+            }
+        final String existing = pinned.get(source);
+        if (existing == null)
+            {
+            pinned.put(source, value);
+            return true;
+            }
+        return existing.equals(value);
+        }
+    
+    private boolean isSizeConsistent(final long size)
+        {
+        if (m_expectedSize != -1L)
+            {
+            return size == m_expectedSize;
+            }
+        
+        // Without an expected size we only reject sizes that disagree with
+        // a clear majority of at least two sources.
+        long leader = -1L;
+        int leaderVotes = 0;
+        boolean tied = false;
+        for (final Map.Entry<Long, Integer> entry : m_sizeVotes.entrySet())
+            {
+            final int votes = entry.getValue();
+            if (votes > leaderVotes)
+                {
+                leader = entry.getKey();
+                leaderVotes = votes;
+                tied = false;
+                }
+            else if (votes == leaderVotes)
+                {
+                tied = true;
+                }
+            }
+        if (leaderVotes < 2 || tied)
+            {
+            return true;
+            }
+        return size == leader;
+        }
+    }
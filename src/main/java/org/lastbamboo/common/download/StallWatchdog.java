@@ -0,0 +1,191 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the progress of every in-flight range request and aborts requests
+ * that fall far behind the rate we expect from their source.  This catches 
+ * both peers that trickle out bytes just fast enough to avoid the socket
+ * timeout and fast sources whose connections have silently died.
+ */
+public class StallWatchdog implements Runnable
+    {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+    
+    /**
+     * How often to check in-flight ranges, in milliseconds.
+     */
+    public static final long CHECK_INTERVAL = 1000;
+    
+    /**
+     * The length of the window we measure progress over, in milliseconds.
+     */
+    private static final long WINDOW = 5 * 1000;
+    
+    /**
+     * The first window also has to cover connecting and waiting for the 
+     * first byte, so we give it longer.
+     */
+    private static final long FIRST_WINDOW = 3 * WINDOW;
+    
+    /**
+     * A range stalls when it reads at less than this fraction of the rate we
+     * expect from its source.
+     */
+    private static final double STALL_FRACTION = 0.1;
+    
+    /**
+     * The rate below which a range stalls no matter what we expect from the
+     * source, in bytes per second.
+     */
+    private static final long MIN_BYTES_PER_SECOND = 1024;
+    
+    private final Map<SingleSourceDownloader, Progress> m_inFlight =
+        new HashMap<SingleSourceDownloader, Progress>();
+    
+    private final Map<URI, Integer> m_stallsPerSource = 
+        new HashMap<URI, Integer>();
+    
+    /**
+     * Starts watching the range the given downloader just requested.
+     * 
+     * @param downloader The downloader.
+     * @param expectedBytesPerSecond The rate we expect from the source, or
+     * -1 if we don't know yet.
+     */
+    public synchronized void onRangeStarted(
+        final SingleSourceDownloader downloader, 
+        final long expectedBytesPerSecond)
+        {
+        final long threshold = Math.max(MIN_BYTES_PER_SECOND, 
+            (long) (expectedBytesPerSecond * STALL_FRACTION));
+        m_inFlight.put(downloader, 
+            new Progress(System.currentTimeMillis(), threshold));
+        }
+    
+    /**
+     * Records bytes read for the given downloader's current range.
+     * 
+     * @param downloader The downloader.
+     * @param bytesRead The number of bytes read.
+     */
+    public synchronized void onBytesRead(
+        final SingleSourceDownloader downloader, final int bytesRead)
+        {
+        final Progress progress = m_inFlight.get(downloader);
+        if (progress != null)
+            {
+            progress.m_windowBytes += bytesRead;
+            }
+        }
+    
+    /**
+     * Records time the given downloader spent waiting on bandwidth limits.
+     * We leave this time out of the window so a range we're throttling 
+     * ourselves never looks like a stall.
+     * 
+     * @param downloader The downloader.
+     * @param millis The number of milliseconds spent waiting.
+     */
+    public synchronized void onThrottled(
+        final SingleSourceDownloader downloader, final long millis)
+        {
+        final Progress progress = m_inFlight.get(downloader);
+        if (progress != null)
+            {
+            progress.m_windowStart += millis;
+            }
+        }
+    
+    /**
+     * Stops watching the given downloader's current range.
+     * 
+     * @param downloader The downloader.
+     */
+    public synchronized void onRangeFinished(
+        final SingleSourceDownloader downloader)
+        {
+        m_inFlight.remove(downloader);
+        }
+    
+    public void run()
+        {
+        for (final SingleSourceDownloader downloader : 
+            getStalled(System.currentTimeMillis()))
+            {
+            m_log.debug("Range stalled for: {}", downloader);
+            downloader.onStalled();
+            }
+        }
+    
+    private synchronized List<SingleSourceDownloader> getStalled(
+        final long now)
+        {
+        final List<SingleSourceDownloader> stalled = 
+            new LinkedList<SingleSourceDownloader>();
+        final Iterator<Map.Entry<SingleSourceDownloader, Progress>> iter =
+            m_inFlight.entrySet().iterator();
+        while (iter.hasNext())
+            {
+            final Map.Entry<SingleSourceDownloader, Progress> entry = 
+                iter.next();
+            final Progress progress = entry.getValue();
+            final long elapsed = now - progress.m_windowStart;
+            final long window = progress.m_first ? FIRST_WINDOW : WINDOW;
+            if (elapsed < window)
+                {
+                continue;
+                }
+            final long bytesPerSecond = progress.m_windowBytes * 1000 / elapsed;
+            if (bytesPerSecond < progress.m_threshold)
+                {
+                final SingleSourceDownloader downloader = entry.getKey();
+                iter.remove();
+                stalled.add(downloader);
+                final URI uri = downloader.getSourceUri();
+                final Integer stalls = m_stallsPerSource.get(uri);
+                m_stallsPerSource.put(uri, stalls == null ? 1 : stalls + 1);
+                }
+            else
+                {
+                progress.m_first = false;
+                progress.m_windowStart = now;
+                progress.m_windowBytes = 0;
+                }
+            }
+        return stalled;
+        }
+    
+    /**
+     * Accessor for the number of stalls for each source.
+     * 
+     * @return The number of stalls for each source that has stalled.
+     */
+    public synchronized Map<URI, Integer> getStallsPerSource()
+        {
+        return new HashMap<URI, Integer>(m_stallsPerSource);
+        }
+    
+    private static final class Progress
+        {
+        private long m_windowStart;
+        private long m_windowBytes;
+        private boolean m_first = true;
+        private final long m_threshold;
+        
+        private Progress(final long windowStart, final long threshold)
+            {
+            m_windowStart = windowStart;
+            m_threshold = threshold;
+            }
+        }
+    }
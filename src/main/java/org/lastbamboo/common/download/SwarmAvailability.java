@@ -0,0 +1,86 @@
+package org.lastbamboo.common.download;
+
+import java.net.URI;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.lang.math.LongRange;
+
+/**
+ * Keeps track of which parts of a file each partial source has so we can
+ * hand out the ranges the fewest sources have first.  That way ranges only
+ * a few peers have get downloaded while those peers are still around.
+ * Ranges held by the same number of sources keep their usual order.
+ */
+public class SwarmAvailability implements Comparator<LongRange>
+    {
+
+    private final Map<URI, SourceAvailability> m_partialSources = 
+        new HashMap<URI, SourceAvailability>();
+    
+    private final Comparator<LongRange> m_rangeComparator = 
+        new LongRangeComparator();
+    
+    /**
+     * Updates what a source has.
+     * 
+     * @param source The source.
+     * @param availability What the source has.
+     */
+    public synchronized void update(final URI source, 
+        final SourceAvailability availability)
+        {
+        if (availability.isComplete())
+            {
+            // Sources with the whole file don't change which ranges are 
+            // rare.
+            m_partialSources.remove(source);
+            }
+        else
+            {
+            m_partialSources.put(source, availability);
+            }
+        }
+    
+    /**
+     * Forgets about a source.
+     * 
+     * @param source The source.
+     */
+    public synchronized void remove(final URI source)
+        {
+        m_partialSources.remove(source);
+        }
+    
+    /**
+     * Accessor for the number of partial sources that have the given range.
+     * 
+     * @param range The range.
+     * @return The number of partial sources that have the range.
+     */
+    public synchronized int getNumSources(final LongRange range)
+        {
+        int sources = 0;
+        for (final SourceAvailability availability : 
+            m_partialSources.values())
+            {
+            if (availability.contains(range))
+                {
+                sources++;
+                }
+            }
+        return sources;
+        }
+
+    public int compare(final LongRange range0, final LongRange range1)
+        {
+        final int sources0 = getNumSources(range0);
+        final int sources1 = getNumSources(range1);
+        if (sources0 != sources1)
+            {
+            return sources0 < sources1 ? -1 : 1;
+            }
+        return m_rangeComparator.compare(range0, range1);
+        }
+    }
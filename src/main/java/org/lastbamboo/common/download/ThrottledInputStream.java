@@ -0,0 +1,90 @@
+package org.lastbamboo.common.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that counts everything read against bandwidth limiters,
+ * waiting after each read as long as the limiters say to.
+ */
+public class ThrottledInputStream extends FilterInputStream
+    {
+
+    private final BandwidthLimiter[] m_limiters;
+    
+    /**
+     * Creates a new throttled stream.
+     * 
+     * @param is The stream to read from.
+     * @param limiters The limiters to count reads against.  Entries can be
+     * <code>null</code>.
+     */
+    public ThrottledInputStream(final InputStream is, 
+        final BandwidthLimiter... limiters)
+        {
+        super(is);
+        m_limiters = limiters;
+        }
+
+    @Override
+    public int read() throws IOException
+        {
+        final int read = super.read();
+        if (read != -1)
+            {
+            throttle(1);
+            }
+        return read;
+        }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) 
+        throws IOException
+        {
+        final int read = super.read(b, off, len);
+        if (read > 0)
+            {
+            throttle(read);
+            }
+        return read;
+        }
+
+    @Override
+    public long skip(final long n) throws IOException
+        {
+        // Skipped bytes still come over the wire.
+        final long skipped = super.skip(n);
+        if (skipped > 0L)
+            {
+            throttle((int) Math.min(skipped, Integer.MAX_VALUE));
+            }
+        return skipped;
+        }
+    
+    private void throttle(final int bytes) throws IOException
+        {
+        long waited = 0L;
+        for (final BandwidthLimiter limiter : m_limiters)
+            {
+            if (limiter != null)
+                {
+                waited += limiter.acquire(bytes);
+                }
+            }
+        if (waited > 0L)
+            {
+            onThrottled(waited);
+            }
+        }
+
+    /**
+     * Called after we've waited on the limiters.  Subclasses can override 
+     * this to keep throttled time from looking like a slow source.
+     * 
+     * @param millis The number of milliseconds we waited.
+     */
+    protected void onThrottled(final long millis)
+        {
+        }
+    }
@@ -0,0 +1,39 @@
+package org.lastbamboo.common.download;
+
+/**
+ * A download that shares bandwidth and connections with other downloads
+ * according to its weight.
+ */
+public interface WeightedDownload
+    {
+
+    /**
+     * Accessor for the weight of the download, including any boost it 
+     * gets for having readers.
+     * 
+     * @return The weight.  This is always positive.
+     */
+    int getEffectiveWeight();
+    
+    /**
+     * Accessor for the limiter we set the download's share of bandwidth on.
+     * 
+     * @return The download's bandwidth limiter.
+     */
+    BandwidthLimiter getBandwidthLimiter();
+    
+    /**
+     * Accessor for the total bytes the download has read.
+     * 
+     * @return The total bytes read.
+     */
+    long getBytesRead();
+    
+    /**
+     * Sets the number of connections the download can use.
+     * 
+     * @param connectionLimit The number of connections, or -1 to use as 
+     * many as the download likes.
+     */
+    void setConnectionLimit(int connectionLimit);
+    }
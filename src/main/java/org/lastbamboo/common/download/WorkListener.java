@@ -0,0 +1,16 @@
+package org.lastbamboo.common.download;
+
+/**
+ * Listener for notifications that there may be new work to hand out, such
+ * as a source becoming available or a range being freed or completed.
+ */
+public interface WorkListener
+    {
+
+    /**
+     * Called when there may be new work to hand out.  This is called with
+     * locks held, so implementations should just queue up the work and 
+     * return.
+     */
+    void onWorkAvailable();
+    }
@@ -0,0 +1,35 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests for the token bucket bandwidth limiter.
+ */
+public class BandwidthLimiterTest
+    {
+
+    @Test public void testLimits() throws Exception
+        {
+        final BandwidthLimiter parent = new BandwidthLimiter(null);
+        final BandwidthLimiter child = new BandwidthLimiter(parent);
+        
+        // Nothing's limited yet.
+        assertEquals(0L, child.acquire(10 * 1024 * 1024));
+        
+        // We start with a second's worth of tokens.
+        parent.setBytesPerSecond(100 * 1000);
+        assertEquals(0L, child.acquire(100 * 1000));
+        
+        // The parent's out of tokens, so the child waits on it.
+        final long waited = child.acquire(50 * 1000);
+        assertTrue("Waited: " + waited, waited >= 400 && waited <= 600);
+        
+        // Removing the limit takes effect right away.
+        parent.setBytesPerSecond(0);
+        assertEquals(-1L, parent.getBytesPerSecond());
+        assertEquals(0L, child.acquire(10 * 1024 * 1024));
+        }
+    }
@@ -0,0 +1,121 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for backing off and giving up on failing sources.
+ */
+public class CircuitBreakerTest
+    {
+
+    @Test public void testDelays() throws Exception
+        {
+        // Without jitter, we wait half of each delay.
+        final CircuitBreaker breaker = new CircuitBreaker(new FixedRandom(0));
+        assertEquals(500, breaker.onFailure(0));
+        assertEquals(1000, breaker.onFailure(0));
+        assertEquals(2000, breaker.onFailure(0));
+        assertFalse(breaker.isOpen());
+
+        // The next failure opens the breaker for the cooldown.
+        assertEquals(30000, breaker.onFailure(0));
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.isTripped());
+        assertEquals(4, breaker.getNumRetries());
+        }
+
+    @Test public void testJitter() throws Exception
+        {
+        final CircuitBreaker most =
+            new CircuitBreaker(new FixedRandom(0.999999));
+        assertEquals(999, most.onFailure(0));
+        assertEquals(1999, most.onFailure(0));
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++)
+            {
+            final CircuitBreaker breaker = new CircuitBreaker(random);
+            final long first = breaker.onFailure(0);
+            assertTrue(first >= 500 && first <= 1000);
+            final long second = breaker.onFailure(0);
+            assertTrue(second >= 1000 && second <= 2000);
+            }
+        }
+
+    @Test public void testSuccessWorksOffFailures() throws Exception
+        {
+        final CircuitBreaker breaker = new CircuitBreaker(new FixedRandom(0));
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        breaker.onSuccess();
+        assertEquals(1, breaker.getNumFailures());
+        assertEquals(1000, breaker.onFailure(0));
+        }
+
+    @Test public void testHalfOpen() throws Exception
+        {
+        final CircuitBreaker breaker = new CircuitBreaker(new FixedRandom(0));
+        for (int i = 0; i < 3; i++)
+            {
+            breaker.onFailure(0);
+            }
+        final long cooldown = breaker.onFailure(0);
+        assertTrue(breaker.isOpen());
+
+        // Other requests to the source give up while we wait.
+        assertEquals(-1, breaker.onFailure(1000));
+        assertFalse(breaker.isTripped());
+
+        // The request we let through after the cooldown works, so the
+        // breaker closes and we start over.
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen());
+        assertEquals(0, breaker.getNumFailures());
+        assertEquals(500, breaker.onFailure(cooldown));
+        }
+
+    @Test public void testTrip() throws Exception
+        {
+        final CircuitBreaker breaker = new CircuitBreaker(new FixedRandom(0));
+        for (int i = 0; i < 3; i++)
+            {
+            breaker.onFailure(0);
+            }
+        long now = breaker.onFailure(0);
+
+        // The request we let through fails, so we open again.
+        final long cooldown = breaker.onFailure(now);
+        assertEquals(30000, cooldown);
+        assertTrue(breaker.isOpen());
+        assertFalse(breaker.isTripped());
+        now += cooldown;
+
+        // It fails again, so we give up for good.
+        assertEquals(-1, breaker.onFailure(now));
+        assertTrue(breaker.isTripped());
+        assertFalse(breaker.isOpen());
+        assertEquals(-1, breaker.onFailure(now + 60 * 60 * 1000));
+        }
+
+    private static final class FixedRandom extends Random
+        {
+        private final double m_value;
+
+        private FixedRandom(final double value)
+            {
+            m_value = value;
+            }
+
+        @Override
+        public double nextDouble()
+            {
+            return m_value;
+            }
+        }
+    }
@@ -0,0 +1,82 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.math.LongRange;
+import org.junit.Test;
+
+/**
+ * Tests for the shared set of completed ranges.
+ */
+public class CompletedRangesTest
+    {
+
+    @Test public void testMerge() throws Exception
+        {
+        final CompletedRanges ranges = new CompletedRanges();
+        ranges.add(new LongRange(100, 199));
+        ranges.add(new LongRange(300, 399));
+        ranges.add(new LongRange(500, 599));
+        assertEquals(3, ranges.getRanges().size());
+        assertEquals(0, ranges.getContiguousEnd(0));
+        assertEquals(200, ranges.getContiguousEnd(150));
+        
+        // Overlaps the first run and touches the second.
+        ranges.add(new LongRange(150, 299));
+        assertEquals(2, ranges.getRanges().size());
+        assertEquals(400, ranges.getContiguousEnd(100));
+        
+        // Already covered.
+        ranges.add(new LongRange(120, 380));
+        assertEquals(2, ranges.getRanges().size());
+        
+        ranges.add(new LongRange(0, 99));
+        ranges.add(new LongRange(400, 499));
+        assertEquals(1, ranges.getRanges().size());
+        assertEquals(new LongRange(0, 599), ranges.getRanges().iterator().next());
+        }
+    
+    @Test public void testWaiters() throws Exception
+        {
+        final CompletedRanges ranges = new CompletedRanges();
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger later = new AtomicInteger();
+        ranges.notifyWhenAvailable(0, new Counter(first));
+        ranges.notifyWhenAvailable(1000, new Counter(later));
+        
+        ranges.add(new LongRange(500, 999));
+        assertEquals(0, first.get());
+        assertEquals(0, later.get());
+        
+        ranges.add(new LongRange(0, 499));
+        assertEquals(1, first.get());
+        assertEquals(0, later.get());
+        
+        // Waiting on a byte we have notifies right away.
+        ranges.notifyWhenAvailable(10, new Counter(first));
+        assertEquals(2, first.get());
+        
+        final Counter cancelled = new Counter(later);
+        ranges.notifyWhenAvailable(1000, cancelled);
+        ranges.cancelNotify(1000, cancelled);
+        ranges.add(new LongRange(1000, 1999));
+        assertEquals(1, later.get());
+        }
+    
+    private static final class Counter implements Runnable
+        {
+        private final AtomicInteger m_count;
+
+        private Counter(final AtomicInteger count)
+            {
+            m_count = count;
+            }
+
+        public void run()
+            {
+            m_count.incrementAndGet();
+            }
+        }
+    }
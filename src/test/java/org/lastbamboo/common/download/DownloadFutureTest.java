@@ -0,0 +1,55 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.DownloaderStateStub;
+import org.lastbamboo.common.download.stubs.DownloaderStub;
+
+/**
+ * Tests for the future of an asynchronous download.
+ */
+public class DownloadFutureTest
+    {
+
+    @Test public void testCancel() throws Exception
+        {
+        // The downloader never fires a final state for this future.
+        final DownloaderStub downloader = new DownloaderStub();
+        final DownloadFuture<DownloaderStateStub> future = 
+            new DownloadFuture<DownloaderStateStub>(downloader);
+        final AtomicReference<DownloaderStateStub> finalState = 
+            new AtomicReference<DownloaderStateStub>();
+        future.addCompletionListener(
+            new DownloaderListener<DownloaderStateStub>()
+            {
+            public void stateChanged(final DownloaderStateStub state)
+                {
+                finalState.set(state);
+                }
+            });
+        
+        assertTrue(future.cancel(false));
+        assertTrue(downloader.isStopped());
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        assertNotNull(finalState.get());
+        assertFalse(future.cancel(false));
+        try
+            {
+            future.get(1, TimeUnit.SECONDS);
+            fail("Expected the download to be cancelled");
+            }
+        catch (final CancellationException e)
+            {
+            // Expected.
+            }
+        }
+    }
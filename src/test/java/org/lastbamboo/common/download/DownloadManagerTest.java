@@ -0,0 +1,163 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.DownloaderStub;
+
+/**
+ * Tests for queueing downloads.
+ */
+public class DownloadManagerTest
+    {
+
+    /**
+     * We don't check on the downloads on a timer in these tests, so we can
+     * step the clock ourselves.
+     */
+    private static final long NEVER = 60 * 60 * 1000;
+
+    @Test public void testQueue() throws Exception
+        {
+        final DownloadManager manager = 
+            new DownloadManager(new BandwidthLimiter(null));
+        manager.setMaxConcurrent(1);
+        final DownloaderStub first = new DownloaderStub();
+        final DownloaderStub second = new DownloaderStub();
+        final DownloaderStub third = new DownloaderStub();
+        manager.enqueue(first);
+        manager.enqueue(second);
+        manager.enqueue(third);
+        
+        assertTrue(first.isStarted());
+        assertFalse(second.isStarted());
+        assertEquals(1, manager.getNumRunning());
+        assertEquals(2, manager.getQueueDepth());
+        
+        assertTrue(manager.remove(third));
+        assertFalse(manager.remove(first));
+        assertEquals(1, manager.getQueueDepth());
+        
+        // Finishing one download starts the next right away.
+        Thread.sleep(20);
+        first.finish(DownloaderStateType.SUCCEEDED);
+        assertTrue(second.isStarted());
+        assertEquals(1, manager.getNumRunning());
+        assertEquals(0, manager.getQueueDepth());
+        assertTrue(manager.getAverageWaitTime() >= 10);
+        
+        second.finish(DownloaderStateType.SUCCEEDED);
+        assertEquals(0, manager.getNumRunning());
+        assertFalse(third.isStarted());
+        }
+    
+    /**
+     * Tests that a download that keeps reading without changing state 
+     * doesn't count as stalled, and that one that stops reading does.
+     */
+    @Test public void testStallByBytes() throws Exception
+        {
+        final DownloadManager manager = 
+            new DownloadManager(new BandwidthLimiter(null), NEVER);
+        manager.setMaxConcurrent(1);
+        final DownloaderStub first = new DownloaderStub();
+        final DownloaderStub second = new DownloaderStub();
+        manager.enqueue(first);
+        manager.enqueue(second);
+        assertTrue(first.isStarted());
+        
+        final long start = System.currentTimeMillis();
+        for (int i = 1; i <= 90; i++)
+            {
+            first.read(1024);
+            manager.check(start + i * 1000L);
+            }
+        assertFalse(second.isStarted());
+        assertEquals(0, manager.getNumStalled());
+        
+        // It stops reading, so it stalls after a minute.
+        for (int i = 91; i <= 150; i++)
+            {
+            manager.check(start + i * 1000L);
+            }
+        assertFalse(second.isStarted());
+        manager.check(start + 151 * 1000L);
+        assertEquals(1, manager.getNumStalled());
+        assertTrue(second.isStarted());
+        
+        // It picks up again.
+        first.read(1024);
+        manager.check(start + 152 * 1000L);
+        assertEquals(0, manager.getNumStalled());
+        }
+    
+    /**
+     * Tests that we only keep downloads we add if they raise throughput, 
+     * that we don't keep creeping up on noise, and that we run fewer when
+     * throughput falls.
+     */
+    @Test public void testAdmission() throws Exception
+        {
+        final BandwidthLimiter meter = new BandwidthLimiter(null);
+        final DownloadManager manager = new DownloadManager(meter, NEVER);
+        manager.setMinConcurrent(2);
+        manager.setMaxConcurrent(5);
+        final DownloaderStub[] downloads = new DownloaderStub[5];
+        for (int i = 0; i < downloads.length; i++)
+            {
+            downloads[i] = new DownloaderStub();
+            manager.enqueue(downloads[i]);
+            }
+        assertEquals(2, manager.getNumRunning());
+        
+        final long[] now = { System.currentTimeMillis() };
+        run(manager, meter, now, 100000);
+        assertEquals(3, manager.getTargetConcurrent());
+        assertTrue(downloads[2].isStarted());
+        
+        // The third download doubled throughput, so we try a fourth.
+        run(manager, meter, now, 200000);
+        assertEquals(4, manager.getTargetConcurrent());
+        assertTrue(downloads[3].isStarted());
+        
+        // The fourth didn't help, so we go back to three and hold.
+        run(manager, meter, now, 200000);
+        assertEquals(3, manager.getTargetConcurrent());
+        assertFalse(downloads[4].isStarted());
+        
+        // Noise above the baseline doesn't raise the target.
+        run(manager, meter, now, 224000);
+        assertEquals(3, manager.getTargetConcurrent());
+        assertFalse(downloads[4].isStarted());
+        
+        // Throughput falls, so we run fewer.
+        run(manager, meter, now, 150000);
+        run(manager, meter, now, 150000);
+        assertEquals(2, manager.getTargetConcurrent());
+        
+        // Finishing downloads changes what's running, so we try again.
+        downloads[0].finish(DownloaderStateType.SUCCEEDED);
+        downloads[1].finish(DownloaderStateType.SUCCEEDED);
+        assertFalse(downloads[4].isStarted());
+        manager.check(now[0] + 1000);
+        assertEquals(3, manager.getTargetConcurrent());
+        assertTrue(downloads[4].isStarted());
+        }
+
+    /**
+     * Reads at the given rate for long enough for the manager to settle.
+     */
+    private static void run(final DownloadManager manager, 
+        final BandwidthLimiter meter, final long[] now, 
+        final int bytesPerSecond) throws Exception
+        {
+        for (int i = 0; i < 5; i++)
+            {
+            now[0] += 1000;
+            meter.acquire(bytesPerSecond);
+            manager.check(now[0]);
+            }
+        }
+    }
@@ -0,0 +1,239 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.DownloaderStateStub;
+import org.lastbamboo.common.download.stubs.DownloaderStub;
+
+/**
+ * Tests for sharing downloads of the same file.
+ */
+public class DownloadRegistryTest
+    {
+
+    @Test public void testShare() throws Exception
+        {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final TestFactory factory = new TestFactory();
+        final URI sha1 = new URI("urn:sha1:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567");
+        
+        final SharedDownload<DownloaderStateStub> first = registry.acquire(
+            new URI("http://example.com/file"), sha1, factory);
+        final SharedDownload<DownloaderStateStub> second = registry.acquire(
+            new URI("http://mirror.example.com/file"), sha1, factory);
+        
+        // The URI of the first request finds it too.
+        final SharedDownload<DownloaderStateStub> third = registry.acquire(
+            new URI("HTTP://EXAMPLE.com/./file"), (URI) null, factory);
+        assertEquals(1, factory.m_created.get());
+        assertEquals(1, registry.getNumDownloads());
+        assertSame(first.getDownloader(), second.getDownloader());
+        assertSame(first.getDownloader(), third.getDownloader());
+        
+        final DownloaderStub downloader = 
+            (DownloaderStub) first.getDownloader();
+        assertTrue(downloader.isStarted());
+        
+        final AtomicReference<DownloaderStateStub> firstState = 
+            new AtomicReference<DownloaderStateStub>();
+        final AtomicReference<DownloaderStateStub> secondState = 
+            new AtomicReference<DownloaderStateStub>();
+        first.addCompletionListener(new StateRecorder(firstState));
+        second.addCompletionListener(new StateRecorder(secondState));
+        
+        // Cancelling some handles leaves the download running for the rest.
+        first.cancel();
+        third.cancel();
+        assertFalse(downloader.isStopped());
+        
+        downloader.finish(DownloaderStateType.SUCCEEDED);
+        assertNull(firstState.get());
+        assertEquals(DownloaderStateType.SUCCEEDED, 
+            secondState.get().getType());
+        assertEquals(0, registry.getNumDownloads());
+        
+        // A new request starts a new download.
+        final SharedDownload<DownloaderStateStub> fourth = registry.acquire(
+            new URI("http://example.com/file"), sha1, factory);
+        assertEquals(2, factory.m_created.get());
+        
+        // Cancelling the last handle stops the download.
+        fourth.cancel();
+        assertTrue(((DownloaderStub) fourth.getDownloader()).isStopped());
+        assertEquals(0, registry.getNumDownloads());
+        }
+    
+    @Test public void testSha1FromResolver() throws Exception
+        {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final TestFactory factory = new TestFactory();
+        final URI sha1 = new URI("urn:sha1:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567");
+        final AtomicReference<URI> resolved = new AtomicReference<URI>();
+        
+        final SharedDownload<DownloaderStateStub> first = registry.acquire(
+            new URI("http://example.com/file"), newResolver(resolved), 
+            factory);
+        final DownloaderStub downloader = 
+            (DownloaderStub) first.getDownloader();
+        
+        // We only learn the SHA-1 once the download resolves and tells us
+        // it's moved on.
+        resolved.set(sha1);
+        downloader.progress();
+        final SharedDownload<DownloaderStateStub> second = registry.acquire(
+            new URI("http://mirror.example.com/file"), sha1, factory);
+        assertEquals(1, factory.m_created.get());
+        assertSame(downloader, second.getDownloader());
+        }
+    
+    @Test public void testMergeBySha1() throws Exception
+        {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final TestFactory factory = new TestFactory();
+        final URI sha1 = new URI("urn:sha1:ABCDEFGHIJKLMNOPQRSTUVWXYZ234567");
+        final AtomicReference<URI> firstResolved = new AtomicReference<URI>();
+        final AtomicReference<URI> secondResolved = 
+            new AtomicReference<URI>();
+        final AtomicReference<URI> thirdResolved = new AtomicReference<URI>();
+        
+        // Three mirrors of the same file start downloading before any of 
+        // them knows the SHA-1.
+        final SharedDownload<DownloaderStateStub> first = registry.acquire(
+            new URI("http://example.com/file"), newResolver(firstResolved), 
+            factory);
+        final SharedDownload<DownloaderStateStub> second = registry.acquire(
+            new URI("http://mirror.example.com/file"), 
+            newResolver(secondResolved), factory);
+        final SharedDownload<DownloaderStateStub> third = registry.acquire(
+            new URI("http://other.example.com/file"), 
+            newResolver(thirdResolved), factory);
+        assertEquals(3, factory.m_created.get());
+        final DownloaderStub firstDownloader = 
+            (DownloaderStub) first.getDownloader();
+        final DownloaderStub secondDownloader = 
+            (DownloaderStub) second.getDownloader();
+        final DownloaderStub thirdDownloader = 
+            (DownloaderStub) third.getDownloader();
+        firstResolved.set(sha1);
+        firstDownloader.progress();
+        
+        // Nobody's reading the second one yet, so it stops and its handle
+        // moves to the first.
+        secondResolved.set(sha1);
+        secondDownloader.progress();
+        assertTrue(secondDownloader.isStopped());
+        assertFalse(secondDownloader.hasRemovedFiles());
+        assertSame(firstDownloader, second.getDownloader());
+        assertEquals(2, registry.getNumDownloads());
+        
+        // Its URI finds the first download too.
+        final SharedDownload<DownloaderStateStub> fourth = registry.acquire(
+            new URI("http://mirror.example.com/file"), (URI) null, factory);
+        assertSame(firstDownloader, fourth.getDownloader());
+        assertEquals(3, factory.m_created.get());
+        
+        // Someone's already reading the third one, so it keeps going.
+        third.subscribe(null);
+        thirdResolved.set(sha1);
+        thirdDownloader.progress();
+        assertFalse(thirdDownloader.isStopped());
+        assertSame(thirdDownloader, third.getDownloader());
+        
+        final AtomicReference<DownloaderStateStub> secondState = 
+            new AtomicReference<DownloaderStateStub>();
+        second.addCompletionListener(new StateRecorder(secondState));
+        firstDownloader.finish(DownloaderStateType.SUCCEEDED);
+        assertEquals(DownloaderStateType.SUCCEEDED, 
+            secondState.get().getType());
+        }
+    
+    @Test public void testCreateRace() throws Exception
+        {
+        final DownloadRegistry registry = new DownloadRegistry();
+        final URI uri = new URI("http://example.com/file");
+        final TestFactory factory = new TestFactory();
+        final AtomicReference<SharedDownload<DownloaderStateStub>> inner = 
+            new AtomicReference<SharedDownload<DownloaderStateStub>>();
+        final AtomicReference<DownloaderStub> loser = 
+            new AtomicReference<DownloaderStub>();
+        
+        // Another request starts the same download while we're creating 
+        // ours.
+        final DownloaderFactory<DownloaderStateStub> racingFactory = 
+            new DownloaderFactory<DownloaderStateStub>()
+            {
+            public Downloader<DownloaderStateStub> createDownloader()
+                {
+                inner.set(registry.acquire(uri, (URI) null, factory));
+                loser.set(new DownloaderStub());
+                return loser.get();
+                }
+            };
+        final SharedDownload<DownloaderStateStub> outer = 
+            registry.acquire(uri, (URI) null, racingFactory);
+        
+        assertSame(inner.get().getDownloader(), outer.getDownloader());
+        assertEquals(1, registry.getNumDownloads());
+        assertFalse(loser.get().isStarted());
+        assertTrue(loser.get().isStopped());
+        assertFalse(loser.get().hasRemovedFiles());
+        }
+    
+    private static UriResolver newResolver(
+        final AtomicReference<URI> resolved)
+        {
+        return new UriResolver()
+            {
+            public Collection<URI> resolve(final URI uri) throws IOException
+                {
+                return Collections.singletonList(uri);
+                }
+
+            public URI getSha1()
+                {
+                return resolved.get();
+                }
+            };
+        }
+    
+    private static final class StateRecorder 
+        implements DownloaderListener<DownloaderStateStub>
+        {
+        private final AtomicReference<DownloaderStateStub> m_state;
+        
+        private StateRecorder(
+            final AtomicReference<DownloaderStateStub> state)
+            {
+            m_state = state;
+            }
+
+        public void stateChanged(final DownloaderStateStub state)
+            {
+            m_state.set(state);
+            }
+        }
+    
+    private static final class TestFactory 
+        implements DownloaderFactory<DownloaderStateStub>
+        {
+        private final AtomicInteger m_created = new AtomicInteger(0);
+
+        public Downloader<DownloaderStateStub> createDownloader()
+            {
+            m_created.incrementAndGet();
+            return new DownloaderStub();
+            }
+        }
+    }
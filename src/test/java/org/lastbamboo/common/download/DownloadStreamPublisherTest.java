@@ -0,0 +1,133 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.lang.math.LongRange;
+import org.junit.Test;
+
+/**
+ * Tests for streaming a downloading file to subscribers.
+ */
+public class DownloadStreamPublisherTest
+    {
+
+    private static final int FILE_SIZE = 300 * 1024;
+    
+    @Test public void testBackpressure() throws Exception
+        {
+        final LaunchFileDispatcher dispatcher = newDispatcher();
+        dispatcher.onRangeComplete(new LongRange(0, FILE_SIZE - 1));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        dispatcher.subscribe(subscriber);
+        
+        // The whole file is there, but we only get what we ask for.
+        assertEquals(0, subscriber.m_buffers);
+        subscriber.m_subscription.request(2);
+        assertEquals(2, subscriber.m_buffers);
+        subscriber.m_subscription.request(1);
+        assertEquals(3, subscriber.m_buffers);
+        
+        dispatcher.onFileComplete();
+        assertFalse(subscriber.m_complete);
+        subscriber.m_subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.m_complete);
+        assertEquals(FILE_SIZE, subscriber.m_bytes);
+        assertEquals(0, dispatcher.getNumReaders());
+        }
+    
+    @Test public void testCancel() throws Exception
+        {
+        final LaunchFileDispatcher dispatcher = newDispatcher();
+        dispatcher.onRangeComplete(new LongRange(0, 100 * 1024 - 1));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        dispatcher.subscribe(subscriber);
+        assertEquals(1, dispatcher.getNumReaders());
+        
+        subscriber.m_subscription.request(1);
+        assertEquals(1, subscriber.m_buffers);
+        subscriber.m_subscription.cancel();
+        assertEquals(0, dispatcher.getNumReaders());
+        
+        // Nothing more arrives once we've cancelled, even if we ask.
+        subscriber.m_subscription.request(10);
+        dispatcher.onRangeComplete(new LongRange(100 * 1024, FILE_SIZE - 1));
+        dispatcher.onFileComplete();
+        assertEquals(1, subscriber.m_buffers);
+        assertFalse(subscriber.m_complete);
+        assertNull(subscriber.m_error);
+        }
+    
+    @Test public void testSubscribeAfterMove() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final File completeFile = new File(file.getPath() + ".complete");
+        completeFile.deleteOnExit();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[FILE_SIZE]);
+        raf.close();
+        final LaunchFileDispatcher dispatcher = 
+            new LaunchFileDispatcher(file, completeFile, raf, 1, null);
+        dispatcher.onRangeComplete(new LongRange(0, FILE_SIZE - 1));
+        dispatcher.onFileComplete();
+        
+        // Listeners move the file once it's complete, but subscribers that
+        // come after still get it.
+        assertTrue(file.renameTo(completeFile));
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        dispatcher.subscribe(subscriber);
+        subscriber.m_subscription.request(Long.MAX_VALUE);
+        assertNull(subscriber.m_error);
+        assertTrue(subscriber.m_complete);
+        assertEquals(FILE_SIZE, subscriber.m_bytes);
+        }
+    
+    private LaunchFileDispatcher newDispatcher() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[FILE_SIZE]);
+        return new LaunchFileDispatcher(file, raf, 3, null);
+        }
+    
+    private static final class RecordingSubscriber 
+        implements DownloadStreamSubscriber
+        {
+        private DownloadStreamSubscription m_subscription;
+        private int m_buffers = 0;
+        private long m_bytes = 0L;
+        private boolean m_complete = false;
+        private Throwable m_error;
+        
+        public void onSubscribe(final DownloadStreamSubscription subscription)
+            {
+            m_subscription = subscription;
+            }
+
+        public void onNext(final ByteBuffer buffer)
+            {
+            m_buffers++;
+            m_bytes += buffer.remaining();
+            }
+
+        public void onError(final Throwable t)
+            {
+            m_error = t;
+            }
+
+        public void onComplete()
+            {
+            m_complete = true;
+            }
+        }
+    }
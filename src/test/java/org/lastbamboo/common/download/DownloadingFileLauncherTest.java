@@ -1,12 +1,18 @@
 package org.lastbamboo.common.download;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -165,6 +171,76 @@ public class DownloadingFileLauncherTest
         m_log.debug("Copy SHA-1: "+sha1Copy);
         }
     
+    /**
+     * Tests that streaming a file that doesn't match its SHA-1 fails the
+     * write instead of looking like it worked.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    @Test public void testSha1Mismatch() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(new byte[1024]);
+        final CompletedRanges completedRanges = new CompletedRanges();
+        completedRanges.add(new LongRange(0, 1023));
+        final DownloadingFileLauncher launcher = new DownloadingFileLauncher(
+            raf, completedRanges, 
+            new URI("urn:sha1:AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"), file);
+        launcher.onFileComplete();
+        
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        final ByteArrayOutputStream os = new ByteArrayOutputStream()
+            {
+            @Override
+            public void close()
+                {
+                closed.set(true);
+                }
+            };
+        try
+            {
+            launcher.write(os, true);
+            fail("Expected the SHA-1 mismatch to fail the write");
+            }
+        catch (final IOException e)
+            {
+            assertTrue(e.getMessage().startsWith("SHA-1 mismatch"));
+            }
+        assertEquals(1024, os.size());
+        
+        // We leave the stream open so the caller can abort the response
+        // instead of ending it cleanly.
+        assertFalse(closed.get());
+        }
+    
+    @Test public void testWriteMovedFile() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final File completeFile = new File(file.getPath() + ".complete");
+        completeFile.deleteOnExit();
+        final byte[] data = new byte[2048];
+        Arrays.fill(data, (byte) 3);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(data);
+        raf.close();
+        final CompletedRanges completedRanges = new CompletedRanges();
+        completedRanges.add(new LongRange(0, data.length - 1));
+        final DownloadingFileLauncher launcher = new DownloadingFileLauncher(
+            raf, completedRanges, null, file, completeFile);
+        launcher.onFileComplete();
+        
+        // The file moves before the reader gets to open it.
+        assertTrue(file.renameTo(completeFile));
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        launcher.write(os, true);
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+        }
+    
     private void startRangeTrackerThreads(final DownloadingFileLauncher launcher, 
         final RangeTracker tracker, final int numDownloaders)
         {
@@ -0,0 +1,91 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Tests for sharing bandwidth and connections between downloads.
+ */
+public class FairShareSchedulerTest
+    {
+
+    @Test public void testWeightedShares() throws Exception
+        {
+        final FairShareScheduler scheduler = new FairShareScheduler();
+        final TestDownload light = new TestDownload(1);
+        final TestDownload heavy = new TestDownload(3);
+        scheduler.setTotalConnections(8);
+        BandwidthLimiter.getProcessLimiter().setBytesPerSecond(400 * 1024);
+        try
+            {
+            checkShares(scheduler, light, heavy);
+            }
+        finally
+            {
+            BandwidthLimiter.getProcessLimiter().setBytesPerSecond(0);
+            }
+        }
+    
+    private void checkShares(final FairShareScheduler scheduler,
+        final TestDownload light, final TestDownload heavy)
+        {
+        scheduler.register(light);
+        scheduler.register(heavy);
+        
+        assertEquals(2, light.m_connectionLimit);
+        assertEquals(6, heavy.m_connectionLimit);
+        assertEquals(100 * 1024, light.getBandwidthLimiter().getShare());
+        assertEquals(300 * 1024, heavy.getBandwidthLimiter().getShare());
+        
+        // Weights can change at any time.
+        light.m_weight = 3;
+        scheduler.rebalance();
+        assertEquals(4, light.m_connectionLimit);
+        assertEquals(200 * 1024, light.getBandwidthLimiter().getShare());
+        
+        // Everything goes back to the remaining download.
+        scheduler.unregister(heavy);
+        assertEquals(-1L, heavy.getBandwidthLimiter().getShare());
+        assertEquals(-1, heavy.m_connectionLimit);
+        assertEquals(8, light.m_connectionLimit);
+        assertEquals(400 * 1024, light.getBandwidthLimiter().getShare());
+        scheduler.unregister(light);
+        }
+    
+    private static final class TestDownload implements WeightedDownload
+        {
+        
+        private final BandwidthLimiter m_limiter = 
+            new BandwidthLimiter(BandwidthLimiter.getProcessLimiter());
+        
+        private volatile int m_weight;
+        
+        private volatile int m_connectionLimit;
+        
+        private TestDownload(final int weight)
+            {
+            m_weight = weight;
+            }
+
+        public int getEffectiveWeight()
+            {
+            return m_weight;
+            }
+
+        public BandwidthLimiter getBandwidthLimiter()
+            {
+            return m_limiter;
+            }
+
+        public long getBytesRead()
+            {
+            return 0;
+            }
+
+        public void setConnectionLimit(final int connectionLimit)
+            {
+            m_connectionLimit = connectionLimit;
+            }
+        }
+    }
@@ -0,0 +1,49 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.RangeTransportStub;
+
+/**
+ * Tests for the fallback range transport.
+ */
+public class FallbackRangeTransportTest
+    {
+
+    @Test public void testRouting() throws Exception
+        {
+        final RangeTransportStub preferred = 
+            new RangeTransportStub("fast.example.com", true);
+        final RangeTransportStub fallback = new RangeTransportStub(null, false);
+        final RangeTransport transport = 
+            new FallbackRangeTransport(preferred, fallback);
+        
+        final URI fast = new URI("https://fast.example.com/file");
+        final URI slow = new URI("http://slow.example.com/file");
+        transport.newExchange(new RangeRequest(RangeRequest.GET, fast));
+        transport.newExchange(new RangeRequest(RangeRequest.HEAD, slow));
+        
+        assertEquals(1, preferred.getRequests().size());
+        assertEquals(fast, preferred.getRequests().get(0).getUri());
+        assertEquals(1, fallback.getRequests().size());
+        assertEquals(RangeRequest.HEAD, 
+            fallback.getRequests().get(0).getMethod());
+        }
+    
+    @Test public void testMultiplexedPerSource() throws Exception
+        {
+        final RangeTransport transport = new FallbackRangeTransport(
+            new RangeTransportStub("fast.example.com", true), 
+            new RangeTransportStub(null, false));
+        
+        assertTrue(transport.isMultiplexed(
+            new URI("https://fast.example.com/file")));
+        assertFalse(transport.isMultiplexed(
+            new URI("http://slow.example.com/file")));
+        }
+    }
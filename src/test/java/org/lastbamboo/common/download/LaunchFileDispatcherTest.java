@@ -4,12 +4,16 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.security.DigestOutputStream;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.math.LongRange;
@@ -20,6 +24,97 @@ import org.littleshoot.util.Sha1;
 public class LaunchFileDispatcherTest
     {
     
+    @Test public void testSubscribe() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final byte[] data = new byte[300 * 1024];
+        for (int i = 0; i < data.length; i++)
+            {
+            data[i] = (byte) i;
+            }
+        final RandomAccessFile raf = new RandomAccessFile (file, "rw");
+        raf.write(data);
+        final LaunchFileDispatcher dispatcher = 
+            new LaunchFileDispatcher (file, raf, 3, null);
+        
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final AtomicLong buffers = new AtomicLong();
+        final AtomicBoolean complete = new AtomicBoolean(false);
+        final DownloadStreamSubscription[] subscriptions = 
+            new DownloadStreamSubscription[1];
+        final DownloadStreamSubscriber subscriber = 
+            new DownloadStreamSubscriber()
+            {
+            public void onSubscribe(
+                final DownloadStreamSubscription subscription)
+                {
+                subscriptions[0] = subscription;
+                }
+            
+            public void onNext(final ByteBuffer buffer)
+                {
+                buffers.incrementAndGet();
+                received.write(buffer.array(), buffer.position(), 
+                    buffer.remaining());
+                subscriptions[0].request(1);
+                }
+
+            public void onError(final Throwable t)
+                {
+                throw new IllegalStateException("Unexpected error", t);
+                }
+
+            public void onComplete()
+                {
+                complete.set(true);
+                }
+            };
+        
+        dispatcher.onRangeComplete(new LongRange(200 * 1024, 300 * 1024 - 1));
+        dispatcher.subscribe(subscriber);
+        dispatcher.onRangeComplete(new LongRange(0, 100 * 1024 - 1));
+        
+        // Nothing is sent until the subscriber asks.
+        assertEquals(0, buffers.get());
+        
+        subscriptions[0].request(1);
+        assertEquals(100 * 1024, received.size());
+        
+        dispatcher.onRangeComplete(new LongRange(100 * 1024, 200 * 1024 - 1));
+        assertFalse(complete.get());
+        dispatcher.onFileComplete();
+        assertTrue(complete.get());
+        assertTrue(Arrays.equals(data, received.toByteArray()));
+        }
+    
+    
+    @Test public void testWriteMovedFile() throws Exception
+        {
+        final File file = 
+            File.createTempFile(getClass().getSimpleName(), ".tmp");
+        file.deleteOnExit();
+        final File completeFile = new File(file.getPath() + ".complete");
+        completeFile.deleteOnExit();
+        final byte[] data = new byte[4096];
+        Arrays.fill(data, (byte) 7);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.write(data);
+        raf.close();
+        final LaunchFileDispatcher dispatcher = 
+            new LaunchFileDispatcher(file, completeFile, raf, 1, null);
+        dispatcher.onRangeComplete(new LongRange(0, data.length - 1));
+        dispatcher.onFileComplete();
+        
+        // Listeners move the file once it's complete, but readers that 
+        // come after still get it.
+        assertTrue(file.renameTo(completeFile));
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        dispatcher.write(os, true);
+        assertTrue(Arrays.equals(data, os.toByteArray()));
+        }
+    
     @Test public void testOome() throws Exception
         {
         final File file = 
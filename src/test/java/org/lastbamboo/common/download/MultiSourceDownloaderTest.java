@@ -0,0 +1,86 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.RangeTransportStub;
+
+/**
+ * Tests for the multi source downloader.
+ */
+public class MultiSourceDownloaderTest
+    {
+
+    @Test public void testFailOnSchedulerThread() throws Exception
+        {
+        final File dir = File.createTempFile("msd-test", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        final File incomplete = new File(dir, "file.tmp");
+        incomplete.deleteOnExit();
+        final URI source = new URI("http://127.0.0.1:1/file");
+        final UriResolver resolver = new UriResolver()
+            {
+            public Collection<URI> resolve(final URI uri) throws IOException
+                {
+                return Collections.singletonList(source);
+                }
+
+            public URI getSha1()
+                {
+                return null;
+                }
+            };
+        final MultiSourceDownloader dl = new MultiSourceDownloader(
+            incomplete, source, 1024, resolver, 1, null, dir, false);
+        final DownloadScheduler scheduler = 
+            new DownloadScheduler("Test-Scheduler");
+        try
+            {
+            dl.setScheduler(scheduler);
+            final RangeTransportStub transport = 
+                new RangeTransportStub(null, false);
+            transport.setUnreachable(true);
+            dl.setRangeTransport(transport);
+            
+            final List<String> threads = new LinkedList<String>();
+            dl.addListener(new DownloaderListener<MsDState>()
+                {
+                public void stateChanged(final MsDState state)
+                    {
+                    if (state == MsDState.FAILED)
+                        {
+                        synchronized (threads)
+                            {
+                            threads.add(Thread.currentThread().getName());
+                            }
+                        }
+                    }
+                });
+            
+            // The only source fails its probe on its own thread, but the 
+            // download only fails on the scheduler thread.
+            dl.start();
+            assertTrue(dl.getState() == MsDState.FAILED);
+            synchronized (threads)
+                {
+                assertEquals(Collections.singletonList("Test-Scheduler"), 
+                    threads);
+                }
+            }
+        finally
+            {
+            scheduler.shutdown();
+            }
+        }
+    }
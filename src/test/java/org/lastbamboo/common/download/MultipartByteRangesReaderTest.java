@@ -0,0 +1,75 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.math.LongRange;
+import org.junit.Test;
+
+/**
+ * Tests for reading multipart/byteranges response bodies.
+ */
+public class MultipartByteRangesReaderTest
+    {
+
+    @Test public void testBoundary() throws Exception
+        {
+        assertEquals("THIS_STRING_SEPARATES", 
+            MultipartByteRangesReader.getBoundary(
+                "multipart/byteranges; boundary=THIS_STRING_SEPARATES"));
+        assertEquals("quoted", MultipartByteRangesReader.getBoundary(
+            "multipart/byteranges; boundary=\"quoted\""));
+        assertNull(MultipartByteRangesReader.getBoundary("text/plain"));
+        assertNull(MultipartByteRangesReader.getBoundary(null));
+        }
+    
+    @Test public void testParts() throws Exception
+        {
+        final String body = 
+            "preamble\r\n" +
+            "--SEP\r\n" +
+            "Content-Type: application/octet-stream\r\n" +
+            "Content-Range: bytes 0-4/20\r\n" +
+            "\r\n" +
+            "hello\r\n" +
+            "--SEP\r\n" +
+            "Content-Range: bytes 10-14/20\r\n" +
+            "\r\n" +
+            "world\r\n" +
+            "--SEP--\r\n";
+        final MultipartByteRangesReader reader = new MultipartByteRangesReader(
+            new ByteArrayInputStream(body.getBytes("US-ASCII")), "SEP");
+        
+        assertEquals(new LongRange(0, 4), reader.nextPart());
+        assertEquals("hello", read(reader.getPartStream()));
+        
+        // Make sure we skip data the caller doesn't read.
+        assertEquals(new LongRange(10, 14), reader.nextPart());
+        assertNull(reader.nextPart());
+        }
+    
+    @Test public void testContentRange() throws Exception
+        {
+        assertEquals(new LongRange(0, 499), 
+            ContentRangeUtils.parseRange("bytes 0-499/1234"));
+        assertEquals(1234L, 
+            ContentRangeUtils.parseInstanceLength("bytes 0-499/1234"));
+        assertNull(ContentRangeUtils.parseRange("bytes */1234"));
+        assertEquals(1234L, 
+            ContentRangeUtils.parseInstanceLength("bytes */1234"));
+        assertEquals(-1L, 
+            ContentRangeUtils.parseInstanceLength("bytes 0-499/*"));
+        }
+
+    private String read(final InputStream is) throws Exception
+        {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        IOUtils.copy(is, baos);
+        return new String(baos.toByteArray(), "US-ASCII");
+        }
+    }
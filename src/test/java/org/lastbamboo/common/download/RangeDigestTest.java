@@ -0,0 +1,55 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.security.MessageDigest;
+
+import org.junit.Test;
+
+/**
+ * Tests for parsing and checking per-range digests.
+ */
+public class RangeDigestTest
+    {
+
+    private static final String SHA_256 = 
+        "LPJNul+wow4m6DsqxbninhsWHlwfp0JecwQzYpOLmCQ=";
+    
+    private static final String MD5 = "XUFAKrxLKna5cZ2REBfFkg==";
+    
+    @Test public void testContentDigest() throws Exception
+        {
+        final RangeDigest digest = RangeDigest.fromHeaders(
+            "unixsum=:AAAA:, sha-256=:" + SHA_256 + ":", null);
+        assertNotNull(digest);
+        assertTrue(matches(digest, "hello"));
+        assertFalse(matches(digest, "hellO"));
+        }
+    
+    @Test public void testContentMd5() throws Exception
+        {
+        final RangeDigest digest = RangeDigest.fromHeaders(null, MD5);
+        assertNotNull(digest);
+        assertTrue(matches(digest, "hello"));
+        
+        // We fall back to Content-MD5 when we don't know the algorithms.
+        assertNotNull(RangeDigest.fromHeaders("unixsum=:AAAA:", MD5));
+        }
+    
+    @Test public void testNoDigest() throws Exception
+        {
+        assertNull(RangeDigest.fromHeaders(null, null));
+        assertNull(RangeDigest.fromHeaders("sha-256=" + SHA_256, " "));
+        }
+    
+    private static boolean matches(final RangeDigest digest, 
+        final String body) throws Exception
+        {
+        final MessageDigest md = digest.newMessageDigest();
+        md.update(body.getBytes("US-ASCII"));
+        return digest.matches(md.digest());
+        }
+    }
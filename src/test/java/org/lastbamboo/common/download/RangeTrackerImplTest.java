@@ -1,6 +1,7 @@
 package org.lastbamboo.common.download;
 
 import java.io.File;
+import java.net.URI;
 
 import junit.framework.TestCase;
 
@@ -55,4 +56,102 @@ public class RangeTrackerImplTest extends TestCase
             
         oRange.accept (visitor);
         }
+    
+    /**
+     * Tests that fast start ranges start small and grow.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testFastStart() throws Exception
+        {
+        final long size = 1000000L;
+        final RangeSizeSelector selector = new DefaultRangeSizeSelector();
+        final long chunkSize = selector.selectSize(size, 10);
+        final RangeTracker rt = 
+            new RangeTrackerImpl(size, 10, selector, 1024L);
+        
+        final OptionalVisitor<LongRange,LongRange> visitor =
+            new OptionalVisitor<LongRange,LongRange> ()
+            {
+            public LongRange visitNone (final None<LongRange> none)
+                {
+                return null;
+                }
+            
+            public LongRange visitSome(final Some<LongRange> some)
+                {
+                return some.object ();
+                }
+            };
+        
+        long expectedSize = 1024L;
+        long expectedMin = 0L;
+        for (int i = 0; i < 8; i++)
+            {
+            final LongRange range = rt.getNextRange().accept(visitor);
+            assertEquals(expectedMin, range.getMinimumLong());
+            assertEquals(expectedSize, 
+                range.getMaximumLong() - range.getMinimumLong() + 1);
+            expectedMin = range.getMaximumLong() + 1;
+            expectedSize = Math.min(chunkSize, expectedSize * 2);
+            }
+        }
+    
+    /**
+     * Tests claiming ranges by position and completing only part of a range,
+     * as we do for sources that don't honor our ranges.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testClaimAndPartialComplete() throws Exception
+        {
+        final long size = 1000000L;
+        final RangeTracker rt = new RangeTrackerImpl(size, 10, 
+            new DefaultRangeSizeSelector(), 1024L);
+        
+        assertEquals(0L, rt.getNextInactiveStart(0L));
+        assertEquals(1024L, rt.getNextInactiveStart(1L));
+        assertNull(rt.claimRange(1L));
+        
+        final LongRange first = rt.claimRange(0L);
+        assertEquals(new LongRange(0L, 1023L), first);
+        assertNull(rt.claimRange(0L));
+        assertEquals(1024L, rt.getNextInactiveStart(0L));
+        
+        rt.onRangePartiallyComplete(first, new LongRange(0L, 511L));
+        
+        // The rest of the range should be waiting again.
+        assertEquals(512L, rt.getNextInactiveStart(1L));
+        assertEquals(new LongRange(512L, 1023L), rt.claimRange(512L));
+        }
+    
+    /**
+     * Tests that partial sources only get ranges they have, rarest first.
+     * 
+     * @throws Exception If any unexpected error occurs.
+     */
+    public void testPartialSources() throws Exception
+        {
+        final RangeTracker rt = new RangeTrackerImpl(4096L, 1, 
+            new DefaultRangeSizeSelector(), 1024L);
+        final SourceAvailability first = 
+            SourceAvailability.parse("bytes 0-1023, 1024-3071");
+        final SourceAvailability second = 
+            SourceAvailability.parse("bytes 0-1023");
+        assertFalse(first.isComplete());
+        assertTrue(first.contains(new LongRange(0L, 3071L)));
+        assertFalse(first.contains(new LongRange(1024L, 4095L)));
+        assertNull(SourceAvailability.parse("bytes 10-5"));
+        
+        final SwarmAvailability swarm = new SwarmAvailability();
+        swarm.update(new URI("http://first"), first);
+        swarm.update(new URI("http://second"), second);
+        
+        // Only the first source has the second range, so it goes first.
+        assertEquals(new LongRange(1024L, 3071L), 
+            rt.pollNextRange(first, swarm));
+        assertEquals(new LongRange(0L, 1023L), 
+            rt.pollNextRange(first, swarm));
+        assertNull(rt.pollNextRange(second, swarm));
+        }
     }
@@ -0,0 +1,246 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.apache.commons.lang.math.LongRange;
+import org.junit.Test;
+import org.lastbamboo.common.download.stubs.LaunchFileTrackerStub;
+import org.lastbamboo.common.download.stubs.RangeDownloadListenerStub;
+import org.lastbamboo.common.download.stubs.RangeTransportStub;
+import org.lastbamboo.common.download.stubs.SourceRankerStub;
+
+/**
+ * Tests for the single source downloader.
+ */
+public class SingleSourceDownloaderTest
+    {
+
+    @Test public void testRetryAfterFailure() throws Exception
+        {
+        final File file = File.createTempFile("ssd-test", ".tmp");
+        file.deleteOnExit();
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+            {
+            final SourceRankerStub ranker = new SourceRankerStub();
+            final RangeDownloadListenerStub listener = 
+                new RangeDownloadListenerStub();
+            final SingleSourceDownloader dl = new SingleSourceDownloader(
+                new RangeTransportStub(null, true),
+                new URI("http://127.0.0.1:1/file"), listener, ranker, 
+                new RangeTrackerAdapter(), new LaunchFileTrackerStub(), raf);
+            
+            // The first failure backs off for a second before the source
+            // gets another chance.
+            dl.onFailure();
+            assertFalse(listener.hasFailed(dl));
+            assertFalse(ranker.waitForAvailable(dl, 500));
+            assertTrue(ranker.waitForAvailable(dl, 2000));
+            assertFalse(listener.hasFailed(dl));
+            }
+        finally
+            {
+            raf.close();
+            }
+        }
+    
+    @Test public void testHeadRequestUsesTransport() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(206);
+        transport.addResponseHeader("Content-Range", "bytes 0-0/100");
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SingleSourceDownloader dl = newDownloader(transport, listener);
+        
+        dl.issueHeadRequest();
+        assertTrue(listener.waitForConnect(dl, 2000));
+        assertEquals(1, transport.getRequests().size());
+        assertEquals(RangeRequest.HEAD, 
+            transport.getRequests().get(0).getMethod());
+        }
+    
+    @Test public void testHeadRequestFailure() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setUnreachable(true);
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SingleSourceDownloader dl = newDownloader(transport, listener);
+        
+        dl.issueHeadRequest();
+        assertFalse(listener.waitForConnect(dl, 2000));
+        assertTrue(listener.hasFailed(dl));
+        }
+    
+    @Test public void testSourceGone() throws Exception
+        {
+        final int[] statusCodes = { 404, 410 };
+        for (final int statusCode : statusCodes)
+            {
+            final RangeTransportStub transport = 
+                new RangeTransportStub(null, true);
+            transport.setStatusCode(statusCode);
+            final RangeDownloadListenerStub listener = 
+                new RangeDownloadListenerStub();
+            final SourceRankerStub ranker = new SourceRankerStub();
+            final SingleSourceDownloader dl = 
+                newDownloader(transport, listener, ranker);
+            
+            // The file isn't there, so there's no point in retrying.
+            dl.download(new LongRange(0, 99));
+            assertTrue(listener.hasFailed(dl));
+            assertFalse(ranker.waitForAvailable(dl, 1500));
+            }
+        }
+    
+    @Test public void testRetryAfterSeconds() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(429);
+        transport.addResponseHeader("Retry-After", "2");
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SourceRankerStub ranker = new SourceRankerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, ranker);
+        
+        // We wait as long as the source asks, longer than we would for an
+        // ordinary failure.
+        dl.download(new LongRange(0, 99));
+        assertFalse(listener.hasFailed(dl));
+        assertFalse(ranker.waitForAvailable(dl, 1500));
+        assertTrue(ranker.waitForAvailable(dl, 2000));
+        assertFalse(listener.hasFailed(dl));
+        }
+    
+    @Test public void testRetryAfterDate() throws Exception
+        {
+        final SimpleDateFormat format = 
+            new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(503);
+        transport.addResponseHeader("Retry-After", 
+            format.format(new Date(System.currentTimeMillis() + 3000)));
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SourceRankerStub ranker = new SourceRankerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, ranker);
+        
+        // The date only has whole seconds, so we wait at least two.
+        dl.download(new LongRange(0, 99));
+        assertFalse(listener.hasFailed(dl));
+        assertFalse(ranker.waitForAvailable(dl, 1500));
+        assertTrue(ranker.waitForAvailable(dl, 3000));
+        }
+    
+    @Test public void testRetryAfterTooLong() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(503);
+        transport.addResponseHeader("Retry-After", "601");
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, new SourceRankerStub());
+        
+        dl.download(new LongRange(0, 99));
+        assertTrue(listener.hasFailed(dl));
+        }
+    
+    @Test public void testThrottleDoubling() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(503);
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, new SourceRankerStub());
+        
+        // Without Retry-After we wait 5 seconds, doubling each time until 
+        // the wait passes 10 minutes.
+        for (int i = 0; i < 7; i++)
+            {
+            dl.download(new LongRange(0, 99));
+            assertFalse(listener.hasFailed(dl));
+            }
+        dl.download(new LongRange(0, 99));
+        assertTrue(listener.hasFailed(dl));
+        }
+    
+    @Test public void testRangeNotSatisfiable() throws Exception
+        {
+        // The source has a different file, so we drop it.
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(416);
+        transport.addResponseHeader("Content-Range", "bytes */200");
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, new SourceRankerStub());
+        dl.setExpectedSize(100);
+        dl.download(new LongRange(0, 99));
+        assertTrue(listener.hasFailed(dl));
+        
+        // The size matches, so it's an ordinary failure.
+        final RangeTransportStub sameSize = new RangeTransportStub(null, true);
+        sameSize.setStatusCode(416);
+        sameSize.addResponseHeader("Content-Range", "bytes */100");
+        final SourceRankerStub ranker = new SourceRankerStub();
+        final SingleSourceDownloader retried = 
+            newDownloader(sameSize, listener, ranker);
+        retried.setExpectedSize(100);
+        retried.download(new LongRange(0, 99));
+        assertFalse(listener.hasFailed(retried));
+        assertTrue(ranker.waitForAvailable(retried, 2000));
+        }
+    
+    @Test public void testOrdinaryFailure() throws Exception
+        {
+        final RangeTransportStub transport = new RangeTransportStub(null, true);
+        transport.setStatusCode(500);
+        final RangeDownloadListenerStub listener = 
+            new RangeDownloadListenerStub();
+        final SourceRankerStub ranker = new SourceRankerStub();
+        final SingleSourceDownloader dl = 
+            newDownloader(transport, listener, ranker);
+        
+        // This backs off like any other failure.
+        dl.download(new LongRange(0, 99));
+        assertFalse(listener.hasFailed(dl));
+        assertFalse(ranker.waitForAvailable(dl, 400));
+        assertTrue(ranker.waitForAvailable(dl, 2000));
+        }
+    
+    private SingleSourceDownloader newDownloader(
+        final RangeTransport transport, 
+        final RangeDownloadListener listener) throws Exception
+        {
+        return newDownloader(transport, listener, new SourceRankerStub());
+        }
+    
+    private SingleSourceDownloader newDownloader(
+        final RangeTransport transport, 
+        final RangeDownloadListener listener, 
+        final SourceRanker ranker) throws Exception
+        {
+        final File file = File.createTempFile("ssd-test", ".tmp");
+        file.deleteOnExit();
+        return new SingleSourceDownloader(transport,
+            new URI("http://127.0.0.1:1/file"), listener, ranker, 
+            new RangeTrackerAdapter(), new LaunchFileTrackerStub(), 
+            new RandomAccessFile(file, "rw"));
+        }
+    }
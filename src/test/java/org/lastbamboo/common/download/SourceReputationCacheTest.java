@@ -0,0 +1,138 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for remembering how hosts have performed.
+ */
+public class SourceReputationCacheTest
+    {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    @Test public void testSaveAndLoad() throws Exception
+        {
+        final File file = newFile();
+        final URI fast = new URI("http://fast.example.com/file");
+        final URI flaky = new URI("http://flaky.example.com/file");
+        final SourceReputationCache cache =
+            new SourceReputationCache(file, 10, HOUR);
+        cache.onRangeComplete(fast, 1000, false);
+        cache.onRtt(fast, 50);
+        cache.onFailure(flaky);
+        cache.save();
+
+        // Each host is a line of tab separated fields.
+        final List<String> lines = readLines(file);
+        assertEquals(2, lines.size());
+        final String[] fields = lines.get(0).split("\t");
+        assertEquals(7, fields.length);
+        assertEquals("fast.example.com", fields[0]);
+        assertEquals("1000", fields[1]);
+        assertEquals("50", fields[2]);
+        assertEquals("1", fields[3]);
+        assertEquals("0", fields[4]);
+        assertEquals("false", fields[5]);
+
+        // We don't load hosts we haven't heard from in too long.
+        final Writer writer = new FileWriter(file, true);
+        try
+            {
+            writer.write("old.example.com\t500\t20\t1\t0\ttrue\t0\n");
+            }
+        finally
+            {
+            writer.close();
+            }
+
+        final SourceReputationCache loaded =
+            new SourceReputationCache(file, 10, HOUR);
+        final SourceReputation rep = loaded.get(fast);
+        assertNotNull(rep);
+        assertEquals(1000, rep.getBytesPerSecond());
+        assertEquals(50, rep.getRtt());
+        assertEquals(1, rep.getSuccesses());
+        assertFalse(rep.isMultipleRangesSupported());
+        assertEquals(1, loaded.get(flaky).getFailures());
+        assertNull(loaded.get(new URI("http://old.example.com/file")));
+        }
+
+    @Test public void testLeastRecentlyUsed() throws Exception
+        {
+        final SourceReputationCache cache =
+            new SourceReputationCache(newFile(), 2, HOUR);
+        final URI first = new URI("http://first.example.com/file");
+        final URI second = new URI("http://second.example.com/file");
+        final URI third = new URI("http://third.example.com/file");
+        cache.onRtt(first, 10);
+        cache.onRtt(second, 10);
+
+        // Looking up the first host makes the second the oldest.
+        assertNotNull(cache.get(first));
+        cache.onRtt(third, 10);
+        assertNotNull(cache.get(first));
+        assertNull(cache.get(second));
+        assertNotNull(cache.get(third));
+        }
+
+    @Test public void testSourceOrder() throws Exception
+        {
+        final SourceReputationCache cache =
+            new SourceReputationCache(newFile(), 10, HOUR);
+        final URI fast = new URI("http://fast.example.com/file");
+        final URI slow = new URI("http://slow.example.com/file");
+        final URI unknown = new URI("http://unknown.example.com/file");
+        final URI failing = new URI("http://failing.example.com/file");
+        cache.onRangeComplete(fast, 2000, true);
+        cache.onRangeComplete(slow, 1000, true);
+        cache.onFailure(failing);
+
+        final List<URI> sources = Arrays.asList(failing, unknown, slow, fast);
+        Collections.sort(sources, cache.newSourceComparator());
+        assertEquals(Arrays.asList(fast, slow, unknown, failing), sources);
+        }
+
+    private static List<String> readLines(final File file) throws Exception
+        {
+        final List<String> lines = new LinkedList<String>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try
+            {
+            String line;
+            while ((line = reader.readLine()) != null)
+                {
+                lines.add(line);
+                }
+            }
+        finally
+            {
+            reader.close();
+            }
+        return lines;
+        }
+
+    private File newFile() throws Exception
+        {
+        final File file =
+            File.createTempFile(getClass().getSimpleName(), ".txt");
+        file.deleteOnExit();
+        file.delete();
+        return file;
+        }
+    }
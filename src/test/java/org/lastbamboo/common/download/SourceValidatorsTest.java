@@ -0,0 +1,88 @@
+package org.lastbamboo.common.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.junit.Test;
+
+/**
+ * Tests for catching sources that serve a different version of the file.
+ */
+public class SourceValidatorsTest
+    {
+
+    private static final String DATE = "Tue, 15 Nov 1994 12:45:26 GMT";
+
+    @Test public void testChangedEtag() throws Exception
+        {
+        final SourceValidators validators = new SourceValidators(100);
+        final URI source = new URI("http://example.com/file");
+        final URI mirror = new URI("http://mirror.example.com/file");
+        assertTrue(validators.onResponse(source, "\"a\"", DATE, 100));
+
+        // Mirrors can have their own ETags for the same file.
+        assertTrue(validators.onResponse(mirror, "\"b\"", DATE, 100));
+
+        // A source that changes its own ETag has changed the file.
+        assertFalse(validators.onResponse(source, "\"c\"", DATE, 100));
+        assertTrue(validators.getQuarantinedSources().contains(source));
+
+        // It stays quarantined even if it goes back.
+        assertFalse(validators.onResponse(source, "\"a\"", DATE, 100));
+        assertEquals(1, validators.getQuarantinedSources().size());
+        }
+
+    @Test public void testSizeOutvoted() throws Exception
+        {
+        final SourceValidators validators = new SourceValidators(-1);
+        final URI first = new URI("http://first.example.com/file");
+        final URI second = new URI("http://second.example.com/file");
+        final URI odd = new URI("http://odd.example.com/file");
+        assertTrue(validators.onResponse(first, null, null, 100));
+        assertTrue(validators.onResponse(second, null, null, 100));
+
+        // Two sources agree on the size, so the third is wrong.
+        assertFalse(validators.onResponse(odd, null, null, 200));
+        assertTrue(validators.getQuarantinedSources().contains(odd));
+        assertFalse(validators.getQuarantinedSources().contains(first));
+        }
+
+    @Test public void testSizeTie() throws Exception
+        {
+        final SourceValidators validators = new SourceValidators(-1);
+        final URI first = new URI("http://first.example.com/file");
+        final URI second = new URI("http://second.example.com/file");
+        final URI third = new URI("http://third.example.com/file");
+        final URI fourth = new URI("http://fourth.example.com/file");
+        assertTrue(validators.onResponse(first, null, null, 100));
+        assertTrue(validators.onResponse(second, null, null, 200));
+        assertTrue(validators.onResponse(third, null, null, 100));
+
+        // Two against two is no majority, so we don't reject either.
+        assertTrue(validators.onResponse(fourth, null, null, 200));
+        assertTrue(validators.getQuarantinedSources().isEmpty());
+        }
+
+    @Test public void testIfRange() throws Exception
+        {
+        final SourceValidators validators = new SourceValidators(100);
+        final URI strong = new URI("http://strong.example.com/file");
+        final URI weak = new URI("http://weak.example.com/file");
+        final URI weakOnly = new URI("http://weakonly.example.com/file");
+        final URI unknown = new URI("http://unknown.example.com/file");
+        validators.onResponse(strong, "\"a\"", DATE, 100);
+        validators.onResponse(weak, "W/\"a\"", DATE, 100);
+        validators.onResponse(weakOnly, "W/\"a\"", null, 100);
+
+        assertEquals("\"a\"", validators.getIfRange(strong));
+
+        // Weak ETags can't go in If-Range, so we use the date instead.
+        assertEquals(DATE, validators.getIfRange(weak));
+        assertNull(validators.getIfRange(weakOnly));
+        assertNull(validators.getIfRange(unknown));
+        }
+    }
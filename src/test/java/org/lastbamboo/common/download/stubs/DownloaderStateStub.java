@@ -0,0 +1,28 @@
+package org.lastbamboo.common.download.stubs;
+
+import org.lastbamboo.common.download.DownloaderState;
+import org.lastbamboo.common.download.DownloaderStateType;
+
+/**
+ * Downloader state that only has a type.
+ */
+public final class DownloaderStateStub implements DownloaderState
+    {
+    
+    private final DownloaderStateType m_type;
+    
+    /**
+     * Creates a new state.
+     * 
+     * @param type The type of the state.
+     */
+    public DownloaderStateStub(final DownloaderStateType type)
+        {
+        m_type = type;
+        }
+
+    public DownloaderStateType getType()
+        {
+        return m_type;
+        }
+    }
@@ -0,0 +1,151 @@
+package org.lastbamboo.common.download.stubs;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.download.AbstractDownloader;
+import org.lastbamboo.common.download.DownloadFuture;
+import org.lastbamboo.common.download.DownloadStreamSubscriber;
+import org.lastbamboo.common.download.DownloaderStateType;
+
+/**
+ * Downloader that doesn't download anything, and only changes state when
+ * told to.
+ */
+public class DownloaderStub extends AbstractDownloader<DownloaderStateStub>
+    {
+    
+    private volatile boolean m_started = false;
+    
+    private volatile boolean m_stopped = false;
+    
+    private volatile boolean m_removedFiles = false;
+    
+    private final AtomicLong m_bytesRead = new AtomicLong(0L);
+    
+    private volatile DownloaderStateStub m_state = 
+        new DownloaderStateStub(DownloaderStateType.RUNNING);
+    
+    /**
+     * Tells listeners about the current state again, as downloads do when
+     * they make progress.
+     */
+    public void progress()
+        {
+        fireStateChanged(m_state);
+        }
+    
+    /**
+     * Reads some bytes without telling listeners, as downloads do while 
+     * their state stays the same.
+     * 
+     * @param bytes The number of bytes read.
+     */
+    public void read(final long bytes)
+        {
+        m_bytesRead.addAndGet(bytes);
+        }
+    
+    /**
+     * Moves to the given state and tells listeners.
+     * 
+     * @param type The type of the new state.
+     */
+    public void finish(final DownloaderStateType type)
+        {
+        m_state = new DownloaderStateStub(type);
+        fireStateChanged(m_state);
+        }
+    
+    /**
+     * Accessor for whether we've been stopped.
+     * 
+     * @return <code>true</code> if we've been stopped.
+     */
+    public boolean isStopped()
+        {
+        return m_stopped;
+        }
+    
+    /**
+     * Accessor for whether we were told to remove our files when we were
+     * stopped.
+     * 
+     * @return <code>true</code> if we were told to remove our files.
+     */
+    public boolean hasRemovedFiles()
+        {
+        return m_removedFiles;
+        }
+
+    public void start()
+        {
+        m_started = true;
+        }
+
+    public DownloadFuture<DownloaderStateStub> startAsync()
+        {
+        m_started = true;
+        return getFuture();
+        }
+
+    public DownloaderStateStub getState()
+        {
+        return m_state;
+        }
+
+    public File getIncompleteFile()
+        {
+        return null;
+        }
+
+    public File getCompleteFile()
+        {
+        return null;
+        }
+
+    public long getSize()
+        {
+        return 0;
+        }
+    
+    public long getBytesRead()
+        {
+        return m_bytesRead.get();
+        }
+
+    public void write(final OutputStream os, 
+        final boolean cancelOnStreamClose)
+        {
+        }
+
+    public void subscribe(final DownloadStreamSubscriber subscriber)
+        {
+        }
+
+    public boolean isStarted()
+        {
+        return m_started;
+        }
+
+    public String getFinalName()
+        {
+        return "test";
+        }
+
+    public void stop(final boolean removeFiles)
+        {
+        m_stopped = true;
+        m_removedFiles = removeFiles;
+        finish(DownloaderStateType.FAILED);
+        }
+
+    public void pause()
+        {
+        }
+
+    public void resume()
+        {
+        }
+    }
@@ -0,0 +1,83 @@
+package org.lastbamboo.common.download.stubs;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.lastbamboo.common.download.RangeDownloadListener;
+import org.lastbamboo.common.download.RangeDownloader;
+
+/**
+ * Range download listener that records the sources that connected and the
+ * sources that failed.
+ */
+public class RangeDownloadListenerStub implements RangeDownloadListener
+    {
+
+    private final Collection<RangeDownloader> m_connected = 
+        new LinkedList<RangeDownloader>();
+    
+    private final Collection<RangeDownloader> m_failed = 
+        new LinkedList<RangeDownloader>();
+    
+    public synchronized void onConnect(final RangeDownloader downloader)
+        {
+        m_connected.add(downloader);
+        notifyAll();
+        }
+
+    public void onDownloadStarted(final RangeDownloader downloader)
+        {
+        }
+
+    public void onDownloadFinished(final RangeDownloader downloader)
+        {
+        }
+
+    public synchronized void onFail(final RangeDownloader downloader)
+        {
+        m_failed.add(downloader);
+        notifyAll();
+        }
+
+    public void onBytesRead(final RangeDownloader downloader)
+        {
+        }
+    
+    /**
+     * Accessor for whether the given source failed for good.
+     * 
+     * @param downloader The source.
+     * @return Whether the source failed.
+     */
+    public synchronized boolean hasFailed(final RangeDownloader downloader)
+        {
+        return m_failed.contains(downloader);
+        }
+    
+    /**
+     * Waits for the given source to either connect or fail.
+     * 
+     * @param downloader The source.
+     * @param timeout The longest to wait, in milliseconds.
+     * @return <code>true</code> if the source connected, or 
+     * <code>false</code> if it failed or we timed out.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public synchronized boolean waitForConnect(
+        final RangeDownloader downloader, final long timeout) 
+        throws InterruptedException
+        {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!m_connected.contains(downloader) && 
+            !m_failed.contains(downloader))
+            {
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+                {
+                return false;
+                }
+            wait(remaining);
+            }
+        return m_connected.contains(downloader);
+        }
+    }
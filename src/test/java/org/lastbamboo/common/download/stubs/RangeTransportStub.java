@@ -0,0 +1,167 @@
+package org.lastbamboo.common.download.stubs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.lastbamboo.common.download.RangeExchange;
+import org.lastbamboo.common.download.RangeRequest;
+import org.lastbamboo.common.download.RangeResponseListener;
+import org.lastbamboo.common.download.RangeTransport;
+
+/**
+ * Range transport that answers every request with a canned response and
+ * records the requests it gets.
+ */
+public class RangeTransportStub implements RangeTransport
+    {
+
+    private final String m_host;
+    
+    private final boolean m_multiplexed;
+    
+    private final List<RangeRequest> m_requests = 
+        new LinkedList<RangeRequest>();
+    
+    private final Map<String, String> m_headers = 
+        new HashMap<String, String>();
+    
+    private volatile int m_statusCode = 200;
+    
+    private volatile boolean m_unreachable = false;
+
+    /**
+     * Creates a new transport.
+     * 
+     * @param host The host we support, or <code>null</code> to support 
+     * every host.
+     * @param multiplexed Whether we multiplex requests to the host.
+     */
+    public RangeTransportStub(final String host, final boolean multiplexed)
+        {
+        this.m_host = host;
+        this.m_multiplexed = multiplexed;
+        }
+    
+    /**
+     * Sets the status code of our responses.
+     * 
+     * @param statusCode The status code.
+     */
+    public void setStatusCode(final int statusCode)
+        {
+        this.m_statusCode = statusCode;
+        }
+    
+    /**
+     * Adds a header to our responses.
+     * 
+     * @param name The name of the header.
+     * @param value The value of the header.
+     */
+    public synchronized void addResponseHeader(final String name, 
+        final String value)
+        {
+        this.m_headers.put(name, value);
+        }
+    
+    /**
+     * Sets whether or not requests fail to reach the source at all.
+     * 
+     * @param unreachable Whether requests fail.
+     */
+    public void setUnreachable(final boolean unreachable)
+        {
+        this.m_unreachable = unreachable;
+        }
+    
+    /**
+     * Accessor for the requests we've been asked to carry.
+     * 
+     * @return The requests.
+     */
+    public synchronized List<RangeRequest> getRequests()
+        {
+        return new LinkedList<RangeRequest>(this.m_requests);
+        }
+    
+    public boolean supports(final URI source)
+        {
+        return this.m_host == null || this.m_host.equals(source.getHost());
+        }
+
+    public boolean isMultiplexed(final URI source)
+        {
+        return this.m_multiplexed;
+        }
+
+    public synchronized RangeExchange newExchange(final RangeRequest request)
+        {
+        this.m_requests.add(request);
+        return new ExchangeStub(request);
+        }
+    
+    private final class ExchangeStub implements RangeExchange
+        {
+        
+        private final RangeRequest m_request;
+
+        private ExchangeStub(final RangeRequest request)
+            {
+            this.m_request = request;
+            }
+
+        public void execute(final RangeResponseListener listener)
+            {
+            if (m_unreachable)
+                {
+                listener.onCouldNotConnect();
+                return;
+                }
+            listener.onConnect(0L);
+            if (m_statusCode != 200 && m_statusCode != 206)
+                {
+                listener.onNoTwoHundredOk(m_statusCode);
+                }
+            }
+
+        public void executeAndWait() throws IOException
+            {
+            if (m_unreachable)
+                {
+                throw new IOException("Unreachable: " + 
+                    this.m_request.getUri());
+                }
+            }
+
+        public int getStatusCode()
+            {
+            return m_statusCode;
+            }
+
+        public String getResponseHeader(final String name)
+            {
+            synchronized (RangeTransportStub.this)
+                {
+                return m_headers.get(name);
+                }
+            }
+
+        public URI getResponseUri()
+            {
+            return this.m_request.getUri();
+            }
+
+        public boolean isMultiplexed()
+            {
+            return m_multiplexed;
+            }
+
+        public void abort()
+            {
+            }
+        }
+    }
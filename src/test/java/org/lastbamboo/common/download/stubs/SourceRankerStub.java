@@ -0,0 +1,74 @@
+package org.lastbamboo.common.download.stubs;
+
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.lastbamboo.common.download.RangeDownloader;
+import org.lastbamboo.common.download.SourceRanker;
+import org.lastbamboo.common.download.WorkListener;
+
+/**
+ * Source ranker that just records the sources offered to it.
+ */
+public class SourceRankerStub implements SourceRanker
+    {
+
+    private final Collection<RangeDownloader> m_available = 
+        new LinkedList<RangeDownloader>();
+
+    public synchronized boolean hasMoreSources()
+        {
+        return !m_available.isEmpty();
+        }
+
+    public synchronized RangeDownloader pollBestSource()
+        {
+        if (m_available.isEmpty())
+            {
+            return null;
+            }
+        final RangeDownloader dl = m_available.iterator().next();
+        m_available.remove(dl);
+        return dl;
+        }
+
+    public void setWorkListener(final WorkListener listener)
+        {
+        }
+
+    public synchronized void onAvailable(final RangeDownloader downloader)
+        {
+        m_available.add(downloader);
+        notifyAll();
+        }
+
+    public synchronized void remove(final RangeDownloader downloader)
+        {
+        m_available.remove(downloader);
+        }
+    
+    /**
+     * Waits for the given source to be offered to us.
+     * 
+     * @param downloader The source.
+     * @param timeout The most time to wait in milliseconds.
+     * @return Whether the source was offered in time.
+     * @throws InterruptedException If we're interrupted while waiting.
+     */
+    public synchronized boolean waitForAvailable(
+        final RangeDownloader downloader, final long timeout) 
+        throws InterruptedException
+        {
+        final long end = System.currentTimeMillis() + timeout;
+        while (!m_available.contains(downloader))
+            {
+            final long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+                {
+                return false;
+                }
+            wait(remaining);
+            }
+        return true;
+        }
+    }